@@ -155,6 +155,22 @@ public class MControlTest {
         assertTrue(ADC_CABLE_TYPE > 2000 && ADC_CABLE_TYPE < 4000);
     }
 
+    @Test
+    public void get_all_adc_or_gpi_voltage() {
+        int[] voltages = new int[12];
+        mControl.get_all_adc_or_gpi_voltage(voltages);
+
+        Log.d(TAG, "All ADC voltages: " + Arrays.toString(voltages));
+
+        // Every channel should be read, compare against single channel reads
+        for(int i = 0; i < voltages.length; i++){
+            assertNotEquals(-1, voltages[i]);
+
+            int single = mControl.get_adc_or_gpi_voltage(i);
+            assertTrue("Channel " + i + " bulk " + voltages[i] + " single " + single, Math.abs(single - voltages[i]) < 500);
+        }
+    }
+
     @Test
     public void get_power_on_reason() {
         int powerOnReason = mControl.get_power_on_reason();
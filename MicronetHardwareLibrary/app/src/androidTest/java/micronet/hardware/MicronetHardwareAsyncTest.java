@@ -0,0 +1,80 @@
+package micronet.hardware;
+
+import android.util.Log;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class MicronetHardwareAsyncTest {
+
+    private static final String TAG = "MicronetHardwareAsyncTest";
+
+    private MicronetHardwareAsync micronetHardwareAsync;
+
+    @Before
+    public void setUp() {
+        micronetHardwareAsync = MicronetHardwareAsync.getInstance();
+    }
+
+    @Test
+    public void getMcuVersion() throws Exception {
+        String mcuVersion = micronetHardwareAsync.getMcuVersion().get(1, TimeUnit.SECONDS);
+        Log.d(TAG, "MCU Version: " + mcuVersion);
+
+        // Check that the returned string is similar to "A.2.3.0"
+        assertTrue(mcuVersion.matches("\\w\\.\\d+\\.\\d+\\.\\d+"));
+    }
+
+    @Test
+    public void getDeviceInfo() throws Exception {
+        DeviceInfo info = micronetHardwareAsync.getDeviceInfo().get(1, TimeUnit.SECONDS);
+        assertEquals(micronetHardwareAsync.getMcuVersion().get(1, TimeUnit.SECONDS), info.getMcuVersion());
+    }
+
+    @Test
+    public void getAnalogInputWithTimeout() throws Exception {
+        int voltage = micronetHardwareAsync.getAnalogInput(MicronetHardware.kADC_POWER_IN, 100).get(1, TimeUnit.SECONDS);
+        assertTrue(voltage > 0);
+    }
+
+    @Test
+    public void getAllAnalogInputCallback() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<int[]> result = new AtomicReference<int[]>();
+
+        micronetHardwareAsync.getAllAnalogInput().addCallback(new HardwareFuture.Callback<int[]>() {
+            @Override
+            public void onSuccess(int[] voltages) {
+                result.set(voltages);
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                Log.e(TAG, error.toString());
+                latch.countDown();
+            }
+        });
+
+        assertTrue(latch.await(1, TimeUnit.SECONDS));
+        Log.d(TAG, "All analog inputs: " + Arrays.toString(result.get()));
+        assertEquals(12, result.get().length);
+    }
+
+    @Test
+    public void mcuReadsDontWaitForOutputs() throws Exception {
+        // Validated output writes take 100-500ms, MCU reads run on their own thread
+        HardwareFuture<Void> output = micronetHardwareAsync.setOutputState(MicronetHardware.OUTPUT_0, false, true);
+        HardwareFuture<Integer> voltage = micronetHardwareAsync.getAnalogInput(MicronetHardware.kADC_POWER_IN);
+
+        assertTrue(voltage.get(500, TimeUnit.MILLISECONDS) > 0);
+        output.get(1, TimeUnit.SECONDS);
+    }
+}
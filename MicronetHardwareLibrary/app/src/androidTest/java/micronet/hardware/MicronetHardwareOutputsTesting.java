@@ -47,6 +47,33 @@ public class MicronetHardwareOutputsTesting {
         Log.d(TAG, "allOutputsOn() took " + totalTime + " ms to run");
     }
 
+    @Test
+    public void allOutputsOnAtOnce() {
+        long startTime = System.currentTimeMillis();
+        try {
+            micronetHardware.setOutputStates(0xF, 0xF, true);
+        } catch (MicronetHardwareException e) {
+            Log.e(TAG, e.toString());
+            fail();
+        }
+        long endTime = System.currentTimeMillis();
+
+        long totalTime = endTime - startTime;
+        Log.d(TAG, "allOutputsOnAtOnce() took " + totalTime + " ms to run");
+
+        allOutputsOffAtOnce();
+    }
+
+    @Test
+    public void allOutputsOffAtOnce() {
+        try {
+            micronetHardware.setOutputStates(0xF, 0, true);
+        } catch (MicronetHardwareException e) {
+            Log.e(TAG, e.toString());
+            fail();
+        }
+    }
+
     @Test
     public void allOutputsOff() {
         output0Off();
@@ -130,6 +130,31 @@ public class MicronetHardwareTest {
         assertTrue(returnArray[11] > 2000 && returnArray[11] < 4000);
     }
 
+    @Test
+    public void getAllAnalogInputWithTimeout() {
+        long start = System.nanoTime();
+        int[] returnArray = micronetHardware.getAllAnalogInput(100);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+
+        // The timeout covers all twelve channels, not each of them
+        assertTrue(elapsedMillis < 200);
+        assertEquals(12, returnArray.length);
+        assertTrue(returnArray[8] > 11000 && returnArray[8] < 23000);
+    }
+
+    @Test
+    public void defaultTimeout() {
+        assertEquals(500, micronetHardware.getDefaultTimeout());
+
+        micronetHardware.setDefaultTimeout(200);
+        try {
+            assertEquals(200, micronetHardware.getDefaultTimeout());
+            assertTrue(micronetHardware.getAnalogInput(MicronetHardware.kADC_POWER_IN) > 0);
+        } finally {
+            micronetHardware.setDefaultTimeout(500);
+        }
+    }
+
     @Test
     public void getInputState() {
         int analog_in1 = micronetHardware.getInputState(MicronetHardware.kADC_ANALOG_IN1);
@@ -0,0 +1,67 @@
+package micronet.hardware;
+
+import android.util.Log;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class ResultFileWatcherTest {
+
+    private static final String TAG = "ResultFileWatcherTest";
+
+    @Test
+    public void wakesUpWhenFileIsWritten() throws Exception {
+        final File file = File.createTempFile("result", ".txt");
+        ResultFileWatcher watcher = new ResultFileWatcher(file);
+        watcher.startWatching();
+        try {
+            assertFalse(watcher.await(20));
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(50);
+                        FileOutputStream fileOutputStream = new FileOutputStream(file);
+                        fileOutputStream.write("0\n".getBytes());
+                        fileOutputStream.close();
+                    } catch (Exception e) {
+                        Log.e(TAG, e.toString());
+                    }
+                }
+            }).start();
+
+            long startTime = System.currentTimeMillis();
+            assertTrue(watcher.await(1000));
+            long totalTime = System.currentTimeMillis() - startTime;
+            Log.d(TAG, "Write seen after " + totalTime + " ms");
+            assertTrue(totalTime < 500);
+        } finally {
+            watcher.stopWatching();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void otherFilesAreIgnored() throws Exception {
+        File file = File.createTempFile("result", ".txt");
+        File other = new File(file.getParent(), "other-" + file.getName());
+        ResultFileWatcher watcher = new ResultFileWatcher(file);
+        watcher.startWatching();
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(other);
+            fileOutputStream.write("0\n".getBytes());
+            fileOutputStream.close();
+
+            assertFalse(watcher.await(100));
+        } finally {
+            watcher.stopWatching();
+            file.delete();
+            other.delete();
+        }
+    }
+}
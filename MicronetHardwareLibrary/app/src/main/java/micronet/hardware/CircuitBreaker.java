@@ -0,0 +1,158 @@
+package micronet.hardware;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Circuit breaker around the MCU transport.
+ *
+ * While the iodriver daemon or the MCU doesn't answer, every request would wait out its whole timeout.
+ * After a number of consecutive transport failures the breaker opens and requests fail right away
+ * instead. Once the open period has passed, the next request probes the MCU with a cheap read
+ * (half open); the breaker closes again if the probe succeeds and stays open for another period if it
+ * doesn't. The probe runs within the timeout of the request that makes it.
+ */
+public final class CircuitBreaker {
+
+    /**
+     * State of the breaker.
+     */
+    public enum State {
+        /** Requests go to the MCU. */
+        CLOSED,
+        /** Requests fail without going to the MCU. */
+        OPEN,
+        /** A probe request is checking if the MCU answers again, other requests fail. */
+        HALF_OPEN
+    }
+
+    /**
+     * Cheap request used to check if the MCU answers again.
+     */
+    interface Probe {
+        /**
+         * @param timeoutMillis timeout of the request making the probe, the probe must not wait longer.
+         * @return true if the MCU answered.
+         */
+        boolean probe(int timeoutMillis);
+    }
+
+    /**
+     * Result code of requests rejected while the breaker is open, the same as a connection failure.
+     */
+    static final int REJECTED = -1;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final Probe probe;
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile State state = State.CLOSED;
+    private long openedAt;
+
+    /**
+     * @param failureThreshold consecutive transport failures that open the breaker.
+     * @param openMillis time the breaker stays open before it probes the MCU.
+     * @param probe request used in half open state.
+     */
+    CircuitBreaker(int failureThreshold, long openMillis, Probe probe) {
+        if(failureThreshold < 1){
+            throw new IllegalArgumentException("failureThreshold must be at least 1, not " + failureThreshold);
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openMillis * 1000000L;
+        this.probe = probe;
+    }
+
+    /**
+     * @return The current state of the breaker.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return The number of transport failures in a row, reset by any answer from the MCU.
+     */
+    public int getConsecutiveFailures() {
+        return consecutiveFailures.get();
+    }
+
+    /**
+     * Checks whether a request may go to the MCU. If the open period is over, the calling thread runs the
+     * probe and the request is allowed if the probe succeeds.
+     * @param timeoutMillis timeout of the request, positive.
+     * @return The time left for the request in milliseconds: timeoutMillis, less the time the probe took but
+     * at least 1. 0 if the request has to fail fast.
+     */
+    int allowRequest(int timeoutMillis) {
+        if(state == State.CLOSED){
+            return timeoutMillis;
+        }
+
+        synchronized (this){
+            if(state != State.OPEN){
+                return state == State.CLOSED ? timeoutMillis : 0;
+            }
+            if(System.nanoTime() - openedAt < openNanos){
+                return 0;
+            }
+            state = State.HALF_OPEN;
+        }
+
+        // Probe outside the lock, other threads fail fast while it runs
+        long start = System.nanoTime();
+        boolean answered = false;
+        try {
+            answered = probe.probe(timeoutMillis);
+        } finally {
+            synchronized (this){
+                if(answered){
+                    consecutiveFailures.set(0);
+                    state = State.CLOSED;
+                }else{
+                    open();
+                }
+            }
+        }
+        if(!answered){
+            return 0;
+        }
+        long probeMillis = (System.nanoTime() - start) / 1000000L;
+        return (int) Math.max(1, timeoutMillis - probeMillis);
+    }
+
+    /**
+     * Records the result of a request that was allowed.
+     * @param resultCode result code of the native call.
+     * @return resultCode, so calls can be wrapped.
+     */
+    int record(int resultCode) {
+        if(isTransportFailure(resultCode)){
+            if(consecutiveFailures.incrementAndGet() >= failureThreshold){
+                synchronized (this){
+                    if(state == State.CLOSED){
+                        open();
+                    }
+                }
+            }
+        }else if(consecutiveFailures.get() != 0){
+            // Any other result means the MCU answered
+            consecutiveFailures.set(0);
+        }
+        return resultCode;
+    }
+
+    /** Must hold the lock. */
+    private void open() {
+        openedAt = System.nanoTime();
+        state = State.OPEN;
+    }
+
+    /**
+     * Connection, tx and rx failures. A tx failure is what a daemon that isn't running gives, an rx
+     * failure a daemon or MCU that doesn't answer.
+     */
+    private static boolean isTransportFailure(int resultCode) {
+        return resultCode == -1 || resultCode == -2 || resultCode == -3;
+    }
+}
@@ -0,0 +1,102 @@
+package micronet.hardware;
+
+import android.os.Build;
+
+/**
+ * Facts about the device that don't change while it runs: MCU and FPGA versions and the serial number.
+ * Get it with {@link MicronetHardware#getDeviceInfo()}, which reads the MCU once and keeps the result.
+ */
+public final class DeviceInfo {
+
+    private final int[] mcuVersion;
+    private final String mcuVersionString;
+    private final int fpgaVersion;
+    private final String fpgaVersionString;
+    private final String serialNumber;
+    private final int generation;
+
+    /**
+     * @param mcuVersion the four bytes of the MCU version, in order.
+     * @param generation transport generation the versions were read in.
+     */
+    DeviceInfo(int[] mcuVersion, int fpgaVersion, int generation) {
+        this.mcuVersion = mcuVersion.clone();
+        StringBuilder version = new StringBuilder(16);
+        for(int i = 0; i < mcuVersion.length; i++){
+            if(i > 0){
+                version.append('.');
+            }
+            version.append(Integer.toHexString(mcuVersion[i]).toUpperCase());
+        }
+        this.mcuVersionString = version.toString();
+        this.fpgaVersion = fpgaVersion;
+        this.fpgaVersionString = Integer.toHexString(fpgaVersion);
+        this.serialNumber = Build.SERIAL;
+        this.generation = generation;
+    }
+
+    /**
+     * @return MCU version Ex: "A.1.2.0", the same as {@link MicronetHardware#getMcuVersion()}.
+     */
+    public String getMcuVersion() {
+        return mcuVersionString;
+    }
+
+    /**
+     * @return First part of the MCU version, 0xA for "A.1.2.0".
+     */
+    public int getMcuVersionMajor() {
+        return mcuVersion[0];
+    }
+
+    /**
+     * @return Second part of the MCU version, 1 for "A.1.2.0".
+     */
+    public int getMcuVersionMinor() {
+        return mcuVersion[1];
+    }
+
+    /**
+     * @return Third part of the MCU version, 2 for "A.1.2.0".
+     */
+    public int getMcuVersionBuild() {
+        return mcuVersion[2];
+    }
+
+    /**
+     * @return Last part of the MCU version, 0 for "A.1.2.0".
+     */
+    public int getMcuVersionRevision() {
+        return mcuVersion[3];
+    }
+
+    /**
+     * @return FPGA version Ex: 0x41000002.
+     */
+    public int getFpgaVersion() {
+        return fpgaVersion;
+    }
+
+    /**
+     * @return FPGA version as hex Ex: "41000002", the same as {@link MicronetHardware#getFpgaVersion()}.
+     */
+    public String getFpgaVersionString() {
+        return fpgaVersionString;
+    }
+
+    /**
+     * @return Serial number of the device, see {@link Info#GetSerialNumber()}.
+     */
+    public String getSerialNumber() {
+        return serialNumber;
+    }
+
+    int getGeneration() {
+        return generation;
+    }
+
+    @Override
+    public String toString() {
+        return "MCU " + mcuVersionString + ", FPGA " + fpgaVersionString + ", serial " + serialNumber;
+    }
+}
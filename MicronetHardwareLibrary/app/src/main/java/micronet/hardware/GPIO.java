@@ -2,12 +2,9 @@ package micronet.hardware;
 
 import android.app.ActivityManager.RunningTaskInfo;
 import android.os.Environment;
-import android.support.annotation.NonNull;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
@@ -15,13 +12,49 @@ import java.io.IOException;
 public class GPIO {
 
     public static final String TAG = "GPIO";
+
+    /**
+     * Where the gpio sysfs interface is mounted. Only changed to point at a fake tree when running on a host.
+     */
+    private static volatile String sysfsRoot = "/sys/class/gpio";
+
+    /**
+     * Time a validated output write waits for the script's result and for op.se_dom_ex to finish.
+     */
+    private static final long VALIDATION_TIMEOUT_MILLIS = 440;
+
+    /**
+     * Longest wait between checks of the result file in case its write isn't reported.
+     */
+    private static final long RESULT_RECHECK_MILLIS = 10;
+
+    /**
+     * Where output scripts and their result file are written, null for external storage. Only changed to
+     * point at a temporary folder when running on a host, the script runner then sees the same path.
+     */
+    private static volatile File scriptDir = null;
+
     protected int gpioNumber;
 
+    static void setScriptDir(File dir){
+        scriptDir = dir;
+    }
+
+    static void setSysfsRoot(String root){
+        sysfsRoot = root;
+        // Open value files belong to the old tree
+        GpioRegistry.closeAll();
+    }
+
+    static String getSysfsRoot(){
+        return sysfsRoot;
+    }
+
     protected GPIO(int gpioNum){
         this.gpioNumber = gpioNum;
 
         // If GPIO hasn't already been exported then export it
-        File tempFile = new File("/sys/class/gpio/gpio"+gpioNum+"/value");
+        File tempFile = new File(sysfsRoot + "/gpio" + gpioNum + "/value");
         if(!tempFile.exists()){
             // Export GPIO
             exportGPIO();
@@ -30,7 +63,7 @@ public class GPIO {
 
     private void exportGPIO(){
         try {
-            File file = new File("/sys/class/gpio/export");
+            File file = new File(sysfsRoot + "/export");
             FileOutputStream fileOutputStream = new FileOutputStream(file);
             fileOutputStream.write(String.valueOf(gpioNumber).getBytes());
             fileOutputStream.flush();
@@ -41,168 +74,233 @@ public class GPIO {
     }
 
     protected int getValue() {
-        try {
-            File file = new File("/sys/class/gpio/gpio"+gpioNumber+"/value");
+        return getValue(gpioNumber);
+    }
 
-            byte[] b = new byte[1];
-            FileInputStream fileInputStream = new FileInputStream(file);
-            int bytesRead = fileInputStream.read(b);
-            fileInputStream.close();
+    /**
+     * Reads a gpio through its open value file, see {@link GpioRegistry}. Exports the gpio if needed.
+     * @return 1 or 0, -1 on error.
+     */
+    static int getValue(int gpioNumber) {
+        int value = GpioRegistry.read(gpioNumber);
+        if(value < 0){
+            Log.e(TAG, "Error getting GPIO value.");
+        }
+        return value;
+    }
 
-            String value = new String(b);
+    /**
+     * Sets which edges of an input gpio wake up a poll() on its value file: "none", "rising", "falling" or
+     * "both". Exports the gpio if needed.
+     */
+    static void setEdge(int gpioNumber, String edge) throws IOException {
+        File value = new File(sysfsRoot + "/gpio" + gpioNumber + "/value");
+        if(!value.exists()){
+            new GPIO(gpioNumber);
+        }
 
-            return Integer.valueOf(String.valueOf(value));
-        }catch (Exception e){
-            Log.e(this.toString(), e.getMessage());
+        FileOutputStream fileOutputStream = new FileOutputStream(sysfsRoot + "/gpio" + gpioNumber + "/edge");
+        try {
+            fileOutputStream.write(edge.getBytes());
+        } finally {
+            fileOutputStream.close();
         }
-        Log.e(TAG, "Error getting GPIO value.");
-        return -1;
     }
 
     protected boolean setValue(int gpioNum, boolean state, boolean validateOutputStateAfterSet) {
-        int gpioState = state ? 1: 0;
+        return setValues("outputs" + gpioNum + ".sh", gpioNum, 1, state ? 1 : 0, validateOutputStateAfterSet) == 0;
+    }
+
+    /**
+     * Sets several gpio outputs with one shell script run through op.se_dom_ex, instead of one script per
+     * output. Bit i of mask selects gpio firstGpio + i and the same bit of values is its state.
+     *
+     * @return Mask of the selected outputs that failed, 0 on success. Without validation the script's
+     * results aren't checked, only writing and starting it.
+     */
+    static int setValues(int firstGpio, int mask, int values, boolean validateOutputStateAfterSet) {
+        return setValues("outputs.sh", firstGpio, mask, values, validateOutputStateAfterSet);
+    }
 
+    private static int setValues(String scriptName, int firstGpio, int mask, int values, boolean validateOutputStateAfterSet) {
         try {
-            // getExternalStorageDirectory() points to /storage/emulated/0/ which actually ends up in /mnt/shell/emulated/0/
-            String fileString =  Environment.getExternalStorageDirectory() + "/outputs" + gpioNum + ".sh";
+            File dir = scriptDir != null ? scriptDir : Environment.getExternalStorageDirectory();
+            String fileString =  dir + "/" + scriptName;
             File file = new File(fileString);
-            File resultFile = new File(Environment.getExternalStorageDirectory() + "/result.txt");
+            File resultFile = new File(dir + "/result.txt");
 
-            // If there is an error deleting old files then return false
+            // If there is an error deleting old files then fail
             if (!deleteOldFiles(validateOutputStateAfterSet, file, resultFile)) {
-                return false;
+                return mask;
             }
 
             // Write shell script to file
-            writeShellScript(gpioNum, validateOutputStateAfterSet, gpioState, fileString);
+            FileOutputStream fileOutputStream = new FileOutputStream(fileString);
+            try {
+                fileOutputStream.write(outputScript(firstGpio, mask, values, validateOutputStateAfterSet).getBytes());
+            } finally {
+                fileOutputStream.close();
+            }
 
-            // Run shell script with op.se_dom_ex
-            Runtime.getRuntime().exec(new String[]{"setprop", "op.se_dom_ex", "/mnt/shell/emulated/0/outputs" + gpioNum + ".sh"});
-//            Log.d(TAG, "setprop op.se_dom_ex");
+            if(!validateOutputStateAfterSet){
+                // Run shell script with op.se_dom_ex
+                return runScript(scriptName) ? 0 : mask;
+            }
 
-            // If you are validating check result file
-            if(validateOutputStateAfterSet){
-                // Sleep initial 40ms
-                Thread.sleep(40);
-
-                // Create state variables
-                boolean resultFileChecked = false;
-                boolean resultCodeChecked = false;
-
-                // Loop a max of 40 times, sleeping for 5ms between iterations, total time of around 440 ms plus overhead
-                for(int i = 0; i < 40; i++){
-
-                    // If result file doesn't exist then continue, if last iteration, then fail
-                    if(!resultFileChecked && !resultFile.exists()){
-//                        Log.e(TAG, "Result file doesn't exist.");
-                        if(i == 39){
-                            return false;
-                        }
-                        Thread.sleep(10);
-                        continue;
-                    }
-
-                    // Set result file checked to true
-                    resultFileChecked = true;
-
-                    // Read and check result code from echo
-                    if(!resultCodeChecked && !checkResultCode(resultFile, gpioNum, state)){
-                        if(i == 39){
-                            return false;
-                        }
-                        Thread.sleep(10);
-                        continue;
-                    }
-
-                    // Set result code checked to true
-                    resultCodeChecked = true;
-
-                    // Check op.se_dom_ex value
-                    if(!checkSeDomExValue()){
-//                        Log.e(TAG, "op.se_dom_ex hasn't finish yet");
-                        if(i == 39){
-                            return false;
-                        }
-                        Thread.sleep(10);
-                        continue;
-                    }
-
-                    // Delete files
-                    boolean deletionResult = resultFile.delete();
-                    boolean deletion = file.delete();
-                    if(!deletion || !deletionResult){
-                        Log.e(TAG, "Error deleting file while setting gpio value.");
-                    }
-
-                    // Result code is 0 and op.se_dom_ex value is also 0
-                    break;
+            // Watch for the result file before starting the script so its write can't be missed
+            ResultFileWatcher watcher = new ResultFileWatcher(resultFile);
+            watcher.startWatching();
+            try {
+                if(!runScript(scriptName)){
+                    return mask;
                 }
+                return awaitResult(watcher, file, resultFile, mask);
+            } finally {
+                watcher.stopWatching();
             }
         } catch (IOException e) {
             Log.e(TAG, e.toString());
-            return false;
+            return mask;
         } catch (InterruptedException e) {
-            Log.e(TAG, "Error while sleeping.");
+            Log.e(TAG, "Interrupted while validating output state.");
+            Thread.currentThread().interrupt();
+            return mask;
+        }
+    }
+
+    /**
+     * Waits for the script to write its result file and for op.se_dom_ex to go back to 0, which means the
+     * script finished. Reacts to the result file as soon as it is written, re-checks it every
+     * RESULT_RECHECK_MILLIS in case the change isn't reported. Once the results are in, the property is
+     * waited for in process, see {@link SystemProperty#waitFor(String, String, int)}.
+     *
+     * @return Mask of the outputs that failed, all of them on timeout.
+     */
+    private static int awaitResult(ResultFileWatcher watcher, File file, File resultFile, int mask) throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + VALIDATION_TIMEOUT_MILLIS * 1000000L;
+        int failed = -1;
+
+        while(true){
+            long remainingMillis = Math.max(0, (deadline - System.nanoTime()) / 1000000L);
+
+            // Read and check result codes once the whole line is written
+            if(failed < 0 && resultFile.exists()){
+                failed = checkResultCodes(resultFile, mask);
+            }
+
+            if(failed >= 0){
+                // op.se_dom_ex goes back to 0 once the script has finished
+                if(!SystemProperty.waitFor("op.se_dom_ex", "0", (int) remainingMillis)){
+                    Log.e(TAG, "Timed out waiting for op.se_dom_ex to finish.");
+                    return mask;
+                }
+
+                // Delete files
+                boolean deletionResult = resultFile.delete();
+                boolean deletion = file.delete();
+                if(!deletion || !deletionResult){
+                    Log.e(TAG, "Error deleting file while setting gpio value.");
+                }
+                return failed;
+            }
+
+            if(remainingMillis == 0){
+                Log.e(TAG, "Timed out waiting for output result file.");
+                return mask;
+            }
+
+            watcher.await(Math.min(remainingMillis, RESULT_RECHECK_MILLIS));
+        }
+    }
+
+    /**
+     * Path of a file in the script folder as the script runner sees it.
+     */
+    private static String runnerPath(String name) {
+        File dir = scriptDir;
+        if(dir != null){
+            return dir + "/" + name;
+        }
+        // getExternalStorageDirectory() points to /storage/emulated/0/ which actually ends up in /mnt/shell/emulated/0/
+        return "/mnt/shell/emulated/0/" + name;
+    }
+
+    private static boolean runScript(String scriptName) {
+        if(!SystemProperty.set("op.se_dom_ex", runnerPath(scriptName))){
+            Log.e(TAG, "Error setting op.se_dom_ex.");
+            return false;
         }
         return true;
     }
 
-    private boolean checkResultCode(File resultFile, int gpioNum, boolean state) throws IOException{
-        // Read result code
-        char[] charBuffer = new char[8];
+    /**
+     * Shell script setting the outputs selected by mask. When validating it writes the exit code of every
+     * write to the result file, on one line in gpio order.
+     */
+    static String outputScript(int firstGpio, int mask, int values, boolean validateOutputStateAfterSet) {
+        StringBuilder script = new StringBuilder("#!system/bin/sh\n");
+        StringBuilder results = new StringBuilder("echo");
+        for(int i = 0; i < 32; i++){
+            if((mask & (1 << i)) == 0){
+                continue;
+            }
+            int gpioNum = firstGpio + i;
+            script.append("echo ").append((values >> i) & 1).append(" > sys/class/gpio/gpio").append(gpioNum).append("/value\n");
+            // Only keep the result if validating
+            if(validateOutputStateAfterSet){
+                script.append("r").append(gpioNum).append("=$?\n");
+                results.append(" $r").append(gpioNum);
+            }
+        }
+        if(validateOutputStateAfterSet){
+            script.append(results).append(" > ").append(runnerPath("result.txt")).append("\n");
+        }
+        return script.toString();
+    }
+
+    private static int checkResultCodes(File resultFile, int mask) throws IOException {
+        // Read result codes
+        char[] charBuffer = new char[128];
         FileReader fileReader = new FileReader(resultFile);
         int charsRead = fileReader.read(charBuffer);
         fileReader.close();
         if(charsRead < 1){
             Log.e(TAG, "Error setting gpio value. Bad result file read.");
-            return false;
-        }
-        int resultCode = Integer.valueOf(String.valueOf(charBuffer).replace("\"", "").trim().substring(0, charsRead-1));
-//        Log.d(TAG, "Result from setting gpio " + gpioNum + " " + (state ? "high": "low") + " is: " + resultCode);
-
-        // Make sure result code equal to 0
-        if(resultCode != 0){
-            Log.e(TAG, "Error setting output value. Bad result code: " + resultCode);
-            return false;
-        }else{
-            return true;
+            return -1;
         }
+        return parseResultCodes(new String(charBuffer, 0, charsRead), mask);
     }
 
-    @NonNull
-    private boolean checkSeDomExValue() throws IOException {
-        Process process = Runtime.getRuntime().exec(new String[]{"getprop", "op.se_dom_ex"});
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(process.getInputStream());
-        byte[] byteArr = new byte[8];
-        int bytesRead = bufferedInputStream.read(byteArr);
-        bufferedInputStream.close();
-
-        if(bytesRead < 1){
-            Log.e(TAG,"No bytes read from op.se_dom_ex value in system properties.");
-            return false;
+    /**
+     * @return Mask of the outputs whose result code isn't 0, -1 if the result line is incomplete.
+     */
+    static int parseResultCodes(String result, int mask) {
+        String line = result.replace("\"", "").trim();
+        // The line is written at once, anything else is still being written
+        if(!result.endsWith("\n") || line.isEmpty()){
+            return -1;
         }
 
-        String result = (new String(byteArr, 0 , bytesRead)).replace("\"", "").trim();
-
-//        Log.d(TAG, "Value of op.se_dom_ex: " + result);
-
-        // Return whether the value is 0
-        return result.equalsIgnoreCase("0");
-    }
+        String[] codes = line.split("\\s+");
+        if(codes.length != Integer.bitCount(mask)){
+            return -1;
+        }
 
-    private void writeShellScript(int gpioNum, boolean validateOutputStateAfterSet, int gpioState, String fileString) throws IOException {
-        FileOutputStream fileOutputStream = new FileOutputStream(fileString);
-        fileOutputStream.write("#!system/bin/sh\n".getBytes());
-        fileOutputStream.write(("echo " + gpioState + " > sys/class/gpio/gpio" + gpioNum + "/value\n").getBytes());
-        // Only write result to file if validating
-        if(validateOutputStateAfterSet){
-            fileOutputStream.write(("echo $? > /mnt/shell/emulated/0/result.txt\n").getBytes());
+        int failed = 0;
+        int code = 0;
+        for(int i = 0; i < 32; i++){
+            if((mask & (1 << i)) == 0){
+                continue;
+            }
+            if(!codes[code++].equals("0")){
+                Log.e(TAG, "Error setting output value. Bad result code: " + codes[code - 1]);
+                failed |= 1 << i;
+            }
         }
-        fileOutputStream.flush();
-        fileOutputStream.close();
+        return failed;
     }
 
-    private boolean deleteOldFiles(boolean validateOutputStateAfterSet, File file, File resultFile) {
+    private static boolean deleteOldFiles(boolean validateOutputStateAfterSet, File file, File resultFile) {
         // Delete existing shell script
         if(file.exists()){
             boolean result = file.delete();
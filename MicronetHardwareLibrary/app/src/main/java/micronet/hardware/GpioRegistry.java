@@ -0,0 +1,194 @@
+package micronet.hardware;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Open gpio value files, one per gpio for the life of the process.
+ *
+ * Reading a sysfs attribute from offset 0 makes the kernel produce its current value again, so an open
+ * value file is re-read with a positional read into a buffer allocated once: one syscall and no garbage
+ * per read, instead of open, read and close plus parsing.
+ */
+final class GpioRegistry {
+
+    private static final String TAG = "GpioRegistry";
+
+    /**
+     * Handles indexed by gpio number, grown under the lock and read without it.
+     */
+    private static volatile Handle[] handles = new Handle[0];
+
+    private static final Object lock = new Object();
+
+    private GpioRegistry(){}
+
+    /**
+     * Open value file of one gpio.
+     */
+    static final class Handle {
+        private final int gpioNumber;
+        private final RandomAccessFile file;
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(2);
+
+        private Handle(int gpioNumber, RandomAccessFile file) {
+            this.gpioNumber = gpioNumber;
+            this.file = file;
+            this.channel = file.getChannel();
+        }
+
+        /**
+         * Opens a value file outside the registry, exporting the gpio if needed. Used where a reader needs
+         * its own open file, ex: polling for edges, since every read of an open sysfs file acknowledges
+         * pending edges on it.
+         */
+        static Handle open(int gpioNumber) throws IOException {
+            String root = GPIO.getSysfsRoot();
+            File value = new File(root + "/gpio" + gpioNumber + "/value");
+            if(!value.exists()){
+                export(root, gpioNumber);
+            }
+            return new Handle(gpioNumber, new RandomAccessFile(value, "r"));
+        }
+
+        /**
+         * @return 1 or 0, -1 if the file could not be read or doesn't hold a gpio value.
+         */
+        synchronized int read() throws IOException {
+            buffer.clear();
+            if(channel.read(buffer, 0) < 1){
+                return -1;
+            }
+            switch(buffer.get(0)){
+                case '1':
+                    return 1;
+                case '0':
+                    return 0;
+                default:
+                    return -1;
+            }
+        }
+
+        int getGpioNumber() {
+            return gpioNumber;
+        }
+
+        FileDescriptor getFileDescriptor() throws IOException {
+            return file.getFD();
+        }
+
+        void close() {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Error closing gpio" + gpioNumber + " value: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the value of a gpio, exporting it and opening its value file on first use.
+     * @return 1 or 0, -1 on error.
+     */
+    static int read(int gpioNumber) {
+        Handle handle = get(gpioNumber);
+        if(handle == null){
+            return -1;
+        }
+
+        try {
+            return handle.read();
+        } catch (IOException e) {
+            // Ex: the gpio was unexported, open it again next time
+            Log.e(TAG, "Error reading gpio" + gpioNumber + " value: " + e.getMessage());
+            remove(handle);
+            return -1;
+        }
+    }
+
+    /**
+     * @return The handle of a gpio, null if its value file can't be opened.
+     */
+    static Handle get(int gpioNumber) {
+        Handle[] current = handles;
+        if(gpioNumber >= 0 && gpioNumber < current.length && current[gpioNumber] != null){
+            return current[gpioNumber];
+        }
+        return open(gpioNumber);
+    }
+
+    /**
+     * Closes every open value file, ex: when the sysfs root changes.
+     */
+    static void closeAll() {
+        synchronized (lock){
+            for(Handle handle : handles){
+                if(handle != null){
+                    handle.close();
+                }
+            }
+            handles = new Handle[0];
+        }
+    }
+
+    private static Handle open(int gpioNumber) {
+        if(gpioNumber < 0){
+            return null;
+        }
+
+        synchronized (lock){
+            Handle[] current = handles;
+            if(gpioNumber < current.length && current[gpioNumber] != null){
+                return current[gpioNumber];
+            }
+
+            Handle handle;
+            try {
+                handle = Handle.open(gpioNumber);
+            } catch (IOException e) {
+                Log.e(TAG, "Error opening gpio" + gpioNumber + " value: " + e.getMessage());
+                return null;
+            }
+
+            Handle[] grown = new Handle[Math.max(current.length, gpioNumber + 1)];
+            System.arraycopy(current, 0, grown, 0, current.length);
+            grown[gpioNumber] = handle;
+            handles = grown;
+            return grown[gpioNumber];
+        }
+    }
+
+    private static void remove(Handle handle) {
+        synchronized (lock){
+            Handle[] current = handles;
+            int gpioNumber = handle.getGpioNumber();
+            if(gpioNumber < current.length && current[gpioNumber] == handle){
+                Handle[] copy = current.clone();
+                copy[gpioNumber] = null;
+                handles = copy;
+            }
+        }
+        handle.close();
+    }
+
+    private static void export(String root, int gpioNumber) {
+        try {
+            FileOutputStream fileOutputStream = new FileOutputStream(root + "/export");
+            try {
+                fileOutputStream.write(String.valueOf(gpioNumber).getBytes());
+            } finally {
+                fileOutputStream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error exporting gpio" + gpioNumber + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package micronet.hardware;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Pending result of an asynchronous hardware operation. It can be waited on like any Future, or given
+ * callbacks that run once the operation completes.
+ */
+public class HardwareFuture<V> extends FutureTask<V> {
+
+    /**
+     * Callback for the result of an asynchronous hardware operation.
+     */
+    public interface Callback<V> {
+
+        /**
+         * Called with the result when the operation succeeds. Operations without a result pass null.
+         */
+        void onSuccess(V result);
+
+        /**
+         * Called when the operation fails or is cancelled. The error is usually a MicronetHardwareException.
+         */
+        void onFailure(Throwable error);
+    }
+
+    /**
+     * Runs callbacks on the thread that completes the future.
+     */
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private final List<Runnable> pending = new ArrayList<Runnable>();
+    private boolean completed = false;
+
+    /**
+     * Body of futures completed with {@link #succeed(Object)} or {@link #fail(Throwable)}, never run.
+     */
+    private static final Callable<Object> COMPLETED_EXTERNALLY = new Callable<Object>() {
+        @Override
+        public Object call() {
+            throw new IllegalStateException("Completed with succeed() or fail()");
+        }
+    };
+
+    HardwareFuture(Callable<V> callable) {
+        super(callable);
+    }
+
+    /**
+     * Creates a future that the library completes itself with {@link #succeed(Object)} or
+     * {@link #fail(Throwable)}, ex: once a coalesced write is applied.
+     */
+    @SuppressWarnings("unchecked")
+    HardwareFuture() {
+        super((Callable<V>) COMPLETED_EXTERNALLY);
+    }
+
+    /**
+     * Completes the future with a result, unless it has completed or been cancelled already.
+     */
+    void succeed(V result) {
+        set(result);
+    }
+
+    /**
+     * Completes the future with an error, unless it has completed or been cancelled already.
+     */
+    void fail(Throwable error) {
+        setException(error);
+    }
+
+    /**
+     * Adds a callback that runs on the thread completing the operation. Keep it short, other operations
+     * wait behind it. If the operation has already completed the callback runs right away.
+     * @return this future.
+     */
+    public HardwareFuture<V> addCallback(Callback<V> callback) {
+        return addCallback(callback, DIRECT);
+    }
+
+    /**
+     * Adds a callback that runs on the given executor, for example one posting to the main thread.
+     * @return this future.
+     */
+    public HardwareFuture<V> addCallback(final Callback<V> callback, final Executor executor) {
+        Runnable dispatch = new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(callback);
+                    }
+                });
+            }
+        };
+
+        synchronized (pending) {
+            if (!completed) {
+                pending.add(dispatch);
+                return this;
+            }
+        }
+
+        dispatch.run();
+        return this;
+    }
+
+    @Override
+    protected void done() {
+        List<Runnable> callbacks;
+        synchronized (pending) {
+            completed = true;
+            callbacks = new ArrayList<Runnable>(pending);
+            pending.clear();
+        }
+
+        for (Runnable callback : callbacks) {
+            callback.run();
+        }
+    }
+
+    private void deliver(Callback<V> callback) {
+        V result;
+        try {
+            result = get();
+        } catch (ExecutionException e) {
+            callback.onFailure(e.getCause());
+            return;
+        } catch (CancellationException e) {
+            callback.onFailure(e);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            callback.onFailure(e);
+            return;
+        }
+        callback.onSuccess(result);
+    }
+}
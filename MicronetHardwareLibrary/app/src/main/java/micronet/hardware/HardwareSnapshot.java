@@ -0,0 +1,83 @@
+package micronet.hardware;
+
+/**
+ * Immutable state of the analog inputs, input pins and power up reason, read together at one point in
+ * time. Get one with {@link MicronetHardware#getSnapshot(int)}.
+ *
+ * Values follow the conventions of the matching MicronetHardware calls, -1 where a value couldn't be read.
+ */
+public final class HardwareSnapshot {
+
+    private final long timestampNanos;
+    private final int[] analogInputs;
+    private final int[] inputStates;
+    private final int powerUpIgnitionState;
+
+    /**
+     * Takes ownership of the arrays.
+     */
+    HardwareSnapshot(long timestampNanos, int[] analogInputs, int[] inputStates, int powerUpIgnitionState) {
+        this.timestampNanos = timestampNanos;
+        this.analogInputs = analogInputs;
+        this.inputStates = inputStates;
+        this.powerUpIgnitionState = powerUpIgnitionState;
+    }
+
+    /**
+     * @return When reading the snapshot started, in the {@link System#nanoTime()} time base. Every value
+     * is at least this recent.
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return Time since {@link #getTimestampNanos()} in milliseconds.
+     */
+    public long getAgeMillis() {
+        return (System.nanoTime() - timestampNanos) / 1000000L;
+    }
+
+    /**
+     * @return Voltage of an analog input in mV, see {@link MicronetHardware#getAnalogInput(int)}. -1 for
+     * an invalid inputType.
+     */
+    public int getAnalogInput(int inputType) {
+        if(inputType < 0 || inputType >= analogInputs.length){
+            return -1;
+        }
+        return analogInputs[inputType];
+    }
+
+    /**
+     * @return A copy of all analog inputs, see {@link MicronetHardware#getAllAnalogInput()}.
+     */
+    public int[] getAllAnalogInput() {
+        return analogInputs.clone();
+    }
+
+    /**
+     * @return State of an input pin, see {@link MicronetHardware#getInputState(int)}. -1 for an invalid
+     * inputType.
+     */
+    public int getInputState(int inputType) {
+        if(inputType < 0 || inputType >= inputStates.length){
+            return -1;
+        }
+        return inputStates[inputType];
+    }
+
+    /**
+     * @return A copy of all input pin states, see {@link MicronetHardware#getAllPinInState()}.
+     */
+    public int[] getAllPinInState() {
+        return inputStates.clone();
+    }
+
+    /**
+     * @return See {@link MicronetHardware#getPowerUpIgnitionState()}.
+     */
+    public int getPowerUpIgnitionState() {
+        return powerUpIgnitionState;
+    }
+}
@@ -0,0 +1,17 @@
+package micronet.hardware;
+
+/**
+ * Listener for changes of the automotive inputs, see {@link MicronetHardware#addInputListener(int, InputListener)}.
+ */
+public interface InputListener {
+
+    /**
+     * Called on the library's input thread when an input changes. Keep it short, other listeners wait
+     * behind it.
+     *
+     * @param inputType the input that changed, ex: {@link MicronetHardware#kADC_GPIO_IN1}.
+     * @param state the new state, 1 if HIGH, 0 if LOW.
+     * @param timestampNanos when the change was seen, in the {@link System#nanoTime()} time base.
+     */
+    void onInputChanged(int inputType, int state, long timestampNanos);
+}
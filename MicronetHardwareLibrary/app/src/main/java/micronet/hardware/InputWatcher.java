@@ -0,0 +1,259 @@
+package micronet.hardware;
+
+import android.util.Log;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches the input gpios for changes with one thread.
+ *
+ * Every watched input has edge set to both and its own open value file, apart from the ones in
+ * {@link GpioRegistry}. The thread blocks in an {@link EdgeWaiter} until the kernel signals an edge on one
+ * of them, then re-reads the watched inputs and calls the listeners of those that changed. It only runs
+ * while there are listeners.
+ */
+final class InputWatcher {
+
+    private static final String TAG = "InputWatcher";
+
+    /** Input gpios, see MicronetHardware.getInputState(). */
+    static final int FIRST_INPUT_GPIO = 692;
+    static final int INPUT_COUNT = 8;
+
+    /**
+     * Blocks the watcher thread until an edge is signalled, on a device {@link PollEdgeWaiter}.
+     */
+    interface EdgeWaiter {
+
+        /**
+         * Waits until one of the value files may have changed or {@link #wake()} is called. Can return
+         * early, the watcher then finds nothing changed.
+         */
+        void await(FileDescriptor[] valueFiles) throws IOException;
+
+        /**
+         * Makes a pending or the next {@link #await(FileDescriptor[])} return. Called from other threads
+         * when the watched inputs change.
+         */
+        void wake();
+    }
+
+    /**
+     * State of one watched input, only touched by the watcher thread once published.
+     */
+    private static final class Watch {
+        final int inputType;
+        final GpioRegistry.Handle handle;
+        final FileDescriptor valueFile;
+        final CopyOnWriteArrayList<InputListener> listeners = new CopyOnWriteArrayList<InputListener>();
+        int state;
+
+        Watch(int inputType, GpioRegistry.Handle handle, FileDescriptor valueFile, int state) {
+            this.inputType = inputType;
+            this.handle = handle;
+            this.valueFile = valueFile;
+            this.state = state;
+        }
+    }
+
+    /**
+     * Immutable set of watched inputs, replaced when an input gets its first or loses its last listener.
+     */
+    private static final class Watches {
+        static final Watches NONE = new Watches(new Watch[0]);
+
+        final Watch[] watches;
+        final FileDescriptor[] valueFiles;
+
+        Watches(Watch[] watches) {
+            this.watches = watches;
+            this.valueFiles = new FileDescriptor[watches.length];
+            for(int i = 0; i < watches.length; i++){
+                valueFiles[i] = watches[i].valueFile;
+            }
+        }
+    }
+
+    private final EdgeWaiter waiter;
+    private final Object lock = new Object();
+
+    private volatile Watches current = Watches.NONE;
+    private Thread thread;
+
+    InputWatcher(EdgeWaiter waiter) {
+        this.waiter = waiter;
+    }
+
+    /**
+     * Adds a listener to an input, the first one of an input sets its edge and starts watching it.
+     * @throws IOException if the input gpio couldn't be set up.
+     */
+    void addListener(int inputType, InputListener listener) throws IOException {
+        synchronized (lock){
+            Watch watch = find(inputType);
+            if(watch == null){
+                watch = open(inputType);
+                publish(with(watch));
+            }
+            watch.listeners.addIfAbsent(listener);
+
+            if(thread == null){
+                thread = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        watch();
+                    }
+                }, "MicronetHardware-inputs");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /**
+     * Removes a listener, an input without listeners is no longer watched.
+     */
+    void removeListener(int inputType, InputListener listener) {
+        synchronized (lock){
+            Watch watch = find(inputType);
+            if(watch == null || !watch.listeners.remove(listener) || !watch.listeners.isEmpty()){
+                return;
+            }
+            publish(without(watch));
+            watch.handle.close();
+        }
+    }
+
+    /**
+     * @return true while the watcher thread runs.
+     */
+    boolean isRunning() {
+        synchronized (lock){
+            return thread != null;
+        }
+    }
+
+    private Watch open(int inputType) throws IOException {
+        int gpioNumber = FIRST_INPUT_GPIO + inputType;
+        GPIO.setEdge(gpioNumber, "both");
+
+        GpioRegistry.Handle handle = GpioRegistry.Handle.open(gpioNumber);
+        try {
+            // Reading also acknowledges edges from before, the first wait only returns on a new one
+            return new Watch(inputType, handle, handle.getFileDescriptor(), handle.read());
+        } catch (IOException e) {
+            handle.close();
+            throw e;
+        }
+    }
+
+    private Watch find(int inputType) {
+        for(Watch watch : current.watches){
+            if(watch.inputType == inputType){
+                return watch;
+            }
+        }
+        return null;
+    }
+
+    private Watches with(Watch added) {
+        Watch[] watches = new Watch[current.watches.length + 1];
+        System.arraycopy(current.watches, 0, watches, 0, current.watches.length);
+        watches[watches.length - 1] = added;
+        return new Watches(watches);
+    }
+
+    private Watches without(Watch removed) {
+        Watch[] watches = new Watch[current.watches.length - 1];
+        int i = 0;
+        for(Watch watch : current.watches){
+            if(watch != removed){
+                watches[i++] = watch;
+            }
+        }
+        return new Watches(watches);
+    }
+
+    private void publish(Watches watches) {
+        current = watches;
+        waiter.wake();
+    }
+
+    private void watch() {
+        while(true){
+            Watches watches;
+            synchronized (lock){
+                watches = current;
+                if(watches.watches.length == 0){
+                    thread = null;
+                    return;
+                }
+            }
+
+            try {
+                waiter.await(watches.valueFiles);
+            } catch (IOException e) {
+                Log.e(TAG, "Error waiting for input edges: " + e.getMessage());
+                if(!pause()){
+                    return;
+                }
+                continue;
+            }
+
+            long timestamp = System.nanoTime();
+            for(Watch watch : watches.watches){
+                dispatch(watch, timestamp);
+            }
+        }
+    }
+
+    private void dispatch(Watch watch, long timestamp) {
+        int state;
+        try {
+            state = watch.handle.read();
+        } catch (IOException e) {
+            // Closed if the input lost its listeners meanwhile
+            if(find(watch.inputType) == watch){
+                Log.e(TAG, "Error reading input " + watch.inputType + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        int previous = watch.state;
+        if(state < 0 || state == previous){
+            return;
+        }
+        watch.state = state;
+
+        // Not a transition if the previous state couldn't be read
+        if(previous < 0){
+            return;
+        }
+
+        for(InputListener listener : watch.listeners){
+            try {
+                listener.onInputChanged(watch.inputType, state, timestamp);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Input listener failed", e);
+            }
+        }
+    }
+
+    /**
+     * Waits a bit before retrying after an error, so a broken poll doesn't spin.
+     * @return false if the thread was interrupted and should stop.
+     */
+    private boolean pause() {
+        try {
+            Thread.sleep(1000);
+            return true;
+        } catch (InterruptedException e) {
+            synchronized (lock){
+                thread = null;
+            }
+            return false;
+        }
+    }
+}
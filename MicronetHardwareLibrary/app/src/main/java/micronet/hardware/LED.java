@@ -57,9 +57,11 @@ public class LED {
         this.led = led;
     }
 
+    /**
+     * Sets this LED through the shared MicronetHardware, so its LED cache sees the write.
+     */
     protected void setValue(int rgb, int brightness) throws MicronetHardwareException{
-        MControl mc = new MControl();
-        mc.set_led_status(led, brightness, rgb);
+        MicronetHardware.getInstance().setLedStatus(led, brightness, rgb);
     }
 
     /**
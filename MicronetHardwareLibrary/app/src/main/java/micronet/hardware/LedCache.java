@@ -0,0 +1,183 @@
+package micronet.hardware;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * Shadow copy of the three LEDs, kept in step with every write the library sends.
+ *
+ * A write that sets an LED to what it already shows isn't sent, and reads are answered from the copy
+ * without going to the MCU. An LED is read from the MCU the first time it is needed, since it may have
+ * been set before the process started, and again once the connection to the MCU was replaced (see
+ * {@link micronet.hardware.transport.MapiTransport#getGeneration()}) or after a failed write. Writes by
+ * other processes aren't seen, {@link MicronetHardware#verifyLedStatus(LED)} reads the MCU to catch them.
+ */
+public final class LedCache {
+
+    /**
+     * Sends and reads LED states.
+     */
+    interface Mcu {
+        void write(int led, int brightness, int rgb) throws MicronetHardwareException;
+
+        /** @return brightness, red, green and blue. */
+        int[] read(int led, int timeoutMillis) throws MicronetHardwareException;
+    }
+
+    /**
+     * What an LED shows, as of a transport generation.
+     */
+    private static final class Shadow {
+        final int brightness;
+        final int rgb;
+        final int generation;
+
+        Shadow(int brightness, int rgb, int generation) {
+            this.brightness = brightness;
+            this.rgb = rgb & 0xFFFFFF;
+            this.generation = generation;
+        }
+
+        boolean shows(int brightness, int rgb) {
+            return this.brightness == brightness && this.rgb == (rgb & 0xFFFFFF);
+        }
+    }
+
+    private static final int LED_COUNT = 3;
+
+    private final Mcu mcu;
+    private final AtomicReferenceArray<Shadow> shadows = new AtomicReferenceArray<Shadow>(LED_COUNT);
+
+    /**
+     * Orders writes and reads from the MCU per LED, so the shadow follows the order the MCU saw.
+     */
+    private final Object[] locks = {new Object(), new Object(), new Object()};
+
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong suppressedWrites = new AtomicLong();
+    private final AtomicLong cachedReads = new AtomicLong();
+    private final AtomicLong mismatches = new AtomicLong();
+
+    LedCache(Mcu mcu) {
+        this.mcu = mcu;
+    }
+
+    /**
+     * @return The number of LED writes sent to the MCU.
+     */
+    public long getWrites() {
+        return writes.get();
+    }
+
+    /**
+     * @return The number of LED writes not sent because the LED already showed that state.
+     */
+    public long getSuppressedWrites() {
+        return suppressedWrites.get();
+    }
+
+    /**
+     * @return The number of LED reads answered without going to the MCU.
+     */
+    public long getCachedReads() {
+        return cachedReads.get();
+    }
+
+    /**
+     * @return The number of verifications that found the MCU showing something else than the copy.
+     */
+    public long getMismatches() {
+        return mismatches.get();
+    }
+
+    /**
+     * Sends the state unless the LED already shows it.
+     */
+    void set(int led, int brightness, int rgb, int generation) throws MicronetHardwareException {
+        Shadow shadow = shadows.get(led);
+        if(shadow != null && shadow.generation == generation && shadow.shows(brightness, rgb)){
+            suppressedWrites.incrementAndGet();
+            return;
+        }
+
+        synchronized (locks[led]){
+            shadow = shadows.get(led);
+            if(shadow != null && shadow.generation == generation && shadow.shows(brightness, rgb)){
+                suppressedWrites.incrementAndGet();
+                return;
+            }
+
+            try {
+                mcu.write(led, brightness, rgb);
+                writes.incrementAndGet();
+                shadows.set(led, new Shadow(brightness, rgb, generation));
+            } catch (MicronetHardwareException | RuntimeException e) {
+                // Unknown whether the MCU got it
+                shadows.set(led, null);
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Fills into with what the LED shows, from the copy if it is current.
+     */
+    void get(int led, int timeoutMillis, int generation, LED into) throws MicronetHardwareException {
+        Shadow shadow = shadows.get(led);
+        if(shadow == null || shadow.generation != generation){
+            synchronized (locks[led]){
+                shadow = shadows.get(led);
+                if(shadow == null || shadow.generation != generation){
+                    shadow = read(led, timeoutMillis, generation);
+                    fill(shadow, into);
+                    return;
+                }
+            }
+        }
+        cachedReads.incrementAndGet();
+        fill(shadow, into);
+    }
+
+    /**
+     * Reads the LED from the MCU, replacing the copy, and fills into with it.
+     * @return false if the MCU showed something else than the copy.
+     */
+    boolean verify(int led, int timeoutMillis, int generation, LED into) throws MicronetHardwareException {
+        synchronized (locks[led]){
+            Shadow previous = shadows.get(led);
+            Shadow shadow = read(led, timeoutMillis, generation);
+            fill(shadow, into);
+            if(previous != null && !previous.shows(shadow.brightness, shadow.rgb)){
+                mismatches.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Drops the copy, the next read of each LED goes to the MCU.
+     */
+    void invalidate() {
+        for(int i = 0; i < LED_COUNT; i++){
+            shadows.set(i, null);
+        }
+    }
+
+    /** Must hold the LED's lock. */
+    private Shadow read(int led, int timeoutMillis, int generation) throws MicronetHardwareException {
+        int[] status = mcu.read(led, timeoutMillis);
+        Shadow shadow = new Shadow(status[0], (status[1] << 16) | (status[2] << 8) | status[3], generation);
+        shadows.set(led, shadow);
+        return shadow;
+    }
+
+    private static void fill(Shadow shadow, LED into) {
+        into.BRIGHTNESS = shadow.brightness;
+        into.RED = (shadow.rgb >> 16) & 0xFF;
+        into.GREEN = (shadow.rgb >> 8) & 0xFF;
+        into.BLUE = shadow.rgb & 0xFF;
+    }
+}
@@ -1,36 +1,227 @@
 package micronet.hardware;
 
-import android.renderscript.Allocation.MipmapControl;
 import micronet.hardware.exception.MicronetHardwareException;
+import micronet.hardware.transport.JniTransport;
+import micronet.hardware.transport.MapiCodec;
+import micronet.hardware.transport.MapiTransport;
 
 /**
- * Class to interface with the mctl library.
+ * Class to interface with the MCU. Requests are framed and replies decoded by a MapiCodec, the transport
+ * only moves them (libmctl by default).
+ *
+ * Identical reads made at the same time share one request, see {@link SingleFlight}. Writes always go out.
  */
 public class MControl {
 
-    static {
-        System.loadLibrary("mctl");
-    }
-
-    private native static String[] jniGetMCUVersion();
-    private native static int[] jniGetFPGAVersion();
-    private native static int[] jniGetADCorGPIVoltage(int gpi_num);
-    private native static int[] jniGetLEDStatus(int led_num);
-    private native static int jniSetLEDValue(int led, int brightness, int rgb);
-    private native static int[] jniGetPowerOnThresholdCfg();
-    private native static int jniSetPowerOnThresholdCfg();
-    private native static int[] jniGetPowerOnReason();
-    private native static int jniSetDevicePowerOff(int wait_time);
-    private native static String[] jniGetRTCDateTime();
-    private native static int jniSetRTCDateTime(String dateTime);
-    private native static int[] jniGetRTCCalReg();
-    private native static int jniSetRTCCalReg();
-    private native static int jniGetRTCRegDBG();
-    private native static int jniSetRTCRegDBG();
-    private native static int[] jniCheckRTCBattery();
     private native static void jniSetSysPropPowerCtlShutdown();
-    private native static int jniSetGPIOStateDBG(int gpio_num, int gpio_value);
-    private native static int[] jniGetGPIOStateDBG(int gpio_num);
+
+    /**
+     * Per thread codec and rtc fields, so polling doesn't allocate on every call.
+     */
+    private static final class Scratch {
+        final MapiCodec codec = new MapiCodec();
+        final int[] fields = new int[7];
+    }
+
+    private static final ThreadLocal<Scratch> scratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue() {
+            return new Scratch();
+        }
+    };
+
+    private static final int RTC_FLAGS_ADDRESS = 0x0F;
+
+    /**
+     * Timeout used by calls that don't give their own, the MCU socket timeout before it was configurable.
+     */
+    static final int DEFAULT_TIMEOUT_MILLIS = 500;
+
+    private static volatile int defaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+
+    /**
+     * Sets the timeout of MCU calls that don't give their own. The timeout covers the whole call, all replies
+     * of a multi-channel read have to arrive within it.
+     * @param timeoutMillis timeout in milliseconds, must be positive.
+     */
+    static void setDefaultTimeout(int timeoutMillis){
+        defaultTimeoutMillis = checkTimeout(timeoutMillis);
+    }
+
+    static int getDefaultTimeout(){
+        return defaultTimeoutMillis;
+    }
+
+    /**
+     * Consecutive transport failures after which MCU requests fail fast.
+     */
+    private static final int BREAKER_FAILURE_THRESHOLD = 3;
+
+    /**
+     * Time MCU requests fail fast before the MCU is probed again.
+     */
+    private static final long BREAKER_OPEN_MILLIS = 2000;
+
+    /**
+     * Request number of the MCU and fpga version read of get_device_info(), for SingleFlight keys.
+     */
+    private static final int GET_DEVICE_INFO = 0x200;
+
+    private final MapiTransport transport;
+
+    /**
+     * Identical reads made at the same time share one request to the MCU.
+     */
+    private final SingleFlight reads = new SingleFlight();
+
+    /**
+     * Flights of the polling reads, made up front so polling doesn't allocate: one per adc channel, one
+     * per channel count of the all channel read, and the power on reason.
+     */
+    private final SingleFlight.Slot[] adcSlots = slots(12, 1);
+    private final SingleFlight.Slot[] allAdcSlots = slots(13, 12);
+    private final SingleFlight.Slot powerOnReasonSlot = new SingleFlight.Slot(1);
+
+    private final SingleFlight.IntCall readAdc = new SingleFlight.IntCall() {
+        @Override
+        public int call(int gpi_num, int timeoutMillis) {
+            return read_adc_or_gpi_voltage(gpi_num, timeoutMillis);
+        }
+    };
+
+    private final SingleFlight.ArrayCall readAllAdc = new SingleFlight.ArrayCall() {
+        @Override
+        public void call(int[] voltages, int timeoutMillis) {
+            read_all_adc_or_gpi_voltage(voltages, timeoutMillis);
+        }
+    };
+
+    private final SingleFlight.IntCall readPowerOnReason = new SingleFlight.IntCall() {
+        @Override
+        public int call(int argument, int timeoutMillis) {
+            return read_power_on_reason(timeoutMillis);
+        }
+    };
+
+    /**
+     * Shadow of the LEDs, see LedCache.
+     */
+    private final LedCache leds = new LedCache(new LedCache.Mcu() {
+        @Override
+        public void write(int led, int brightness, int rgb) throws MicronetHardwareException {
+            write_led_status(led, brightness, rgb);
+        }
+
+        @Override
+        public int[] read(final int led, final int timeoutMillis) throws MicronetHardwareException {
+            return reads.execute(SingleFlight.key(MapiCodec.MAPI_GET_LED_STATUS, led, timeoutMillis),
+                    new SingleFlight.Call<int[]>() {
+                        @Override
+                        public int[] call() throws MicronetHardwareException {
+                            return read_led_status(led, timeoutMillis);
+                        }
+                    });
+        }
+    });
+
+    /**
+     * Rtc time anchored to the device clocks, see RtcClock.
+     */
+    private final RtcClock rtcClock = new RtcClock(new RtcClock.Source() {
+        @Override
+        public long readEpochMillis() throws MicronetHardwareException {
+            return read_rtc_epoch_millis();
+        }
+
+        @Override
+        public int getGeneration() {
+            return transport.getGeneration();
+        }
+    }, RtcClock.SYSTEM_CLOCKS);
+
+    /**
+     * Versions read by get_device_info(), null until read or after invalidate_device_info().
+     */
+    private volatile DeviceInfo deviceInfo;
+
+    /**
+     * Guards publishing deviceInfo against invalidate_device_info().
+     */
+    private final Object deviceInfoLock = new Object();
+    /**
+     * Number of invalidate_device_info() calls, a read started before one of them isn't kept.
+     */
+    private int deviceInfoInvalidations;
+
+    /**
+     * Breaker shared by all MCU requests of this MControl, probes with the fpga version read.
+     */
+    private final CircuitBreaker breaker;
+
+    /**
+     * MControl over libmctl and the iodriver socket.
+     */
+    public MControl(){
+        this(JniTransport.getInstance());
+    }
+
+    MControl(final MapiTransport transport){
+        this.transport = transport;
+        this.breaker = new CircuitBreaker(BREAKER_FAILURE_THRESHOLD, BREAKER_OPEN_MILLIS,
+                new CircuitBreaker.Probe() {
+                    @Override
+                    public boolean probe(int timeoutMillis) {
+                        MapiCodec codec = new MapiCodec();
+                        codec.addGetFpgaVersion();
+                        return codec.transfer(transport, Math.min(timeoutMillis, defaultTimeoutMillis)) >= 0;
+                    }
+                });
+    }
+
+    private static SingleFlight.Slot[] slots(int count, int length){
+        SingleFlight.Slot[] slots = new SingleFlight.Slot[count];
+        for(int i = 0; i < count; i++){
+            slots[i] = new SingleFlight.Slot(length);
+        }
+        return slots;
+    }
+
+    CircuitBreaker getCircuitBreaker(){
+        return breaker;
+    }
+
+    SingleFlight getSingleFlight(){
+        return reads;
+    }
+
+    LedCache getLedCache(){
+        return leds;
+    }
+
+    RtcClock getRtcClock(){
+        return rtcClock;
+    }
+
+    /**
+     * Sends the batch framed in codec, unless the breaker is open.
+     * @return SUCCESS, or the first error code.
+     */
+    private int transfer(MapiCodec codec, int timeoutMillis){
+        // A probe made for this request counts against its timeout
+        int remainingMillis = breaker.allowRequest(timeoutMillis);
+        if(remainingMillis == 0){
+            codec.fail(CircuitBreaker.REJECTED);
+            return CircuitBreaker.REJECTED;
+        }
+        return breaker.record(codec.transfer(transport, remainingMillis));
+    }
+
+    private static int checkTimeout(int timeoutMillis){
+        if(timeoutMillis <= 0){
+            throw new IllegalArgumentException("timeoutMillis must be positive, not " + timeoutMillis);
+        }
+        return timeoutMillis;
+    }
 
     /**
      * Gets the MCU version
@@ -38,13 +229,10 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected String get_mcu_version() throws MicronetHardwareException{
-        String[] resultArr = jniGetMCUVersion();
-        int resultCode = Integer.parseInt(resultArr[0]);
-
-        if(resultCode >= 0){
-            return resultArr[1];
-        }else{
-            throw new MicronetHardwareException("Error getting MCU Version", resultCode);
+        try {
+            return get_device_info().getMcuVersion();
+        } catch (MicronetHardwareException e) {
+            throw new MicronetHardwareException("Error getting MCU Version", e.getErrorCode());
         }
     }
 
@@ -54,13 +242,71 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected String get_fpga_version() throws MicronetHardwareException{
-        int[] resultArr = jniGetFPGAVersion();
-        int resultCode = resultArr[0];
+        try {
+            return get_device_info().getFpgaVersionString();
+        } catch (MicronetHardwareException e) {
+            throw new MicronetHardwareException("Error getting FPGA Version", e.getErrorCode());
+        }
+    }
+
+    /**
+     * Gets the MCU and fpga versions, read from the MCU once and kept until the transport reconnects or
+     * {@link #invalidate_device_info()} is called.
+     * @throws MicronetHardwareException if they have to be read and mcu cannot be reached.
+     */
+    protected DeviceInfo get_device_info() throws MicronetHardwareException{
+        // Read the generation first, a reconnect during the read makes the next call read again
+        final int generation = transport.getGeneration();
+        DeviceInfo info = deviceInfo;
+        if(info != null && info.getGeneration() == generation){
+            return info;
+        }
+
+        // Callers that saw a reconnect don't join a read from before it
+        return reads.execute(SingleFlight.key(GET_DEVICE_INFO, generation, defaultTimeoutMillis),
+                new SingleFlight.Call<DeviceInfo>() {
+                    @Override
+                    public DeviceInfo call() throws MicronetHardwareException {
+                        int invalidations;
+                        synchronized (deviceInfoLock){
+                            invalidations = deviceInfoInvalidations;
+                        }
+                        DeviceInfo read = read_device_info(generation);
+                        synchronized (deviceInfoLock){
+                            if(deviceInfoInvalidations == invalidations){
+                                deviceInfo = read;
+                            }
+                        }
+                        return read;
+                    }
+                });
+    }
+
+    /**
+     * Drops the device info kept by {@link #get_device_info()}, the next call reads the MCU again. A read
+     * already in flight isn't kept.
+     */
+    protected void invalidate_device_info(){
+        synchronized (deviceInfoLock){
+            deviceInfoInvalidations++;
+            deviceInfo = null;
+        }
+    }
+
+    private DeviceInfo read_device_info(int generation) throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int mcuSlot = codec.addGetMcuVersion();
+        int fpgaSlot = codec.addGetFpgaVersion();
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode >= 0){
-            return Integer.toHexString(resultArr[1]);
+            int[] mcuVersion = new int[4];
+            for(int i = 0; i < mcuVersion.length; i++){
+                mcuVersion[i] = codec.getUnsignedByte(mcuSlot, i);
+            }
+            return new DeviceInfo(mcuVersion, codec.getInt(fpgaSlot, 0), generation);
         }else{
-            throw new MicronetHardwareException("Error getting FPGA Version", resultCode);
+            throw new MicronetHardwareException("Error getting device info", resultCode);
         }
     }
 
@@ -77,15 +323,19 @@ public class MControl {
     protected void set_led_status(int led, int brightness, int rgb) throws MicronetHardwareException{
 
         // Check the parameters
-        if(led < 0 || led > 2){
-            throw new IllegalArgumentException("led must be between 0 and 2, not " + led);
-        }
+        checkLed(led);
 
         if(brightness < 0 || brightness > 255){
             throw new IllegalArgumentException("brightness must be between 0 and 255, not " + brightness);
         }
 
-        int resultCode = jniSetLEDValue(led, brightness, rgb);
+        leds.set(led, brightness, rgb, transport.getGeneration());
+    }
+
+    private void write_led_status(int led, int brightness, int rgb) throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        codec.addSetLedStatus(led, brightness, rgb);
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode < 0){
             throw new MicronetHardwareException("Error setting LED state", resultCode);
@@ -98,17 +348,76 @@ public class MControl {
      * @return milliVolts
      */
     protected int get_adc_or_gpi_voltage(int gpi_num){
-        int[] resultArr = jniGetADCorGPIVoltage(gpi_num);
-        int resultCode = resultArr[0];
+        return get_adc_or_gpi_voltage(gpi_num, defaultTimeoutMillis);
+    }
+
+    /**
+     * Get GPI or ADC voltage. Response is in milliVolts.
+     * @param gpi_num
+     * @param timeoutMillis time to wait for the MCU before giving up.
+     * @return milliVolts, -1 on error or timeout.
+     */
+    protected int get_adc_or_gpi_voltage(int gpi_num, int timeoutMillis){
+        checkTimeout(timeoutMillis);
+        if(gpi_num < 0 || gpi_num >= adcSlots.length){
+            // Let the MCU answer channels it doesn't have
+            return read_adc_or_gpi_voltage(gpi_num, timeoutMillis);
+        }
+        return reads.execute(adcSlots[gpi_num], gpi_num, timeoutMillis, readAdc);
+    }
+
+    private int read_adc_or_gpi_voltage(int gpi_num, int timeoutMillis){
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetAdcVoltage(gpi_num);
+        int resultCode = transfer(codec, timeoutMillis);
 
         if(resultCode >= 0){
-            return resultArr[1];
+            return codec.getInt(slot, 0);
         }else{
             return -1;
         }
     }
 
 
+    /**
+     * Get GPI or ADC voltages of channels 0 to voltages.length - 1 in a single transaction with the MCU.
+     * Response is in milliVolts.
+     * @param voltages Caller supplied array that receives the voltages, at most 12 channels.
+     * Channels that could not be read are set to -1.
+     */
+    protected void get_all_adc_or_gpi_voltage(int[] voltages){
+        get_all_adc_or_gpi_voltage(voltages, defaultTimeoutMillis);
+    }
+
+    /**
+     * Get GPI or ADC voltages of channels 0 to voltages.length - 1 in a single transaction with the MCU.
+     * Response is in milliVolts.
+     * @param voltages Caller supplied array that receives the voltages, at most 12 channels.
+     * Channels that could not be read, or whose reply didn't arrive in time, are set to -1.
+     * @param timeoutMillis time to wait for all the channels before giving up.
+     */
+    protected void get_all_adc_or_gpi_voltage(int[] voltages, int timeoutMillis){
+        if(voltages.length > 12){
+            throw new IllegalArgumentException("voltages can hold at most 12 channels, not " + voltages.length);
+        }
+
+        checkTimeout(timeoutMillis);
+        reads.execute(allAdcSlots[voltages.length], voltages, timeoutMillis, readAllAdc);
+    }
+
+    private void read_all_adc_or_gpi_voltage(int[] voltages, int timeoutMillis){
+        MapiCodec codec = scratch.get().codec.clear();
+        for(int i = 0; i < voltages.length; i++){
+            codec.addGetAdcVoltage(i);
+        }
+        transfer(codec, timeoutMillis);
+
+        // Channel i is in slot i
+        for(int i = 0; i < voltages.length; i++){
+            voltages[i] = (codec.getResult(i) >= 0) ? codec.getInt(i, 0) : -1;
+        }
+    }
+
     /**
      * To get the reason for the A8/CPU power up, the following command can be sent.
      * @return the Power On Reason, -1 is returned if there is an error getting the power on reason.
@@ -123,11 +432,25 @@ public class MControl {
      *----------------------------------------------------
      */
     protected int get_power_on_reason(){
-        int[] resultArr = jniGetPowerOnReason();
-        int resultCode = resultArr[0];
+        return get_power_on_reason(defaultTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #get_power_on_reason()} with a timeout.
+     * @param timeoutMillis time to wait for the MCU before giving up.
+     */
+    protected int get_power_on_reason(int timeoutMillis){
+        checkTimeout(timeoutMillis);
+        return reads.execute(powerOnReasonSlot, 0, timeoutMillis, readPowerOnReason);
+    }
+
+    private int read_power_on_reason(int timeoutMillis){
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetPowerOnReason();
+        int resultCode = transfer(codec, timeoutMillis);
 
         if(resultCode >= 0){
-            return resultArr[1];
+            return codec.getUnsignedByte(slot, 0);
         }else{
             return -1;
         }
@@ -148,7 +471,9 @@ public class MControl {
             throw new IllegalArgumentException("Parameter wait_time must not be negative");
         }
 
-        int resultCode = jniSetDevicePowerOff(wait_time);
+        MapiCodec codec = scratch.get().codec.clear();
+        codec.addSetDevicePowerOff(wait_time);
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode < 0){
             throw new MicronetHardwareException("Error setting device power off time", resultCode);
@@ -162,16 +487,80 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected String get_rtc_date_time() throws MicronetHardwareException{
-        String[] resultArr = jniGetRTCDateTime();
-        int resultCode = Integer.parseInt(resultArr[0]);
+        return get_rtc_date_time(defaultTimeoutMillis);
+    }
+
+    /**
+     * Same as {@link #get_rtc_date_time()} with a timeout.
+     * @param timeoutMillis time to wait for the MCU before giving up.
+     * @throws MicronetHardwareException if mcu cannot be reached in time.
+     */
+    protected String get_rtc_date_time(final int timeoutMillis) throws MicronetHardwareException{
+        checkTimeout(timeoutMillis);
+        return reads.execute(SingleFlight.key(MapiCodec.MAPI_GET_RTC_DATE_TIME, 0, timeoutMillis),
+                new SingleFlight.Call<String>() {
+                    @Override
+                    public String call() throws MicronetHardwareException {
+                        return read_rtc_date_time(timeoutMillis);
+                    }
+                });
+    }
+
+    private String read_rtc_date_time(int timeoutMillis) throws MicronetHardwareException{
+        Scratch s = scratch.get();
+        MapiCodec codec = s.codec.clear();
+        int slot = codec.addGetRtcDateTime();
+        int resultCode = transfer(codec, timeoutMillis);
+
+        if(resultCode >= 0){
+            codec.getRtcDateTime(slot, s.fields);
+            return formatRtcDateTime(s.fields, 0);
+        }else{
+            throw new MicronetHardwareException("Error getting RTC Date Time", resultCode);
+        }
+    }
+
+    /**
+     * Reads the MCU rtc as milliseconds since the epoch, for RtcClock.
+     * @throws MicronetHardwareException if mcu cannot be reached.
+     */
+    private long read_rtc_epoch_millis() throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetRtcDateTime();
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode >= 0){
-            return resultArr[1];
+            return codec.getRtcEpochMillis(slot);
         }else{
             throw new MicronetHardwareException("Error getting RTC Date Time", resultCode);
         }
     }
 
+    /**
+     * Formats rtc date time fields as "2016-08-25 16:00:55.11".
+     * @param fields year, month, day, hours, minutes, seconds and hundredths starting at offset.
+     */
+    static String formatRtcDateTime(int[] fields, int offset){
+        StringBuilder dateTime = new StringBuilder(22);
+        appendPadded(dateTime, fields[offset], 4).append('-');
+        appendPadded(dateTime, fields[offset + 1], 2).append('-');
+        appendPadded(dateTime, fields[offset + 2], 2).append(' ');
+        appendPadded(dateTime, fields[offset + 3], 2).append(':');
+        appendPadded(dateTime, fields[offset + 4], 2).append(':');
+        appendPadded(dateTime, fields[offset + 5], 2).append('.');
+        appendPadded(dateTime, fields[offset + 6], 2);
+        return dateTime.toString();
+    }
+
+    private static StringBuilder appendPadded(StringBuilder sb, int value, int width){
+        for(int limit = 10; width > 1; width--, limit *= 10){
+            if(value < limit){
+                sb.append('0');
+            }
+        }
+        return sb.append(value);
+    }
+
     /**
      * To set the MCU rtc date and time, send the following command. The command sets the time by using passed in dateTime string.
      * Datetime String must be of the form: "2000-00-00 00:00:00.00".
@@ -186,11 +575,16 @@ public class MControl {
             throw new IllegalArgumentException("Date time must be of the form: 2000-00-00 00:00:00.00");
         }
 
-        int resultCode = jniSetRTCDateTime(dateTime);
+        MapiCodec codec = scratch.get().codec.clear();
+        codec.addSetRtcDateTime(dateTime);
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode < 0){
             throw new MicronetHardwareException("Error setting RTC Date Time", resultCode);
         }
+
+        // The rtc jumped
+        rtcClock.invalidate();
     }
 
     /**
@@ -201,11 +595,22 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected int[] get_rtc_cal_reg() throws MicronetHardwareException{
-        int[] resultArr = jniGetRTCCalReg();
-        int resultCode = resultArr[0];
+        return reads.execute(SingleFlight.key(MapiCodec.MAPI_GET_RTC_CAL_REGISTERS, 0, defaultTimeoutMillis),
+                new SingleFlight.Call<int[]>() {
+                    @Override
+                    public int[] call() throws MicronetHardwareException {
+                        return read_rtc_cal_reg();
+                    }
+                }).clone();
+    }
+
+    private int[] read_rtc_cal_reg() throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetRtcCalRegisters();
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode >= 0){
-            return new int[]{resultArr[1], resultArr[2]};
+            return new int[]{codec.getUnsignedByte(slot, 0), codec.getUnsignedByte(slot, 1)};
         }else{
             throw new MicronetHardwareException("Error getting RTC Cal Reg", resultCode);
         }
@@ -221,18 +626,57 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected LED get_led_status(int led_num) throws MicronetHardwareException{
-        int[] ledState = jniGetLEDStatus(led_num);
-        int resultCode = ledState[0];
+        return get_led_status(led_num, defaultTimeoutMillis);
+    }
 
-        if(resultCode >= 0){
-            LED led = new LED(led_num);
+    /**
+     * Same as {@link #get_led_status(int)} with a timeout.
+     * @param timeoutMillis time to wait for the MCU before giving up.
+     * @throws MicronetHardwareException if mcu cannot be reached in time.
+     */
+    protected LED get_led_status(int led_num, int timeoutMillis) throws MicronetHardwareException{
+        LED led = new LED(led_num);
+        get_led_status(led, timeoutMillis);
+        return led;
+    }
+
+    /**
+     * Fills led with the state of led.led, from the LED cache unless it has to be read.
+     * @throws MicronetHardwareException if it has to be read and mcu cannot be reached in time.
+     */
+    protected void get_led_status(LED led, int timeoutMillis) throws MicronetHardwareException{
+        checkLed(led.led);
+        checkTimeout(timeoutMillis);
+        leds.get(led.led, timeoutMillis, transport.getGeneration(), led);
+    }
 
-            led.RED = ledState[1];
-            led.GREEN = ledState[2];
-            led.BLUE = ledState[3];
-            led.BRIGHTNESS = ledState[4];
+    /**
+     * Reads the state of led.led from the MCU into led and updates the LED cache.
+     * @return false if the MCU showed something else than the cache.
+     * @throws MicronetHardwareException if mcu cannot be reached.
+     */
+    protected boolean verify_led_status(LED led) throws MicronetHardwareException{
+        checkLed(led.led);
+        return leds.verify(led.led, defaultTimeoutMillis, transport.getGeneration(), led);
+    }
 
-            return led;
+    private static void checkLed(int led){
+        if(led < 0 || led > 2){
+            throw new IllegalArgumentException("led must be between 0 and 2, not " + led);
+        }
+    }
+
+    /**
+     * @return brightness, red, green and blue.
+     */
+    private int[] read_led_status(int led_num, int timeoutMillis) throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetLedStatus(led_num);
+        int resultCode = transfer(codec, timeoutMillis);
+
+        if(resultCode >= 0){
+            return new int[]{codec.getUnsignedByte(slot, 0), codec.getUnsignedByte(slot, 1),
+                    codec.getUnsignedByte(slot, 2), codec.getUnsignedByte(slot, 3)};
         }else{
             throw new MicronetHardwareException("Error getting LED status", resultCode);
         }
@@ -245,13 +689,23 @@ public class MControl {
      */
 
     protected String check_rtc_battery() throws MicronetHardwareException{
-        int[] resultArr = jniCheckRTCBattery();
+        return reads.execute(SingleFlight.key(MapiCodec.MAPI_GET_RTC_REG_DBG, RTC_FLAGS_ADDRESS, defaultTimeoutMillis),
+                new SingleFlight.Call<String>() {
+                    @Override
+                    public String call() throws MicronetHardwareException {
+                        return read_rtc_battery();
+                    }
+                });
+    }
 
-        int resultCode = resultArr[0];
+    private String read_rtc_battery() throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetRtcRegister(RTC_FLAGS_ADDRESS);
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode >= 0){
-            int batteryState = resultArr[1];
-            if(batteryState != 0){
+            // The flags register has bit 4 set if the battery is bad or not present
+            if((codec.getUnsignedByte(slot, 0) & 0x10) == 0){
                 return "Good";
             }else{
                 return "Bad";
@@ -270,14 +724,25 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected int[] get_power_on_threshold() throws MicronetHardwareException{
-        int[] resultArr = jniGetPowerOnThresholdCfg();
-        int resultCode = resultArr[0];
+        return reads.execute(SingleFlight.key(MapiCodec.MAPI_GET_POWER_ON_THRESHOLD, 0, defaultTimeoutMillis),
+                new SingleFlight.Call<int[]>() {
+                    @Override
+                    public int[] call() throws MicronetHardwareException {
+                        return read_power_on_threshold();
+                    }
+                }).clone();
+    }
+
+    private int[] read_power_on_threshold() throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetPowerOnThreshold();
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode >= 0){
             int[] powerOnThresholdCfg = new int[3];
-            powerOnThresholdCfg[0] = resultArr[1];
-            powerOnThresholdCfg[1] = resultArr[2];
-            powerOnThresholdCfg[2] = resultArr[3];
+            powerOnThresholdCfg[0] = codec.getUnsignedShort(slot, 0);
+            powerOnThresholdCfg[1] = codec.getUnsignedShort(slot, 2);
+            powerOnThresholdCfg[2] = codec.getUnsignedShort(slot, 4);
             return powerOnThresholdCfg;
         }else{
             throw new MicronetHardwareException("Error getting power on threshold", resultCode);
@@ -286,6 +751,8 @@ public class MControl {
 
     /** Shutdown the device via OS command. */
     protected static void setSysPropPowerCtlShutdown() {
+        // The native lives in libmctl, which JniTransport loads
+        JniTransport.getInstance();
         jniSetSysPropPowerCtlShutdown();
     }
 
@@ -295,8 +762,7 @@ public class MControl {
      * @return The value of that GPIO.
      */
     protected int get_gpio_value(int gpioNumber){
-        GPIO gpio = new GPIO(gpioNumber);
-        return gpio.getValue();
+        return GPIO.getValue(gpioNumber);
     }
 
     /**
@@ -315,6 +781,26 @@ public class MControl {
         }
     }
 
+    /**
+     * Set the GPIO state of several output GPIOs at once.
+     * @param firstGpio The gpio number of bit 0 of mask and values.
+     * @param mask The gpios to set.
+     * @param values The states of the gpios to set.
+     */
+    protected void set_gpio_values(int firstGpio, int mask, int values, boolean validateOutputStateAfterSet) throws MicronetHardwareException{
+        int failed = GPIO.setValues(firstGpio, mask, values, validateOutputStateAfterSet);
+
+        if(failed != 0){
+            StringBuilder gpios = new StringBuilder();
+            for(int i = 0; i < 32; i++){
+                if((failed & (1 << i)) != 0){
+                    gpios.append(gpios.length() == 0 ? "" : ", ").append(firstGpio + i);
+                }
+            }
+            throw new MicronetHardwareException("Error setting gpio state of " + gpios, -5);
+        }
+    }
+
     /**
      * Sets the gpio state of the desired gpio_num, uses the mcu mapping of gpios.
      * @param gpio_num The gpio number you want to get the value of.
@@ -322,7 +808,9 @@ public class MControl {
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
     protected void set_gpio_state_dbg(int gpio_num, int gpio_value) throws MicronetHardwareException{
-        int resultCode = jniSetGPIOStateDBG(gpio_num, gpio_value);
+        MapiCodec codec = scratch.get().codec.clear();
+        codec.addSetGpioState(gpio_num, gpio_value);
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode < 0){
             throw new MicronetHardwareException("Error setting GPIO state", resultCode);
@@ -335,12 +823,23 @@ public class MControl {
      * @return The gpio state.
      * @throws MicronetHardwareException if mcu cannot be reached.
      */
-    protected int get_gpio_state_dbg(int gpio_num) throws MicronetHardwareException{
-        int[] resultArr = jniGetGPIOStateDBG(gpio_num);
-        int resultCode = resultArr[0];
+    protected int get_gpio_state_dbg(final int gpio_num) throws MicronetHardwareException{
+        return reads.execute(SingleFlight.key(MapiCodec.MAPI_GET_MCU_GPIO_STATE_DBG, gpio_num, defaultTimeoutMillis),
+                new SingleFlight.Call<Integer>() {
+                    @Override
+                    public Integer call() throws MicronetHardwareException {
+                        return read_gpio_state_dbg(gpio_num);
+                    }
+                });
+    }
+
+    private int read_gpio_state_dbg(int gpio_num) throws MicronetHardwareException{
+        MapiCodec codec = scratch.get().codec.clear();
+        int slot = codec.addGetGpioState(gpio_num);
+        int resultCode = transfer(codec, defaultTimeoutMillis);
 
         if(resultCode >= 0){
-            return resultArr[1];
+            return codec.getUnsignedByte(slot, 0);
         }else{
             throw new MicronetHardwareException("Error getting GPOutput state", resultCode);
         }
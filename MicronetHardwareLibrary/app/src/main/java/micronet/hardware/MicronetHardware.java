@@ -15,7 +15,10 @@
  */
 package micronet.hardware;
 
+import java.io.IOException;
+
 import micronet.hardware.exception.MicronetHardwareException;
+import micronet.hardware.transport.MapiTransport;
 
 /**
  *  Micronet Hardware specific access class.
@@ -113,13 +116,36 @@ public final class MicronetHardware {
 
     private static MicronetHardware instance = null;
 
-    private static MControl mcontrol = null;
+    private static volatile MControl mcontrol = null;
+
+    private static InputWatcher inputWatcher = null;
 
     /**
-     * Lock to allow multithreaded use of MicronetHardware.
+     * Guards initialization: the singleton, the MControl and the input watcher.
+     *
+     * Requests don't take it. MCU requests don't need a lock since libmctl gives every thread its own
+     * socket, and gpio input reads go through GpioRegistry, which only locks the value file being read.
      */
     private static final Object lock = new Object();
 
+    /**
+     * Serializes output writes, their scripts share result.txt and op.se_dom_ex. Held for up to the
+     * validation timeout of a write, which only holds up other output writes.
+     */
+    private static final Object outputLock = new Object();
+
+    /**
+     * Snapshots of the polled inputs for {@link #getSnapshot(int)}, see SnapshotPublisher.
+     */
+    private final SnapshotPublisher snapshots = new SnapshotPublisher(new SnapshotPublisher.Reader() {
+        @Override
+        public HardwareSnapshot read() {
+            // Values are at least as recent as the time reading started
+            long timestamp = System.nanoTime();
+            return new HardwareSnapshot(timestamp, getAllAnalogInput(), getAllPinInState(), getPowerUpIgnitionState());
+        }
+    });
+
     /**
      * Following singleton design, don't allow instantiation of Micronet Hardware.
      */
@@ -142,6 +168,46 @@ public final class MicronetHardware {
         }
     }
 
+    /**
+     * Sends MCU requests over another transport than libmctl, ex: a LoopbackTransport to run on a host.
+     * Replaces the MControl, its circuit breaker starts closed.
+     */
+    static void setTransport(MapiTransport transport) {
+        synchronized(lock) {
+            mcontrol = new MControl(transport);
+        }
+    }
+
+    /**
+     * Sets the timeout of MCU calls that don't take a timeoutMillis parameter. Defaults to 500ms.
+     *
+     * The timeout covers the whole call: a call that needs several replies from the MCU, like
+     * {@link #getAllAnalogInput()}, gives up once this much time has passed in total.
+     *
+     * @param timeoutMillis timeout in milliseconds, must be positive.
+     */
+    public void setDefaultTimeout(int timeoutMillis) {
+        MControl.setDefaultTimeout(timeoutMillis);
+    }
+
+    /**
+     * @return The timeout in milliseconds of MCU calls that don't take a timeoutMillis parameter.
+     */
+    public int getDefaultTimeout() {
+        return MControl.getDefaultTimeout();
+    }
+
+    /**
+     * Gets the circuit breaker of MCU requests. After 3 requests in a row fail because the iodriver daemon
+     * or the MCU doesn't answer, MCU requests fail right away with error code -1 (or return -1) for 2 seconds,
+     * then the MCU is probed with an fpga version read before requests go through again.
+     *
+     * @return The breaker, use {@link CircuitBreaker#getState()} to check if MCU requests currently go through.
+     */
+    public CircuitBreaker getMcuCircuitBreaker() {
+        return mcontrol.getCircuitBreaker();
+    }
+
     /**
      * Gets analog input state of an A2D input signal.
      *
@@ -150,7 +216,7 @@ public final class MicronetHardware {
      *
      * @return Input state voltage level in mV.
      * If there is an error getting the value, the value
-     * of -1 is returned. There is a 500ms timeout.
+     * of -1 is returned. Times out after the default timeout, see {@link #setDefaultTimeout(int)}.
      *
      * @param inputType to be read. Can be one of the following:
      *  		{@link #kADC_ANALOG_IN1},
@@ -167,16 +233,27 @@ public final class MicronetHardware {
      *          {@link #kADC_CABLE_TYPE}
      */
     public int getAnalogInput(int inputType) {
+        return getAnalogInput(inputType, MControl.getDefaultTimeout());
+    }
+
+    /**
+     * Gets analog input state of an A2D input signal, waiting at most timeoutMillis for the MCU.
+     *
+     * @param inputType to be read, see {@link #getAnalogInput(int)}.
+     * @param timeoutMillis timeout in milliseconds, must be positive.
+     *
+     * @return Input state voltage level in mV. If there is an error getting the value or the MCU
+     * doesn't answer in time, the value of -1 is returned.
+     */
+    public int getAnalogInput(int inputType, int timeoutMillis) {
         int retval = -1;
 
         if(inputType < 0 || inputType > 11){
             return -1;
         }
 
-        synchronized (lock){
-            // Use MControl to get the adc voltage
-            retval = mcontrol.get_adc_or_gpi_voltage(inputType);
-        }
+        // Use MControl to get the adc voltage
+        retval = mcontrol.get_adc_or_gpi_voltage(inputType, timeoutMillis);
 
         return retval;
     }
@@ -187,7 +264,8 @@ public final class MicronetHardware {
      * If the input is below 6000mv then it is considered low. If it is above 7000mv then it is
      * considered high. If it is between 6000-7000mv then it retains its old state.
      *
-     * @return An int[12] of input state voltage level in mV. There is a 500ms timeout.
+     * @return An int[12] of input state voltage level in mV. All channels have to be read within the
+     *       default timeout, see {@link #setDefaultTimeout(int)}.
      *       Order of voltages is this way:
      *          {@link #kADC_ANALOG_IN1},
      *  		{@link #kADC_GPIO_IN1},
@@ -204,25 +282,59 @@ public final class MicronetHardware {
      *
      */
     public int[] getAllAnalogInput() {
+        return getAllAnalogInput(MControl.getDefaultTimeout());
+    }
+
+    /**
+     * Gets analog input state of all A2D input signals, waiting at most timeoutMillis in total for the MCU.
+     *
+     * @param timeoutMillis timeout in milliseconds for all channels together, must be positive.
+     *
+     * @return An int[12] of input state voltage level in mV, in the order of {@link #getAllAnalogInput()}.
+     *       Channels that could not be read before the timeout are -1.
+     */
+    public int[] getAllAnalogInput(int timeoutMillis) {
         int[] retval = new int[12];
 
-        for (int i = 0; i < retval.length; i++){
-            retval[i] = -1;
-        }
+        // All channels are requested in one transaction, channels that fail are -1
+        mcontrol.get_all_adc_or_gpi_voltage(retval, timeoutMillis);
 
-        // Loop through all, if error then return early
-        synchronized (lock){
-            for(int i = 0; i < 12; i++){
-                retval[i] = mcontrol.get_adc_or_gpi_voltage(i);
+        return retval;
+    }
 
-                // If -1 returned, then not able to communicate with mcu properly.
-                if(retval[i] == -1){
-                    return retval;
-                }
-            }
-        }
+    /**
+     * Gets the analog inputs, input pins and power up reason together, from a snapshot shared by every caller.
+     *
+     * If the current snapshot is at most maxAgeMillis old it is returned right away without going to the hardware,
+     * so any number of threads can poll this at little cost. Otherwise one caller reads a new snapshot, which takes
+     * about as long as {@link #getAllAnalogInput()}, {@link #getAllPinInState()} and {@link #getPowerUpIgnitionState()}
+     * together, and callers asking meanwhile wait for it. Use {@link #startSnapshotRefresh(int)} so callers don't
+     * have to wait.
+     *
+     * @param maxAgeMillis Oldest snapshot acceptable, in milliseconds. 0 always reads a new one.
+     *
+     * @return The snapshot, values that couldn't be read are -1.
+     */
+    public HardwareSnapshot getSnapshot(int maxAgeMillis) {
+        return snapshots.get(maxAgeMillis);
+    }
 
-        return retval;
+    /**
+     * Refreshes the snapshot returned by {@link #getSnapshot(int)} every periodMillis on a library thread. Callers
+     * asking for a maximum age above periodMillis plus the time of a refresh then never wait. Calling it again
+     * changes the period.
+     *
+     * @param periodMillis Time between the end of a refresh and the start of the next one, must be positive.
+     */
+    public void startSnapshotRefresh(int periodMillis) {
+        snapshots.start(periodMillis);
+    }
+
+    /**
+     * Stops refreshing started by {@link #startSnapshotRefresh(int)}.
+     */
+    public void stopSnapshotRefresh() {
+        snapshots.stop();
     }
 
     /**
@@ -254,10 +366,8 @@ public final class MicronetHardware {
             return -1;
         }
 
-        synchronized (lock){
-            // GPIO Inputs match to 692 to 699.
-            retval = mcontrol.get_gpio_value(inputType + 692);
-        }
+        // GPIO Inputs match to 692 to 699.
+        retval = mcontrol.get_gpio_value(inputType + 692);
 
         return retval;
     }
@@ -289,25 +399,70 @@ public final class MicronetHardware {
         }
 
         // Loop through all, if error then return early
-        synchronized (lock){
-            for(int i = 0; i < 8; i++){
-                retval[i] = mcontrol.get_gpio_value(i + 692);
+        MControl control = mcontrol;
+        for(int i = 0; i < 8; i++){
+            retval[i] = control.get_gpio_value(i + 692);
 
-                // If -1 returned, then not able to communicate with mcu properly.
-                if(retval[i] == -1){
-                    return retval;
-                }
+            // If -1 returned, then not able to communicate with mcu properly.
+            if(retval[i] == -1){
+                return retval;
             }
         }
 
         return retval;
     }
 
+    /**
+     * Calls a listener every time an input pin changes state, instead of polling {@link #getInputState(int)}.
+     *
+     * All inputs are watched by one library thread that sleeps until the kernel signals an edge on one of
+     * them, so listening costs no CPU while the inputs don't change. Listeners get the transitions after
+     * the listener was added, on that thread and in order. The same NOTE about the smart cradle as for
+     * {@link #getAllPinInState()} applies.
+     *
+     * @param inputType Input pin to listen to, one of {@link #kADC_ANALOG_IN1} to {@link #kADC_GPIO_IN7}.
+     * @param listener Listener to add, adding it twice to the same input has no effect.
+     *
+     * @throws MicronetHardwareException If the input is invalid or couldn't be set up for listening.
+     */
+    public void addInputListener(int inputType, InputListener listener) throws MicronetHardwareException {
+        if(inputType < 0 || inputType > 7){
+            throw new MicronetHardwareException("Input parameter must be between 0 and 7 inclusive, not " + inputType, -5);
+        }
+
+        synchronized (lock){
+            try {
+                if(inputWatcher == null){
+                    inputWatcher = new InputWatcher(new PollEdgeWaiter());
+                }
+                inputWatcher.addListener(inputType, listener);
+            } catch (IOException e) {
+                throw new MicronetHardwareException("Error listening to input " + inputType + ": " + e.getMessage(), -5);
+            }
+        }
+    }
+
+    /**
+     * Removes a listener added with {@link #addInputListener(int, InputListener)}. Once an input has no
+     * listeners left it is no longer watched, and the thread stops when no input is.
+     *
+     * @param inputType Input pin the listener was added to.
+     * @param listener Listener to remove.
+     */
+    public void removeInputListener(int inputType, InputListener listener) {
+        synchronized (lock){
+            if(inputWatcher != null){
+                inputWatcher.removeListener(inputType, listener);
+            }
+        }
+    }
+
     /**
      * Sets the output state of one of the gpio outputs. To use this function you need to have OS 0.1.17.0 or above.
      *
      * NOTE: If you run this method without validating and then another setOutputState() within about 500ms of a previous call to this method then the
-     * behavior is undefined. Developers are encouraged to use the validate boolean.
+     * behavior is undefined. Developers are encouraged to use the validate boolean. To change outputs often without
+     * blocking, use {@link MicronetHardwareAsync#writeOutputState(int, boolean)}, which never overlaps writes.
      *
      * If used with the SmartTab, changing the outputs while the device is undocked will have no effect on the outputs. Only change the output
      * state while the device is plugged in. It is not possible to get the output state, only to set it. Also, A001 SmartHub devices do not have
@@ -331,11 +486,43 @@ public final class MicronetHardware {
             throw new MicronetHardwareException("Output parameter must be between 0 and 3 inclusive, not " + output, -5);
         }
 
-        synchronized (lock){
+        synchronized (outputLock){
             mcontrol.set_gpio_value(output + 700, state, validateOutputStateAfterSet);
         }
     }
 
+    /**
+     * Sets the output state of several gpio outputs at once. To use this function you need to have OS 0.1.17.0 or above.
+     *
+     * All outputs are set by one shell script, so changing several outputs takes about as long as changing one with
+     * {@link #setOutputState(int, boolean, boolean)}. The same notes apply.
+     *
+     * @param mask The outputs to set, bit n selects OUTPUT_n, ex: (1 << {@link #OUTPUT_0}) | (1 << {@link #OUTPUT_2}).
+     * Outputs not in the mask are left as they are.
+     *
+     * @param values The states of the outputs, bit n set means OUTPUT_n high. Bits not in the mask are ignored.
+     *
+     * @param validateOutputStateAfterSet If true, then it will check if every output state is set properly. This takes usually at
+     * least 100 ms and can take up to 500ms before it times out.
+     *
+     * @throws MicronetHardwareException If there was an error changing any of the output states, the message lists the gpios
+     * that failed, or an invalid mask is passed in.
+     */
+    public void setOutputStates(int mask, int values, boolean validateOutputStateAfterSet) throws MicronetHardwareException{
+
+        if((mask & ~0xF) != 0){
+            throw new MicronetHardwareException("Output mask can only contain bits 0 to 3, not 0x" + Integer.toHexString(mask), -5);
+        }
+
+        if(mask == 0){
+            return;
+        }
+
+        synchronized (outputLock){
+            mcontrol.set_gpio_values(700, mask, values, validateOutputStateAfterSet);
+        }
+    }
+
     /**
      * Get Power up ignition connected I/O state.
      *
@@ -349,13 +536,22 @@ public final class MicronetHardware {
      * 0x0004: Arm Lockup,
      * 0x0008: Watchdog Reset.
      *
-     * In case of error, -1 is returned. There is a 500ms timeout.
+     * In case of error, -1 is returned. Times out after the default timeout, see {@link #setDefaultTimeout(int)}.
      * </pre>
      */
     public int getPowerUpIgnitionState() {
-        synchronized (lock){
-            return mcontrol.get_power_on_reason();
-        }
+        return mcontrol.get_power_on_reason();
+    }
+
+    /**
+     * Get Power up ignition connected I/O state, waiting at most timeoutMillis for the MCU.
+     *
+     * @param timeoutMillis timeout in milliseconds, must be positive.
+     *
+     * @return See {@link #getPowerUpIgnitionState()}. In case of error or timeout, -1 is returned.
+     */
+    public int getPowerUpIgnitionState(int timeoutMillis) {
+        return mcontrol.get_power_on_reason(timeoutMillis);
     }
 
     /**
@@ -366,39 +562,58 @@ public final class MicronetHardware {
      * @throws MicronetHardwareException if there is an error setting the value.
      */
     public void SetDelayedPowerDownTime(int timeInSeconds) throws MicronetHardwareException{
-        synchronized (lock){
-            mcontrol.set_device_power_off(timeInSeconds);
-        }
+        mcontrol.set_device_power_off(timeInSeconds);
     }
 
     /**
-     * Gets the MCU version.
-     * @return MCU version Ex: "A.1.2.0". There is a 500ms timeout.
+     * Gets the MCU version. Read from the MCU once, see {@link #getDeviceInfo()}.
+     * @return MCU version Ex: "A.1.2.0". Times out after the default timeout.
      *
      * @throws MicronetHardwareException if there is an error getting the value.
      */
     public String getMcuVersion() throws MicronetHardwareException{
-        synchronized (lock){
-            return mcontrol.get_mcu_version();
-        }
+        return mcontrol.get_mcu_version();
     }
 
     /**
-     * Gets the fpga version.
-     * @return fpga version Ex: "41000002". There is a 500ms timeout.
+     * Gets the fpga version. Read from the MCU once, see {@link #getDeviceInfo()}.
+     * @return fpga version Ex: "41000002". Times out after the default timeout.
      *
      * @throws MicronetHardwareException if there is an error getting the value.
      */
     public String getFpgaVersion() throws MicronetHardwareException{
-        synchronized (lock){
-            return mcontrol.get_fpga_version();
-        }
+        return mcontrol.get_fpga_version();
+    }
+
+    /**
+     * Gets the MCU and fpga versions and the serial number.
+     *
+     * The versions are read from the MCU on the first call, in one transaction, and kept. Later calls return them
+     * without going to the MCU until the connection to the MCU is lost and replaced, ex: after the iodriver daemon
+     * restarted, or {@link #invalidateDeviceInfo()} is called. Call it at startup to have them ready.
+     *
+     * @return The device info. Times out after the default timeout if the MCU has to be read.
+     *
+     * @throws MicronetHardwareException if there is an error reading the MCU.
+     */
+    public DeviceInfo getDeviceInfo() throws MicronetHardwareException{
+        return mcontrol.get_device_info();
+    }
+
+    /**
+     * Makes the next {@link #getDeviceInfo()}, {@link #getMcuVersion()} or {@link #getFpgaVersion()} read the MCU
+     * again, ex: after updating the MCU firmware.
+     */
+    public void invalidateDeviceInfo() {
+        mcontrol.invalidate_device_info();
     }
 
     /**
      * To set the LED, the following command can be sent. The RGB color code used is are standard RGB color codes defined at:
      * http://www.rapidtables.com/web/color/RGB_Color.html.
      *
+     * Nothing is sent if the LED already shows that state, see {@link #getLedCache()}.
+     *
      * @param led        right LED is 0, center LED is 1, and left LED is 2.
      * @param brightness brightness can be any int 0-255. Zero means the LED is off.
      * @param rgb        input a color as an int.
@@ -406,9 +621,7 @@ public final class MicronetHardware {
      * @throws MicronetHardwareException if there is an error setting the value.
      */
     public void setLedStatus(int led, int brightness, int rgb) throws MicronetHardwareException{
-        synchronized (lock){
-            mcontrol.set_led_status(led, brightness, rgb);
-        }
+        mcontrol.set_led_status(led, brightness, rgb);
     }
 
     /**
@@ -417,39 +630,111 @@ public final class MicronetHardware {
      * Zero means the led is off. The RGB color code used is are standard RGB color codes defined at:
      * http://www.rapidtables.com/web/color/RGB_Color.html
      *
-     * @return LED object that contains the current state of the desired LED. There is a 500ms timeout.
+     * The state comes from the LED cache when it has one, see {@link #getLedCache()}, otherwise from the MCU.
+     *
+     * @return LED object that contains the current state of the desired LED. Times out after the default
+     * timeout, see {@link #setDefaultTimeout(int)}.
      *
      * @throws MicronetHardwareException if there is an error getting the value.
      */
     public LED getLedStatus(int led_num) throws MicronetHardwareException{
-        synchronized (lock){
-            return mcontrol.get_led_status(led_num);
-        }
+        return mcontrol.get_led_status(led_num);
+    }
+
+    /**
+     * Gets the LED status, waiting at most timeoutMillis for the MCU. See {@link #getLedStatus(int)}.
+     *
+     * @param timeoutMillis timeout in milliseconds, must be positive.
+     *
+     * @throws MicronetHardwareException if there is an error getting the value or the MCU doesn't answer in time.
+     */
+    public LED getLedStatus(int led_num, int timeoutMillis) throws MicronetHardwareException{
+        return mcontrol.get_led_status(led_num, timeoutMillis);
+    }
+
+    /**
+     * Gets the status of led.led into led instead of a new LED, so polling doesn't allocate. See
+     * {@link #getLedStatus(int)}.
+     *
+     * @param led The LED to fill, {@link LED#led} selects which one.
+     *
+     * @throws MicronetHardwareException if there is an error getting the value.
+     */
+    public void getLedStatus(LED led) throws MicronetHardwareException{
+        mcontrol.get_led_status(led, MControl.getDefaultTimeout());
+    }
+
+    /**
+     * Reads the status of led.led from the MCU into led, bypassing the LED cache, and updates the cache with it.
+     * Use it to check the LEDs weren't changed by another process. A difference is counted in
+     * {@link LedCache#getMismatches()}.
+     *
+     * @param led The LED to fill, {@link LED#led} selects which one.
+     *
+     * @return true if the MCU showed what the cache had, or the cache had nothing yet.
+     *
+     * @throws MicronetHardwareException if there is an error getting the value.
+     */
+    public boolean verifyLedStatus(LED led) throws MicronetHardwareException{
+        return mcontrol.verify_led_status(led);
+    }
+
+    /**
+     * Gets the cache of LED states. The library keeps a copy of what each LED shows: {@link #setLedStatus(int, int, int)}
+     * doesn't send a state the LED already shows and {@link #getLedStatus(int)} answers from the copy. The copy of an
+     * LED is read from the MCU when first needed and again once the connection to the MCU was replaced.
+     *
+     * @return The cache, with counters of the writes sent and suppressed.
+     */
+    public LedCache getLedCache() {
+        return mcontrol.getLedCache();
     }
 
     /**
      * Checks if the RTC battery is good, bad or not present. This function reads the register bit on the RTC to determine whether the RTC is good or bad.
      *
-     * @return "Good" or "Bad" depending on the battery state. There is a 500ms timeout.
+     * @return "Good" or "Bad" depending on the battery state. Times out after the default timeout.
      *
      * @throws MicronetHardwareException if there is an error checking the value.
      */
     public String checkRtcBattery() throws MicronetHardwareException{
-        synchronized (lock){
-            return mcontrol.check_rtc_battery();
-        }
+        return mcontrol.check_rtc_battery();
     }
 
     /**
      * Gets the MCU rtc date and time.
-     * @return a string with the date and time. Ex: "2016-08-25 16:00:55.11". There is a 500ms timeout.
+     * @return a string with the date and time. Ex: "2016-08-25 16:00:55.11". Times out after the default
+     * timeout, see {@link #setDefaultTimeout(int)}.
      *
      * @throws MicronetHardwareException if there is an error getting the value.
      */
     public String getRtcDateTime() throws MicronetHardwareException{
-        synchronized (lock){
-            return mcontrol.get_rtc_date_time();
-        }
+        return mcontrol.get_rtc_date_time();
+    }
+
+    /**
+     * Gets the MCU rtc date and time, waiting at most timeoutMillis for the MCU.
+     *
+     * @param timeoutMillis timeout in milliseconds, must be positive.
+     * @return a string with the date and time. Ex: "2016-08-25 16:00:55.11".
+     *
+     * @throws MicronetHardwareException if there is an error getting the value or the MCU doesn't answer in time.
+     */
+    public String getRtcDateTime(int timeoutMillis) throws MicronetHardwareException{
+        return mcontrol.get_rtc_date_time(timeoutMillis);
+    }
+
+    /**
+     * Gets a clock reading the MCU rtc without an MCU request per read. The rtc is read once and the time
+     * elapsed since then, sleep included, is added to it. It is read again every minute by default, after the
+     * device slept, after a reconnect to the MCU and after {@link #setRtcDateTime(String)}.
+     *
+     * Ex: {@code getRtcClock().currentTimeMillis()} instead of parsing {@link #getRtcDateTime()}.
+     *
+     * @return The clock, the same one every call.
+     */
+    public RtcClock getRtcClock() {
+        return mcontrol.getRtcClock();
     }
 
     /**
@@ -463,22 +748,18 @@ public final class MicronetHardware {
      * @throws MicronetHardwareException if there is an error setting the value.
      */
     public void setRtcDateTime(String dateTime) throws MicronetHardwareException{
-        synchronized (lock){
-            mcontrol.set_rtc_date_time(dateTime);
-        }
+        mcontrol.set_rtc_date_time(dateTime);
     }
 
     /**
      * Get the digital and analog rtc calibration registers.
      *
-     * @return An int array of length two containing digital and analog rtc cal, respectively. There is a 500ms timeout.
+     * @return An int array of length two containing digital and analog rtc cal, respectively. Times out after the default timeout.
      *
      * @throws MicronetHardwareException if there is an error getting the value.
      */
     public int[] getRtcCalReg() throws MicronetHardwareException{
-        synchronized (lock){
-            return mcontrol.get_rtc_cal_reg();
-        }
+        return mcontrol.get_rtc_cal_reg();
     }
 
 }
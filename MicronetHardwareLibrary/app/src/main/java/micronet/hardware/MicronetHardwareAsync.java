@@ -0,0 +1,425 @@
+package micronet.hardware;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ *  Asynchronous access to {@link MicronetHardware}.
+ *
+ *  The operations of MicronetHardware that may wait for the MCU, the gpio inputs or the outputs are
+ *  available here, timeout variants included, and return right away with a {@link HardwareFuture}.
+ *  Operations run on three dedicated threads owned by the library, one for MCU requests, one for the
+ *  sysfs gpio inputs and one for the outputs, so a slow validated output write doesn't hold up MCU or
+ *  input reads. No thread is created per call.
+ *
+ *  Only on MicronetHardware: the calls that don't wait, like {@link MicronetHardware#getSnapshot(int)},
+ *  {@link MicronetHardware#getLedCache()}, {@link MicronetHardware#getRtcClock()} and the default timeout,
+ *  the input listeners, and {@link MicronetHardware#getLedStatus(LED)}, which fills the caller's object.
+ *
+ *  To get a MicronetHardwareAsync object use MicronetHardwareAsync.getInstance().
+ */
+public final class MicronetHardwareAsync {
+
+    private static MicronetHardwareAsync instance = null;
+
+    private static final Object lock = new Object();
+
+    private final MicronetHardware hardware;
+
+    /**
+     * Runs requests that go to the MCU.
+     */
+    private final ExecutorService mcuExecutor;
+
+    /**
+     * Runs sysfs gpio input reads.
+     */
+    private final ExecutorService gpioExecutor;
+
+    /**
+     * Runs output writes, one at a time in the order they were made.
+     */
+    private final ExecutorService outputExecutor;
+
+    /**
+     * Coalesces writeOutputState() changes, writes on the output thread.
+     */
+    private final OutputWriter outputWriter;
+
+    private MicronetHardwareAsync(final MicronetHardware hardware) {
+        this.hardware = hardware;
+        this.mcuExecutor = Executors.newSingleThreadExecutor(new IoThreadFactory("MicronetHardware-mcu"));
+        this.gpioExecutor = Executors.newSingleThreadExecutor(new IoThreadFactory("MicronetHardware-gpio"));
+        this.outputExecutor = Executors.newSingleThreadExecutor(new IoThreadFactory("MicronetHardware-outputs"));
+        this.outputWriter = new OutputWriter(new OutputWriter.Outputs() {
+            @Override
+            public void setOutputStates(int mask, int values) throws MicronetHardwareException {
+                hardware.setOutputStates(mask, values, true);
+            }
+        }, outputExecutor);
+    }
+
+    /**
+     * @return The singleton instance of MicronetHardwareAsync
+     */
+    public static MicronetHardwareAsync getInstance() {
+        synchronized (lock) {
+            if (instance == null) {
+                instance = new MicronetHardwareAsync(MicronetHardware.getInstance());
+            }
+            return instance;
+        }
+    }
+
+    private static <V> HardwareFuture<V> submit(ExecutorService executor, Callable<V> callable) {
+        HardwareFuture<V> future = new HardwareFuture<V>(callable);
+        executor.execute(future);
+        return future;
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getAnalogInput(int)}.
+     */
+    public HardwareFuture<Integer> getAnalogInput(final int inputType) {
+        return submit(mcuExecutor, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return hardware.getAnalogInput(inputType);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getAnalogInput(int, int)}.
+     */
+    public HardwareFuture<Integer> getAnalogInput(final int inputType, final int timeoutMillis) {
+        return submit(mcuExecutor, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return hardware.getAnalogInput(inputType, timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getAllAnalogInput()}.
+     */
+    public HardwareFuture<int[]> getAllAnalogInput() {
+        return submit(mcuExecutor, new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return hardware.getAllAnalogInput();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getAllAnalogInput(int)}.
+     */
+    public HardwareFuture<int[]> getAllAnalogInput(final int timeoutMillis) {
+        return submit(mcuExecutor, new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return hardware.getAllAnalogInput(timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getInputState(int)}.
+     */
+    public HardwareFuture<Integer> getInputState(final int inputType) {
+        return submit(gpioExecutor, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return hardware.getInputState(inputType);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getAllPinInState()}.
+     */
+    public HardwareFuture<int[]> getAllPinInState() {
+        return submit(gpioExecutor, new Callable<int[]>() {
+            @Override
+            public int[] call() {
+                return hardware.getAllPinInState();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#setOutputState(int, boolean, boolean)}. Calls are run one at a
+     * time in the order they were made.
+     */
+    public HardwareFuture<Void> setOutputState(final int output, final boolean state, final boolean validateOutputStateAfterSet) {
+        return submit(outputExecutor, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                hardware.setOutputState(output, state, validateOutputStateAfterSet);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#setOutputStates(int, int, boolean)}. Runs in order with
+     * {@link #setOutputState(int, boolean, boolean)} calls.
+     */
+    public HardwareFuture<Void> setOutputStates(final int mask, final int values, final boolean validateOutputStateAfterSet) {
+        return submit(outputExecutor, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                hardware.setOutputStates(mask, values, validateOutputStateAfterSet);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Changes an output without waiting for earlier changes, for outputs toggled faster than a script can
+     * set them.
+     *
+     * Unlike {@link #setOutputState(int, boolean, boolean)}, calls aren't run one by one. The latest state
+     * of every output is kept and written with one validated script once the running write is done, so
+     * writes never overlap and intermediate states of an output may never be written.
+     *
+     * @return A future that succeeds once the output has been set and validated. It is cancelled if a
+     * later call changes the same output before it is written, and fails with a MicronetHardwareException
+     * if the write fails or the output is invalid.
+     */
+    public HardwareFuture<Void> writeOutputState(int output, boolean state) {
+        if(output < 0 || output > 3){
+            return failed(new MicronetHardwareException("Output parameter must be between 0 and 3 inclusive, not " + output, -5));
+        }
+        return outputWriter.write(1 << output, state ? 1 << output : 0);
+    }
+
+    /**
+     * Changes several outputs without waiting for earlier changes, see {@link #writeOutputState(int, boolean)}
+     * and {@link MicronetHardware#setOutputStates(int, int, boolean)} for mask and values.
+     *
+     * @return A future that succeeds once the outputs have been set and validated. It is cancelled if later
+     * calls change all of its outputs before they are written.
+     */
+    public HardwareFuture<Void> writeOutputStates(int mask, int values) {
+        if((mask & ~0xF) != 0){
+            return failed(new MicronetHardwareException("Output mask can only contain bits 0 to 3, not 0x" + Integer.toHexString(mask), -5));
+        }
+        if(mask == 0){
+            HardwareFuture<Void> future = new HardwareFuture<Void>();
+            future.succeed(null);
+            return future;
+        }
+        return outputWriter.write(mask, values);
+    }
+
+    private static <V> HardwareFuture<V> failed(Throwable error) {
+        HardwareFuture<V> future = new HardwareFuture<V>();
+        future.fail(error);
+        return future;
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getPowerUpIgnitionState()}.
+     */
+    public HardwareFuture<Integer> getPowerUpIgnitionState() {
+        return submit(mcuExecutor, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return hardware.getPowerUpIgnitionState();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getPowerUpIgnitionState(int)}.
+     */
+    public HardwareFuture<Integer> getPowerUpIgnitionState(final int timeoutMillis) {
+        return submit(mcuExecutor, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                return hardware.getPowerUpIgnitionState(timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#SetDelayedPowerDownTime(int)}.
+     */
+    public HardwareFuture<Void> setDelayedPowerDownTime(final int timeInSeconds) {
+        return submit(mcuExecutor, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                hardware.SetDelayedPowerDownTime(timeInSeconds);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getMcuVersion()}.
+     */
+    public HardwareFuture<String> getMcuVersion() {
+        return submit(mcuExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return hardware.getMcuVersion();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getFpgaVersion()}.
+     */
+    public HardwareFuture<String> getFpgaVersion() {
+        return submit(mcuExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return hardware.getFpgaVersion();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getDeviceInfo()}.
+     */
+    public HardwareFuture<DeviceInfo> getDeviceInfo() {
+        return submit(mcuExecutor, new Callable<DeviceInfo>() {
+            @Override
+            public DeviceInfo call() throws Exception {
+                return hardware.getDeviceInfo();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#setLedStatus(int, int, int)}.
+     */
+    public HardwareFuture<Void> setLedStatus(final int led, final int brightness, final int rgb) {
+        return submit(mcuExecutor, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                hardware.setLedStatus(led, brightness, rgb);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getLedStatus(int)}.
+     */
+    public HardwareFuture<LED> getLedStatus(final int led_num) {
+        return submit(mcuExecutor, new Callable<LED>() {
+            @Override
+            public LED call() throws Exception {
+                return hardware.getLedStatus(led_num);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getLedStatus(int, int)}.
+     */
+    public HardwareFuture<LED> getLedStatus(final int led_num, final int timeoutMillis) {
+        return submit(mcuExecutor, new Callable<LED>() {
+            @Override
+            public LED call() throws Exception {
+                return hardware.getLedStatus(led_num, timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#verifyLedStatus(LED)}.
+     */
+    public HardwareFuture<Boolean> verifyLedStatus(final LED led) {
+        return submit(mcuExecutor, new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return hardware.verifyLedStatus(led);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#checkRtcBattery()}.
+     */
+    public HardwareFuture<String> checkRtcBattery() {
+        return submit(mcuExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return hardware.checkRtcBattery();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getRtcDateTime()}.
+     */
+    public HardwareFuture<String> getRtcDateTime() {
+        return submit(mcuExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return hardware.getRtcDateTime();
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getRtcDateTime(int)}.
+     */
+    public HardwareFuture<String> getRtcDateTime(final int timeoutMillis) {
+        return submit(mcuExecutor, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return hardware.getRtcDateTime(timeoutMillis);
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#setRtcDateTime(String)}.
+     */
+    public HardwareFuture<Void> setRtcDateTime(final String dateTime) {
+        return submit(mcuExecutor, new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                hardware.setRtcDateTime(dateTime);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Asynchronous {@link MicronetHardware#getRtcCalReg()}.
+     */
+    public HardwareFuture<int[]> getRtcCalReg() {
+        return submit(mcuExecutor, new Callable<int[]>() {
+            @Override
+            public int[] call() throws Exception {
+                return hardware.getRtcCalReg();
+            }
+        });
+    }
+
+    private static final class IoThreadFactory implements ThreadFactory {
+        private final String name;
+
+        IoThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package micronet.hardware;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * Applies output changes without blocking the caller, latest state wins.
+ *
+ * Changes are queued as a desired state per output. One write at a time, run on the given executor,
+ * applies every change queued so far with a single validated {@link MicronetHardware#setOutputStates(int, int, boolean)},
+ * so scripts never overlap and an output toggled several times while a write runs is only written
+ * with its last state.
+ */
+final class OutputWriter {
+
+    /**
+     * Sets the outputs, blocking until they are set, ex: a validated setOutputStates().
+     */
+    interface Outputs {
+        void setOutputStates(int mask, int values) throws MicronetHardwareException;
+    }
+
+    /**
+     * A queued change and the future reporting it.
+     */
+    private static final class Change {
+        final HardwareFuture<Void> future = new HardwareFuture<Void>();
+        int mask;
+
+        Change(int mask) {
+            this.mask = mask;
+        }
+    }
+
+    private final Outputs outputs;
+    private final Executor executor;
+    private final Object lock = new Object();
+
+    /** Outputs with a queued change and their desired states. */
+    private int pendingMask;
+    private int pendingValues;
+    private List<Change> pending = new ArrayList<Change>();
+    private boolean scheduled;
+
+    private final Runnable write = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    OutputWriter(Outputs outputs, Executor executor) {
+        this.outputs = outputs;
+        this.executor = executor;
+    }
+
+    /**
+     * Queues a change of the outputs in mask to the states in values, see
+     * {@link MicronetHardware#setOutputStates(int, int, boolean)}.
+     *
+     * @return A future that succeeds once the outputs are set and validated, or fails with what the write
+     * threw, usually a MicronetHardwareException. If later changes replace all of its outputs before it is
+     * written, it is cancelled instead.
+     */
+    HardwareFuture<Void> write(int mask, int values) {
+        Change change = new Change(mask);
+        boolean schedule;
+
+        synchronized (lock){
+            // Queued changes of the same outputs won't be written
+            for(int i = pending.size() - 1; i >= 0; i--){
+                Change queued = pending.get(i);
+                queued.mask &= ~mask;
+                if(queued.mask == 0){
+                    pending.remove(i);
+                    queued.future.cancel(false);
+                }
+            }
+
+            pendingMask |= mask;
+            pendingValues = (pendingValues & ~mask) | (values & mask);
+            pending.add(change);
+
+            schedule = !scheduled;
+            scheduled = true;
+        }
+
+        if(schedule){
+            executor.execute(write);
+        }
+        return change.future;
+    }
+
+    private void writePending() {
+        int mask;
+        int values;
+        List<Change> changes;
+
+        synchronized (lock){
+            mask = pendingMask;
+            values = pendingValues;
+            changes = pending;
+            pendingMask = 0;
+            pendingValues = 0;
+            pending = new ArrayList<Change>();
+        }
+
+        // Anything thrown fails the changes, ex: an UnsatisfiedLinkError of the property natives
+        Throwable error = null;
+        try {
+            outputs.setOutputStates(mask, values);
+        } catch (MicronetHardwareException | RuntimeException | Error e) {
+            error = e;
+        } finally {
+            for(Change change : changes){
+                if(error == null){
+                    change.future.succeed(null);
+                }else{
+                    change.future.fail(error);
+                }
+            }
+
+            // Changes queued during the write go in the next one, behind other work on the executor
+            boolean schedule;
+            synchronized (lock){
+                schedule = !pending.isEmpty();
+                scheduled = schedule;
+            }
+            if(schedule){
+                executor.execute(write);
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package micronet.hardware;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+/**
+ * Waits for gpio edges with poll(): sysfs signals an edge on a value file as POLLPRI | POLLERR. A pipe
+ * polled along with the value files lets other threads wake the waiting thread.
+ */
+final class PollEdgeWaiter implements InputWatcher.EdgeWaiter {
+
+    private static final short EDGE_EVENTS = (short) (OsConstants.POLLPRI | OsConstants.POLLERR);
+
+    private final FileDescriptor wakeRead;
+    private final FileDescriptor wakeWrite;
+    private final byte[] wakeBuffer = new byte[16];
+
+    /**
+     * Reused between waits, the wake pipe comes first. Only used by the waiting thread.
+     */
+    private StructPollfd[] pollFds = new StructPollfd[0];
+
+    PollEdgeWaiter() throws IOException {
+        try {
+            FileDescriptor[] pipe = Os.pipe();
+            wakeRead = pipe[0];
+            wakeWrite = pipe[1];
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    @Override
+    public void await(FileDescriptor[] valueFiles) throws IOException {
+        StructPollfd[] fds = prepare(valueFiles);
+        try {
+            Os.poll(fds, -1);
+
+            if((fds[0].revents & OsConstants.POLLIN) != 0){
+                Os.read(wakeRead, wakeBuffer, 0, wakeBuffer.length);
+            }
+        } catch (ErrnoException e) {
+            if(e.errno != OsConstants.EINTR){
+                throw e.rethrowAsIOException();
+            }
+        }
+    }
+
+    @Override
+    public void wake() {
+        try {
+            Os.write(wakeWrite, wakeBuffer, 0, 1);
+        } catch (ErrnoException | InterruptedIOException e) {
+            // Only fails once the pipe is closed, there is no waiter left then
+        }
+    }
+
+    private StructPollfd[] prepare(FileDescriptor[] valueFiles) {
+        if(pollFds.length != valueFiles.length + 1){
+            pollFds = new StructPollfd[valueFiles.length + 1];
+            for(int i = 0; i < pollFds.length; i++){
+                pollFds[i] = new StructPollfd();
+            }
+            pollFds[0].fd = wakeRead;
+            pollFds[0].events = (short) OsConstants.POLLIN;
+        }
+
+        for(int i = 0; i < valueFiles.length; i++){
+            StructPollfd fd = pollFds[i + 1];
+            fd.fd = valueFiles[i];
+            fd.events = EDGE_EVENTS;
+        }
+        for(StructPollfd fd : pollFds){
+            fd.revents = 0;
+        }
+        return pollFds;
+    }
+}
@@ -0,0 +1,52 @@
+package micronet.hardware;
+
+import android.os.FileObserver;
+
+import java.io.File;
+
+/**
+ * Wakes a waiting thread when a file is written, ex: the result file of an output script, through
+ * inotify on the file's folder.
+ *
+ * Changes made through another view of the same storage, like the script writing through
+ * /mnt/shell/emulated while the library watches /storage/emulated, aren't always reported, so callers
+ * bound every wait and check the file again either way.
+ */
+final class ResultFileWatcher extends FileObserver {
+
+    private final String name;
+    private int events;
+    private int seen;
+
+    ResultFileWatcher(File file) {
+        super(file.getParent(), FileObserver.CREATE | FileObserver.MODIFY | FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO);
+        this.name = file.getName();
+    }
+
+    @Override
+    public void onEvent(int event, String path) {
+        if(name.equals(path)){
+            synchronized (this){
+                events++;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Waits until the file changes, returns right away if it changed since the last call.
+     * @return true if the file changed, false if timeoutMillis passed first.
+     */
+    synchronized boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while(events == seen){
+            long remaining = (deadline - System.nanoTime()) / 1000000L;
+            if(remaining <= 0){
+                return false;
+            }
+            wait(remaining);
+        }
+        seen = events;
+        return true;
+    }
+}
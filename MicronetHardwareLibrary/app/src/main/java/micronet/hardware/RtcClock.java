@@ -0,0 +1,286 @@
+package micronet.hardware;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * MCU rtc time without an MCU request per read.
+ *
+ * The rtc is read once and anchored to {@link SystemClock#elapsedRealtimeNanos()}, which keeps counting
+ * while the device sleeps. Later reads add the time elapsed since the anchor. The rtc is read again
+ * every resync interval, after the device slept (elapsedRealtimeNanos got ahead of
+ * {@link System#nanoTime()}, which stops during sleep), once the connection to the MCU was replaced and
+ * after the rtc is set. A resync runs on the thread that notices it is due while other threads keep
+ * reading from the previous anchor. If it fails the previous anchor is kept and the rtc is read again a
+ * second later.
+ *
+ * The rtc counts hundredths of a second, so the time is accurate to about 10ms plus half an MCU request.
+ * The rtc is taken to run in UTC.
+ */
+public final class RtcClock {
+
+    private static final String TAG = "RtcClock";
+
+    /**
+     * Default time between rtc reads.
+     */
+    public static final long DEFAULT_RESYNC_INTERVAL_MILLIS = 60000;
+
+    /**
+     * Sleep longer than this makes the next read resync.
+     */
+    private static final long SLEEP_THRESHOLD_NANOS = 1000000000L;
+
+    /**
+     * Time after a failed resync before the rtc is read again.
+     */
+    private static final long RETRY_NANOS = 1000000000L;
+
+    /**
+     * Reads the rtc.
+     */
+    interface Source {
+        /** @return The rtc in milliseconds since the epoch. */
+        long readEpochMillis() throws MicronetHardwareException;
+
+        /** @see micronet.hardware.transport.MapiTransport#getGeneration() */
+        int getGeneration();
+    }
+
+    /**
+     * The device clocks, replaced by tests.
+     */
+    interface Clocks {
+        long elapsedRealtimeNanos();
+        long nanoTime();
+    }
+
+    static final Clocks SYSTEM_CLOCKS = new Clocks() {
+        @Override
+        public long elapsedRealtimeNanos() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    /**
+     * An rtc reading and the device clocks at the same moment.
+     */
+    private static final class Anchor {
+        final long epochNanos;
+        final long elapsedRealtimeNanos;
+        final long nanoTime;
+        final int generation;
+
+        Anchor(long epochNanos, long elapsedRealtimeNanos, long nanoTime, int generation) {
+            this.epochNanos = epochNanos;
+            this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+            this.nanoTime = nanoTime;
+            this.generation = generation;
+        }
+    }
+
+    private final Source source;
+    private final Clocks clocks;
+
+    private volatile Anchor anchor;
+    private volatile long resyncIntervalNanos = DEFAULT_RESYNC_INTERVAL_MILLIS * 1000000L;
+    /**
+     * elapsedRealtimeNanos before which a failed resync isn't retried, 0 if the last one worked.
+     */
+    private volatile long retryAfterNanos;
+
+    /**
+     * Taken by the thread resyncing, threads that have an anchor don't wait for it.
+     */
+    private final AtomicBoolean resyncing = new AtomicBoolean();
+    private final Object syncLock = new Object();
+
+    /**
+     * Guards publishing the anchor against invalidate(), which doesn't wait for an rtc read.
+     */
+    private final Object anchorLock = new Object();
+    /**
+     * Number of invalidate() calls, a read started before one of them is stale.
+     */
+    private int invalidations;
+
+    private final AtomicLong syncs = new AtomicLong();
+    private final AtomicLong failedSyncs = new AtomicLong();
+
+    RtcClock(Source source, Clocks clocks) {
+        this.source = source;
+        this.clocks = clocks;
+    }
+
+    /**
+     * @return The rtc time in milliseconds since the epoch, like {@link System#currentTimeMillis()}.
+     * @throws MicronetHardwareException if the rtc has never been read and can't be.
+     */
+    public long currentTimeMillis() throws MicronetHardwareException {
+        return currentTimeNanos() / 1000000L;
+    }
+
+    /**
+     * @return The rtc time in nanoseconds since the epoch. Successive calls never go back, except when the rtc
+     * is resynced or set.
+     * @throws MicronetHardwareException if the rtc has never been read and can't be.
+     */
+    public long currentTimeNanos() throws MicronetHardwareException {
+        long now = clocks.elapsedRealtimeNanos();
+        Anchor current = anchor;
+        if(current == null || isResyncDue(current, now)){
+            current = resync(current);
+            now = clocks.elapsedRealtimeNanos();
+        }
+        return current.epochNanos + (now - current.elapsedRealtimeNanos);
+    }
+
+    /**
+     * Reads the rtc now instead of when the next resync is due.
+     * @throws MicronetHardwareException if the rtc can't be read, the previous anchor is kept.
+     */
+    public void resync() throws MicronetHardwareException {
+        synchronized (syncLock){
+            sync();
+        }
+    }
+
+    /**
+     * Sets the time between rtc reads.
+     * @param intervalMillis interval in milliseconds, must be positive.
+     */
+    public void setResyncInterval(long intervalMillis) {
+        if(intervalMillis <= 0){
+            throw new IllegalArgumentException("intervalMillis must be positive, not " + intervalMillis);
+        }
+        resyncIntervalNanos = intervalMillis * 1000000L;
+    }
+
+    /**
+     * @return The time between rtc reads in milliseconds.
+     */
+    public long getResyncInterval() {
+        return resyncIntervalNanos / 1000000L;
+    }
+
+    /**
+     * @return The number of times the rtc was read.
+     */
+    public long getSyncs() {
+        return syncs.get();
+    }
+
+    /**
+     * @return The number of rtc reads that failed.
+     */
+    public long getFailedSyncs() {
+        return failedSyncs.get();
+    }
+
+    /**
+     * Drops the anchor, ex: after the rtc was set. The next read waits for the rtc. A resync already reading
+     * the rtc reads it again instead of keeping what it got.
+     */
+    void invalidate() {
+        synchronized (anchorLock){
+            invalidations++;
+            anchor = null;
+        }
+    }
+
+    private boolean isResyncDue(Anchor current, long now) {
+        // elapsedRealtimeNanos counts from boot, it doesn't wrap
+        if(now < retryAfterNanos){
+            return false;
+        }
+        long elapsed = now - current.elapsedRealtimeNanos;
+        if(elapsed >= resyncIntervalNanos || current.generation != source.getGeneration()){
+            return true;
+        }
+        // System.nanoTime() stops while the device sleeps
+        return elapsed - (clocks.nanoTime() - current.nanoTime) > SLEEP_THRESHOLD_NANOS;
+    }
+
+    private Anchor resync(Anchor current) throws MicronetHardwareException {
+        if(current != null && !resyncing.compareAndSet(false, true)){
+            // Another thread is on it
+            return current;
+        }
+
+        try {
+            synchronized (syncLock){
+                Anchor latest = anchor;
+                if(latest != null && latest != current){
+                    // Resynced while this thread waited
+                    return latest;
+                }
+                try {
+                    return sync();
+                } catch (MicronetHardwareException e) {
+                    if(latest == null){
+                        throw e;
+                    }
+                    Log.w(TAG, "Error resyncing with the rtc, keeping the previous time: " + e.getMessage());
+                    return latest;
+                }
+            }
+        } finally {
+            if(current != null){
+                resyncing.set(false);
+            }
+        }
+    }
+
+    /** Must hold syncLock. */
+    private Anchor sync() throws MicronetHardwareException {
+        while(true){
+            int expected;
+            synchronized (anchorLock){
+                expected = invalidations;
+            }
+            Anchor synced = read();
+            synchronized (anchorLock){
+                // The rtc may have been read before it was set
+                if(invalidations != expected){
+                    continue;
+                }
+                anchor = synced;
+            }
+            retryAfterNanos = 0;
+            syncs.incrementAndGet();
+            return synced;
+        }
+    }
+
+    private Anchor read() throws MicronetHardwareException {
+        int generation = source.getGeneration();
+        long realtimeBefore = clocks.elapsedRealtimeNanos();
+        long nanoTimeBefore = clocks.nanoTime();
+        long epochMillis;
+        try {
+            epochMillis = source.readEpochMillis();
+        } catch (MicronetHardwareException e) {
+            failedSyncs.incrementAndGet();
+            retryAfterNanos = clocks.elapsedRealtimeNanos() + RETRY_NANOS;
+            throw e;
+        }
+        long nanoTimeAfter = clocks.nanoTime();
+        long realtimeAfter = clocks.elapsedRealtimeNanos();
+
+        // The rtc was read somewhere during the request, take the middle
+        return new Anchor(epochMillis * 1000000L,
+                realtimeBefore + (realtimeAfter - realtimeBefore) / 2,
+                nanoTimeBefore + (nanoTimeAfter - nanoTimeBefore) / 2,
+                generation);
+    }
+}
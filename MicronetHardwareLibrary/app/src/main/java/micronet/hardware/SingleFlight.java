@@ -0,0 +1,330 @@
+package micronet.hardware;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * Coalesces identical MCU reads made at the same time.
+ *
+ * The first caller of a request runs it, callers of the same request that arrive while it is in flight
+ * wait for it and get its result or error instead of sending their own. A request starting after the
+ * previous one finished is sent again, so nobody gets a result older than their call.
+ *
+ * Results are handed to every caller of a flight, calls must return immutable values or values their
+ * callers copy.
+ *
+ * The polling reads, which return an int or fill the caller's array, go through a {@link Slot} made
+ * up front for their request instead, so a caller that finds no read in flight allocates nothing. A
+ * slot holds one flight at a time, a caller with another timeout than the one in flight sends its own
+ * request.
+ */
+final class SingleFlight {
+
+    /**
+     * A read from the MCU.
+     */
+    interface Call<V> {
+        V call() throws MicronetHardwareException;
+    }
+
+    /**
+     * A polling read of one int, -1 on error.
+     */
+    interface IntCall {
+        int call(int argument, int timeoutMillis);
+    }
+
+    /**
+     * A polling read that fills the caller's array, -1 for values that couldn't be read.
+     */
+    interface ArrayCall {
+        void call(int[] values, int timeoutMillis);
+    }
+
+    /**
+     * The flight of one polling request, reused by every flight of that request. Guarded by itself.
+     */
+    static final class Slot {
+        private final int[] values;
+        private boolean running;
+        private int timeoutMillis;
+        /** Callers waiting for the flight in flight. */
+        private int waiters;
+        /** Callers of the last flight that haven't taken its result yet, the next flight lands after them. */
+        private int readers;
+        /** Counts the flights that finished, joined callers wait for it to move. */
+        private long finished;
+        private Throwable failure;
+
+        /**
+         * @param length largest array an {@link ArrayCall} of this slot fills, 1 for an {@link IntCall}.
+         */
+        Slot(int length) {
+            values = new int[length];
+        }
+    }
+
+    private static final class Flight {
+        final CountDownLatch done = new CountDownLatch(1);
+        Object value;
+        MicronetHardwareException error;
+        /** Unchecked exception or error of the call, ex: an UnsatisfiedLinkError without libmctl. */
+        Throwable failure;
+    }
+
+    private final ConcurrentHashMap<Long, Flight> flights = new ConcurrentHashMap<Long, Flight>();
+    private final AtomicLong joined = new AtomicLong();
+    private volatile boolean enabled = true;
+
+    /**
+     * Key of a request. Requests only match if their timeouts do too, so a caller never gets a timeout
+     * shorter than it asked for.
+     * @param request MAPI request type, or another number below 0x10000 for requests made of several.
+     * @param argument channel, led or gpio number, below 0x10000.
+     */
+    static long key(int request, int argument, int timeoutMillis) {
+        return ((long) (request & 0xFFFF) << 48) | ((long) (argument & 0xFFFF) << 32) | (timeoutMillis & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Runs call, or waits for the call in flight with the same key and returns its result.
+     * @throws MicronetHardwareException the error of the call, with the error code of the original.
+     */
+    @SuppressWarnings("unchecked")
+    <V> V execute(long key, Call<V> call) throws MicronetHardwareException {
+        if(!enabled){
+            return call.call();
+        }
+
+        Long boxedKey = key;
+        Flight running = flights.get(boxedKey);
+        Flight flight = null;
+        if(running == null){
+            flight = new Flight();
+            running = flights.putIfAbsent(boxedKey, flight);
+        }
+
+        if(running != null){
+            joined.incrementAndGet();
+            awaitUninterruptibly(running.done);
+            if(running.error != null){
+                // New exception so the stack trace is this caller's
+                throw new MicronetHardwareException(running.error.getMessage(), running.error.getErrorCode());
+            }
+            if(running.failure instanceof RuntimeException){
+                throw (RuntimeException) running.failure;
+            }
+            if(running.failure instanceof Error){
+                throw (Error) running.failure;
+            }
+            return (V) running.value;
+        }
+
+        try {
+            V value = call.call();
+            flight.value = value;
+            return value;
+        } catch (MicronetHardwareException e) {
+            flight.error = e;
+            throw e;
+        } catch (RuntimeException | Error e) {
+            flight.failure = e;
+            throw e;
+        } finally {
+            // Later callers start a new flight, the ones already waiting get this result
+            flights.remove(boxedKey, flight);
+            flight.done.countDown();
+        }
+    }
+
+    /**
+     * Runs call, or waits for the flight of slot if it has the same timeout and returns its result.
+     */
+    int execute(Slot slot, int argument, int timeoutMillis, IntCall call) {
+        if(!enabled){
+            return call.call(argument, timeoutMillis);
+        }
+        boolean lead;
+        synchronized (slot){
+            if(slot.running && slot.timeoutMillis == timeoutMillis){
+                try {
+                    awaitFlight(slot);
+                    return slot.values[0];
+                } finally {
+                    leave(slot);
+                }
+            }
+            lead = !slot.running;
+            if(lead){
+                slot.running = true;
+                slot.timeoutMillis = timeoutMillis;
+            }
+        }
+        if(!lead){
+            return call.call(argument, timeoutMillis);
+        }
+
+        int value = -1;
+        Throwable failure = null;
+        try {
+            value = call.call(argument, timeoutMillis);
+            return value;
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (slot){
+                awaitReaders(slot);
+                slot.values[0] = value;
+                land(slot, failure);
+            }
+        }
+    }
+
+    /**
+     * Runs call on values, or waits for the flight of slot if it has the same timeout and copies its
+     * result into values.
+     */
+    void execute(Slot slot, int[] values, int timeoutMillis, ArrayCall call) {
+        if(!enabled){
+            call.call(values, timeoutMillis);
+            return;
+        }
+        boolean lead;
+        synchronized (slot){
+            if(slot.running && slot.timeoutMillis == timeoutMillis){
+                try {
+                    awaitFlight(slot);
+                    System.arraycopy(slot.values, 0, values, 0, values.length);
+                } finally {
+                    leave(slot);
+                }
+                return;
+            }
+            lead = !slot.running;
+            if(lead){
+                slot.running = true;
+                slot.timeoutMillis = timeoutMillis;
+            }
+        }
+        if(!lead){
+            call.call(values, timeoutMillis);
+            return;
+        }
+
+        Throwable failure = null;
+        try {
+            call.call(values, timeoutMillis);
+        } catch (RuntimeException | Error e) {
+            failure = e;
+            throw e;
+        } finally {
+            synchronized (slot){
+                awaitReaders(slot);
+                // Only copied for callers that joined
+                if(slot.waiters > 0 && failure == null){
+                    System.arraycopy(values, 0, slot.values, 0, values.length);
+                }
+                land(slot, failure);
+            }
+        }
+    }
+
+    /** Must hold the slot, rethrows the failure of the flight. The caller counts itself out of readers. */
+    private void awaitFlight(Slot slot) {
+        joined.incrementAndGet();
+        slot.waiters++;
+        long flight = slot.finished;
+        boolean interrupted = false;
+        // Waits like the caller's own request would have, see awaitUninterruptibly()
+        while(slot.finished == flight){
+            try {
+                slot.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+        if(slot.failure instanceof RuntimeException){
+            throw (RuntimeException) slot.failure;
+        }
+        if(slot.failure instanceof Error){
+            throw (Error) slot.failure;
+        }
+    }
+
+    /** Must hold the slot, counts a caller out of the readers of the last flight. */
+    private static void leave(Slot slot) {
+        if(--slot.readers == 0){
+            slot.notifyAll();
+        }
+    }
+
+    /**
+     * Must hold the slot, waits for the callers of the last flight to take its result. They only need
+     * the lock, so this is short.
+     */
+    private static void awaitReaders(Slot slot) {
+        boolean interrupted = false;
+        while(slot.readers > 0){
+            try {
+                slot.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Must hold the slot, ends its flight. */
+    private static void land(Slot slot, Throwable failure) {
+        slot.failure = failure;
+        slot.running = false;
+        slot.finished++;
+        if(slot.waiters > 0){
+            slot.readers = slot.waiters;
+            slot.waiters = 0;
+            slot.notifyAll();
+        }
+    }
+
+    /**
+     * @return The number of calls that got the result of another caller's request.
+     */
+    long getJoinedCount() {
+        return joined.get();
+    }
+
+    /**
+     * Turns coalescing on or off, ex: to compare both in a benchmark. On by default.
+     */
+    void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * Waits like the caller's own request would have: the request in flight is bounded by its timeout
+     * and a blocked transfer can't be interrupted either.
+     */
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while(true){
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if(interrupted){
+            Thread.currentThread().interrupt();
+        }
+    }
+}
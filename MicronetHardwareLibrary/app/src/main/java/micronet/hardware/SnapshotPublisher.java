@@ -0,0 +1,118 @@
+package micronet.hardware;
+
+import android.util.Log;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes {@link HardwareSnapshot}s for any number of readers.
+ *
+ * A reader whose maximum age the current snapshot meets gets it with one volatile read, no lock and no
+ * hardware access. Otherwise the snapshot is refreshed, by one thread at a time: readers that find a
+ * refresh running wait for it and take its result. A background refresh can keep the snapshot fresh so
+ * readers never wait.
+ */
+final class SnapshotPublisher {
+
+    private static final String TAG = "SnapshotPublisher";
+
+    /**
+     * Reads a new snapshot from the hardware.
+     */
+    interface Reader {
+        HardwareSnapshot read();
+    }
+
+    private final Reader reader;
+    private final Object refreshLock = new Object();
+    private final Object schedulerLock = new Object();
+
+    private volatile HardwareSnapshot current;
+    private ScheduledExecutorService scheduler;
+
+    SnapshotPublisher(Reader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * @return A snapshot at most maxAgeMillis old, refreshed first if the current one is older.
+     */
+    HardwareSnapshot get(int maxAgeMillis) {
+        long maxAgeNanos = maxAgeMillis * 1000000L;
+        HardwareSnapshot snapshot = current;
+        if(snapshot != null && System.nanoTime() - snapshot.getTimestampNanos() <= maxAgeNanos){
+            return snapshot;
+        }
+
+        synchronized (refreshLock){
+            // Taken after a refresh that ran while this thread waited, that one is fresh enough
+            snapshot = current;
+            if(snapshot != null && System.nanoTime() - snapshot.getTimestampNanos() <= maxAgeNanos){
+                return snapshot;
+            }
+            return refresh();
+        }
+    }
+
+    /**
+     * @return The current snapshot whatever its age, null before the first refresh.
+     */
+    HardwareSnapshot getLatest() {
+        return current;
+    }
+
+    /**
+     * Refreshes the snapshot every periodMillis on a library thread, replacing an earlier schedule.
+     */
+    void start(int periodMillis) {
+        if(periodMillis <= 0){
+            throw new IllegalArgumentException("periodMillis must be positive, not " + periodMillis);
+        }
+
+        synchronized (schedulerLock){
+            stop();
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "MicronetHardware-snapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        synchronized (refreshLock){
+                            refresh();
+                        }
+                    } catch (RuntimeException e) {
+                        // Keep the schedule going, the next refresh may work
+                        Log.e(TAG, "Error refreshing hardware snapshot", e);
+                    }
+                }
+            }, 0, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops the background refresh, the current snapshot stays published.
+     */
+    void stop() {
+        synchronized (schedulerLock){
+            if(scheduler != null){
+                scheduler.shutdownNow();
+                scheduler = null;
+            }
+        }
+    }
+
+    private HardwareSnapshot refresh() {
+        HardwareSnapshot snapshot = reader.read();
+        current = snapshot;
+        return snapshot;
+    }
+}
@@ -0,0 +1,172 @@
+package micronet.hardware;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+
+/**
+ * Reads and sets Android system properties in process through libmctl, which calls bionic's
+ * __system_property_get/set instead of forking getprop and setprop.
+ *
+ * Falls back to running getprop and setprop if libmctl can't be loaded or has no property support, as
+ * in a host build. Setting the micronet.properties Java system property to "exec" forces that, ex: on
+ * hosts where the property service is replaced by stub getprop/setprop commands. Tests can install
+ * their own {@link Accessor}.
+ */
+final class SystemProperty {
+
+    private static final String TAG = "SystemProperty";
+
+    static final String BACKEND_PROPERTY = "micronet.properties";
+
+    /**
+     * How often the exec fallback runs getprop while waiting for a value.
+     */
+    private static final long EXEC_POLL_MILLIS = 5;
+
+    /**
+     * Access to the property service.
+     */
+    interface Accessor {
+
+        /**
+         * @return The value of the property, an empty string if it isn't set or can't be read.
+         */
+        String get(String key);
+
+        /**
+         * @return true if the value was handed to the property service.
+         */
+        boolean set(String key, String value);
+
+        /**
+         * Waits up to timeoutMillis for the property to have the given value.
+         * @return true once it has, false on timeout.
+         */
+        boolean waitFor(String key, String value, int timeoutMillis) throws InterruptedException;
+    }
+
+    private static native boolean jniIsSupported();
+    private static native String jniGet(String key);
+    private static native int jniSet(String key, String value);
+    private static native int jniWaitFor(String key, String value, int timeoutMillis);
+
+    private static final Accessor NATIVE = new Accessor() {
+        @Override
+        public String get(String key) {
+            String value = jniGet(key);
+            return value == null ? "" : value;
+        }
+
+        @Override
+        public boolean set(String key, String value) {
+            return jniSet(key, value) == 0;
+        }
+
+        @Override
+        public boolean waitFor(String key, String value, int timeoutMillis) {
+            return jniWaitFor(key, value, timeoutMillis) == 1;
+        }
+    };
+
+    private static final Accessor EXEC = new Accessor() {
+        @Override
+        public String get(String key) {
+            try {
+                Process process = Runtime.getRuntime().exec(new String[]{"getprop", key});
+                BufferedInputStream bufferedInputStream = new BufferedInputStream(process.getInputStream());
+                byte[] byteArr = new byte[92];
+                int bytesRead = bufferedInputStream.read(byteArr);
+                bufferedInputStream.close();
+                return bytesRead < 1 ? "" : (new String(byteArr, 0, bytesRead)).replace("\"", "").trim();
+            } catch (IOException e) {
+                Log.e(TAG, "Error running getprop " + key + ": " + e.getMessage());
+                return "";
+            }
+        }
+
+        @Override
+        public boolean set(String key, String value) {
+            try {
+                Runtime.getRuntime().exec(new String[]{"setprop", key, value});
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "Error running setprop " + key + ": " + e.getMessage());
+                return false;
+            }
+        }
+
+        @Override
+        public boolean waitFor(String key, String value, int timeoutMillis) throws InterruptedException {
+            return poll(this, key, value, timeoutMillis, EXEC_POLL_MILLIS);
+        }
+    };
+
+    private static volatile Accessor accessor = defaultAccessor();
+
+    private SystemProperty(){}
+
+    /**
+     * @return The value of the property, an empty string if it isn't set or can't be read.
+     */
+    static String get(String key) {
+        return accessor.get(key);
+    }
+
+    /**
+     * @return true if the value was handed to the property service.
+     */
+    static boolean set(String key, String value) {
+        return accessor.set(key, value);
+    }
+
+    /**
+     * Waits up to timeoutMillis for the property to have the given value, without polling where the
+     * platform can wait for a property change.
+     * @return true once it has, false on timeout.
+     */
+    static boolean waitFor(String key, String value, int timeoutMillis) throws InterruptedException {
+        return accessor.waitFor(key, value, timeoutMillis);
+    }
+
+    /**
+     * Replaces the property service, ex: with an in-memory one on a host. Null restores the default.
+     */
+    static void setAccessor(Accessor replacement) {
+        accessor = replacement == null ? defaultAccessor() : replacement;
+    }
+
+    /**
+     * Waits for a value by reading the property every intervalMillis.
+     */
+    static boolean poll(Accessor accessor, String key, String value, int timeoutMillis, long intervalMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while(true){
+            if(accessor.get(key).equals(value)){
+                return true;
+            }
+            long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+            if(remainingMillis <= 0){
+                return false;
+            }
+            Thread.sleep(Math.min(remainingMillis, intervalMillis));
+        }
+    }
+
+    private static Accessor defaultAccessor() {
+        if("exec".equals(System.getProperty(BACKEND_PROPERTY))){
+            return EXEC;
+        }
+
+        try {
+            System.loadLibrary("mctl");
+            if(jniIsSupported()){
+                return NATIVE;
+            }
+        } catch (UnsatisfiedLinkError e) {
+            Log.e(TAG, "No native system properties, running getprop/setprop: " + e.getMessage());
+        }
+        return EXEC;
+    }
+}
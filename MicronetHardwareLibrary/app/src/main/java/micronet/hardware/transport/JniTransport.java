@@ -0,0 +1,49 @@
+package micronet.hardware.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Transport over the iodriver socket, through libmctl. Each calling thread has its own socket.
+ */
+public final class JniTransport implements MapiTransport {
+
+    static {
+        System.loadLibrary("mctl");
+    }
+
+    private static final JniTransport instance = new JniTransport();
+
+    private native static int jniTransfer(int timeoutMillis, ByteBuffer slots, int count, int[] results);
+    private native static int jniGeneration();
+
+    private JniTransport(){}
+
+    /**
+     * @return The transport, loading libmctl on first use.
+     */
+    public static JniTransport getInstance(){
+        return instance;
+    }
+
+    /**
+     * {@inheritDoc} The slots must be in a direct buffer.
+     */
+    @Override
+    public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+        if(!slots.isDirect()){
+            throw new IllegalArgumentException("JniTransport needs a direct buffer");
+        }
+        if(count > MAX_REQUESTS){
+            throw new IllegalArgumentException("At most " + MAX_REQUESTS + " requests per transfer, not " + count);
+        }
+        return jniTransfer(timeoutMillis, slots, count, results);
+    }
+
+    /**
+     * {@inheritDoc} Counts the sockets of any thread dropped after a failure, see iosocket_generation().
+     */
+    @Override
+    public int getGeneration() {
+        return jniGeneration();
+    }
+}
@@ -0,0 +1,277 @@
+package micronet.hardware.transport;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import static micronet.hardware.transport.MapiCodec.*;
+
+/**
+ * In-memory MCU, answers requests right away without libmctl or the iodriver daemon.
+ *
+ * It keeps the state the requests change, the same way the native fake_iodriver in src/test/jni does:
+ * writes to the leds, power on threshold, rtc and debug registers are read back, the rtc runs from the
+ * last time it was set and adc channel n reads 1000 * (n + 1) + n mV until set.
+ */
+public class LoopbackTransport implements MapiTransport {
+
+    public static final int ADC_CHANNEL_COUNT = 12;
+    public static final int LED_COUNT = 3;
+    public static final int RTC_FLAGS_ADDRESS = 0x0F;
+
+    private static final byte[] MCU_VERSION = {0xA, 0x1, 0x2, 0x0};
+    private static final int FPGA_VERSION = 0x41000002;
+
+    private final int[] adc = new int[ADC_CHANNEL_COUNT];
+    private final byte[][] leds = new byte[LED_COUNT][4];   // brightness, red, green, blue
+    private final byte[] powerOnThreshold = new byte[6];    // wiggle count, sample period, ignition threshold
+    private final byte[] rtcCal = new byte[2];
+    private final byte[] rtcRegisters = new byte[256];
+    private final byte[] gpioDbg = new byte[65536];
+    private int powerOnReason;
+    private int powerOffWait = -1;
+    private int wiggleCount;
+    private long rtcBaseMillis;
+    private long rtcSetNanos;
+
+    private final byte[] request = new byte[MAX_PACKET_SIZE];
+    private final byte[] payload = new byte[MAX_PACKET_SIZE - 1];
+    private int requests;
+    private int generation;
+
+    public LoopbackTransport() {
+        for(int i = 0; i < ADC_CHANNEL_COUNT; i++){
+            adc[i] = 1000 * (i + 1) + i;
+        }
+        rtcBaseMillis = System.currentTimeMillis();
+        rtcSetNanos = System.nanoTime();
+    }
+
+    @Override
+    public synchronized int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+        int first = SUCCESS;
+        for(int i = 0; i < count; i++){
+            if(first != SUCCESS){
+                results[i] = first;
+                continue;
+            }
+            int length = MapiCodec.getRequest(slots, i, request);
+            results[i] = handle(length);
+            if(results[i] > 0){
+                MapiCodec.putResponse(slots, i, payload, results[i]);
+            }else if(results[i] < 0){
+                first = results[i];
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public synchronized int getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Acts as if the connection to the MCU was lost and replaced, changing the generation.
+     */
+    public synchronized void reconnect() {
+        generation++;
+    }
+
+    /**
+     * @return The number of requests answered or applied so far.
+     */
+    public synchronized int getRequestCount() {
+        return requests;
+    }
+
+    public synchronized void setAdc(int channel, int millivolts) {
+        adc[channel] = millivolts;
+    }
+
+    public synchronized void setPowerOnReason(int reason) {
+        powerOnReason = reason;
+    }
+
+    public synchronized void setWiggleCount(int count) {
+        wiggleCount = count;
+    }
+
+    /**
+     * Sets the battery flag of the rtc flags register, a bad battery sets bit 4.
+     */
+    public synchronized void setRtcBatteryGood(boolean good) {
+        if(good){
+            rtcRegisters[RTC_FLAGS_ADDRESS] &= ~0x10;
+        }else{
+            rtcRegisters[RTC_FLAGS_ADDRESS] |= 0x10;
+        }
+    }
+
+    /**
+     * @return The wait time of the last power off request in seconds, -1 if there was none.
+     */
+    public synchronized int getPowerOffWait() {
+        return powerOffWait;
+    }
+
+    /**
+     * @return The brightness, red, green and blue of a led.
+     */
+    public synchronized int[] getLed(int led) {
+        int[] state = new int[4];
+        for(int i = 0; i < 4; i++){
+            state[i] = leds[led][i] & 0xFF;
+        }
+        return state;
+    }
+
+    /**
+     * Applies the request to the MCU state.
+     * @return the reply payload length of a read, in payload, SUCCESS for a write or an error code.
+     */
+    private int handle(int requestLength) {
+        if(requestLength < 3 || requestLength > MAX_PACKET_SIZE){
+            return TX_MSG_FAILURE;
+        }
+        requests++;
+        if(request[0] != MCTRL_MAPI){
+            // The iodriver drops it, a read would wait for a reply that never comes
+            return request[1] == MAPI_READ_RQ ? RX_MSG_FAILURE : SUCCESS;
+        }
+        if(request[1] == MAPI_READ_RQ){
+            Arrays.fill(payload, (byte) 0);
+            return handleRead(request[2] & 0xFF, param(request, requestLength, 0), param(request, requestLength, 1), payload);
+        }
+        handleWrite(request[2] & 0xFF, request, requestLength);
+        return SUCCESS;
+    }
+
+    /** Parameters missing from a short request read as 0. */
+    private static int param(byte[] request, int requestLength, int index) {
+        return (3 + index < requestLength) ? request[3 + index] & 0xFF : 0;
+    }
+
+    private int handleRead(int command, int param0, int param1, byte[] payload) {
+        switch(command){
+            case MAPI_GET_MCU_FW_VERSION:
+                System.arraycopy(MCU_VERSION, 0, payload, 0, MCU_VERSION.length);
+                return MCU_VERSION.length;
+            case MAPI_GET_FPGA_VERSION:
+                return putInt(payload, FPGA_VERSION);
+            case MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE:
+                return putInt(payload, adc[param0 % ADC_CHANNEL_COUNT]);
+            case MAPI_GET_LED_STATUS:
+                System.arraycopy(leds[param0 % LED_COUNT], 0, payload, 0, 4);
+                return 4;
+            case MAPI_GET_POWER_ON_THRESHOLD:
+                System.arraycopy(powerOnThreshold, 0, payload, 0, powerOnThreshold.length);
+                return powerOnThreshold.length;
+            case MAPI_GET_POWER_ON_REASON:
+                payload[0] = (byte) powerOnReason;
+                return 1;
+            case MAPI_GET_RTC_DATE_TIME:
+                return rtcBcd(payload);
+            case MAPI_GET_RTC_CAL_REGISTERS:
+                System.arraycopy(rtcCal, 0, payload, 0, rtcCal.length);
+                return rtcCal.length;
+            case MAPI_GET_RTC_REG_DBG:
+                payload[0] = rtcRegisters[param0];
+                return 1;
+            case MAPI_GET_MCU_GPIO_STATE_DBG:
+                payload[0] = gpioDbg[(param0 << 8) | param1];
+                return 1;
+            case MAPI_GET_WIGGLE_COUNT_REQ_DBG:
+                return putInt(payload, wiggleCount);
+            default:
+                return 8;
+        }
+    }
+
+    private void handleWrite(int command, byte[] request, int requestLength) {
+        int param0 = param(request, requestLength, 0);
+        int param1 = param(request, requestLength, 1);
+        switch(command){
+            case MAPI_SET_LED_STATUS:
+                if(param0 < LED_COUNT){
+                    for(int i = 0; i < 4; i++){
+                        leds[param0][i] = (byte) param(request, requestLength, 1 + i);
+                    }
+                }
+                break;
+            case MAPI_SET_POWER_ON_THRESHOLD:
+                for(int i = 0; i < powerOnThreshold.length; i++){
+                    powerOnThreshold[i] = (byte) param(request, requestLength, i);
+                }
+                break;
+            case MAPI_SET_DEVICE_POWER_OFF:
+                powerOffWait = param0;
+                break;
+            case MAPI_SET_RTC_DATE_TIME:
+                setRtcBcd(request, requestLength);
+                break;
+            case MAPI_SET_RTC_CAL_REGISTERS:
+                rtcCal[0] = (byte) param0;
+                rtcCal[1] = (byte) param1;
+                break;
+            case MAPI_SET_RTC_REG_DBG:
+                rtcRegisters[param0] = (byte) param1;
+                break;
+            case MAPI_SET_MCU_GPIO_STATE_DBG:
+                gpioDbg[(param0 << 8) | param1] = (byte) (param(request, requestLength, 2) & 0x1);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /** Little endian, like the MCU. */
+    private static int putInt(byte[] payload, int value) {
+        payload[0] = (byte) value;
+        payload[1] = (byte) (value >> 8);
+        payload[2] = (byte) (value >> 16);
+        payload[3] = (byte) (value >> 24);
+        return 4;
+    }
+
+    private static int toBcd(int value) {
+        return ((value / 10) << 4) | (value % 10);
+    }
+
+    private static int fromBcd(int bcd) {
+        return (bcd >> 4) * 10 + (bcd & 0x0F);
+    }
+
+    /** Rtc registers, running from the last set. */
+    private int rtcBcd(byte[] bcd) {
+        long elapsedMillis = (System.nanoTime() - rtcSetNanos) / 1000000L;
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(rtcBaseMillis + elapsedMillis);
+
+        int year = calendar.get(Calendar.YEAR);
+        bcd[0] = (byte) toBcd(calendar.get(Calendar.MILLISECOND) / 10);
+        bcd[1] = (byte) toBcd(calendar.get(Calendar.SECOND));
+        bcd[2] = (byte) toBcd(calendar.get(Calendar.MINUTE));
+        bcd[3] = (byte) ((((year - 2000) / 100) << 6) | toBcd(calendar.get(Calendar.HOUR_OF_DAY)));
+        bcd[4] = 0;
+        bcd[5] = (byte) toBcd(calendar.get(Calendar.DAY_OF_MONTH));
+        bcd[6] = (byte) toBcd(calendar.get(Calendar.MONTH) + 1);
+        bcd[7] = (byte) toBcd(year % 100);
+        return 8;
+    }
+
+    private void setRtcBcd(byte[] request, int requestLength) {
+        int[] bcd = new int[8];
+        for(int i = 0; i < bcd.length; i++){
+            bcd[i] = param(request, requestLength, i);
+        }
+
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.clear();
+        calendar.set(2000 + (bcd[3] >> 6) * 100 + fromBcd(bcd[7]), fromBcd(bcd[6] & 0x1F) - 1,
+                fromBcd(bcd[5] & 0x3F), fromBcd(bcd[3] & 0x3F), fromBcd(bcd[2] & 0x7F), fromBcd(bcd[1] & 0x7F));
+        rtcBaseMillis = calendar.getTimeInMillis() + fromBcd(bcd[0]) * 10;
+        rtcSetNanos = System.nanoTime();
+    }
+}
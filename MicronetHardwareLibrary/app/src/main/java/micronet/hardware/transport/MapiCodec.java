@@ -0,0 +1,389 @@
+package micronet.hardware.transport;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static micronet.hardware.transport.MapiTransport.*;
+
+/**
+ * Encodes MAPI requests and decodes their replies, the Java side of api_constants.h.
+ *
+ * A codec holds one batch of requests in a direct buffer laid out as {@link MapiTransport} expects. The
+ * add methods frame a request and return its slot, {@link #transfer} sends the batch, then the get
+ * methods decode the replies by slot. Reply values are little endian, bytes the MCU didn't send decode as 0.
+ *
+ * A codec is reused for every batch and is not thread safe, MControl keeps one per thread.
+ */
+public final class MapiCodec {
+
+    // Socket command type
+    public static final byte MCTRL_MAPI = 0x02;
+
+    // Type of API command
+    public static final byte MAPI_WRITE_RQ = 0;
+    public static final byte MAPI_READ_RQ = 1;
+
+    // MAPI commands
+    public static final int MAPI_GET_MCU_FW_VERSION = 0x00;
+    public static final int MAPI_GET_FPGA_VERSION = 0x01;
+    public static final int MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE = 0x04;
+    public static final int MAPI_GET_LED_STATUS = 0x05;
+    public static final int MAPI_SET_LED_STATUS = 0x06;
+    public static final int MAPI_GET_POWER_ON_THRESHOLD = 0x07;
+    public static final int MAPI_SET_POWER_ON_THRESHOLD = 0x08;
+    public static final int MAPI_GET_POWER_ON_REASON = 0x09;
+    public static final int MAPI_SET_DEVICE_POWER_OFF = 0x0A;
+    public static final int MAPI_GET_RTC_DATE_TIME = 0x0B;
+    public static final int MAPI_SET_RTC_DATE_TIME = 0x0C;
+    public static final int MAPI_GET_RTC_CAL_REGISTERS = 0x0D;
+    public static final int MAPI_SET_RTC_CAL_REGISTERS = 0x0E;
+    public static final int MAPI_GET_RTC_REG_DBG = 0x10;
+    public static final int MAPI_SET_RTC_REG_DBG = 0x11;
+    public static final int MAPI_GET_MCU_GPIO_STATE_DBG = 0x12;
+    public static final int MAPI_SET_MCU_GPIO_STATE_DBG = 0x13;
+    public static final int MAPI_GET_WIGGLE_COUNT_REQ_DBG = 0x16;
+
+    /** Rtc registers in a date time request or reply. */
+    public static final int RTC_BCD_SIZE = 8;
+
+    private final ByteBuffer slots = ByteBuffer.allocateDirect(MAX_REQUESTS * SLOT_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final int[] results = new int[MAX_REQUESTS];
+    private int count;
+
+    /**
+     * Starts a new batch, replies of the previous one are no longer available.
+     */
+    public MapiCodec clear() {
+        count = 0;
+        return this;
+    }
+
+    /**
+     * @return The number of requests in the batch.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Sends the batch.
+     * @return {@link MapiTransport#SUCCESS} if every request succeeded, otherwise the first error.
+     */
+    public int transfer(MapiTransport transport, int timeoutMillis) {
+        return transport.transfer(slots, count, results, timeoutMillis);
+    }
+
+    /**
+     * Fails every request of the batch with the given error, for requests that could not be sent.
+     */
+    public void fail(int resultCode) {
+        for(int i = 0; i < count; i++){
+            results[i] = resultCode;
+        }
+    }
+
+    // Requests
+
+    public int addGetMcuVersion() {
+        return addRead(MAPI_GET_MCU_FW_VERSION, 0);
+    }
+
+    public int addGetFpgaVersion() {
+        return addRead(MAPI_GET_FPGA_VERSION, 0);
+    }
+
+    public int addGetAdcVoltage(int channel) {
+        int slot = addRead(MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, 1);
+        putParam(slot, 0, channel);
+        return slot;
+    }
+
+    public int addGetLedStatus(int led) {
+        int slot = addRead(MAPI_GET_LED_STATUS, 1);
+        putParam(slot, 0, led);
+        return slot;
+    }
+
+    /**
+     * @param rgb color as 0xRRGGBB.
+     */
+    public int addSetLedStatus(int led, int brightness, int rgb) {
+        int slot = addWrite(MAPI_SET_LED_STATUS, 5);
+        putParam(slot, 0, led);
+        putParam(slot, 1, brightness);
+        putParam(slot, 2, rgb >> 16);
+        putParam(slot, 3, rgb >> 8);
+        putParam(slot, 4, rgb);
+        return slot;
+    }
+
+    public int addGetPowerOnThreshold() {
+        return addRead(MAPI_GET_POWER_ON_THRESHOLD, 0);
+    }
+
+    public int addSetPowerOnThreshold(int wiggleCount, int wiggleSamplePeriod, int ignitionThreshold) {
+        int slot = addWrite(MAPI_SET_POWER_ON_THRESHOLD, 6);
+        int offset = paramOffset(slot);
+        slots.putShort(offset, (short) wiggleCount);
+        slots.putShort(offset + 2, (short) wiggleSamplePeriod);
+        slots.putShort(offset + 4, (short) ignitionThreshold);
+        return slot;
+    }
+
+    public int addGetPowerOnReason() {
+        return addRead(MAPI_GET_POWER_ON_REASON, 0);
+    }
+
+    /**
+     * @param waitSeconds sent as one byte, like libmctl always did.
+     */
+    public int addSetDevicePowerOff(int waitSeconds) {
+        int slot = addWrite(MAPI_SET_DEVICE_POWER_OFF, 1);
+        putParam(slot, 0, waitSeconds);
+        return slot;
+    }
+
+    public int addGetRtcDateTime() {
+        return addRead(MAPI_GET_RTC_DATE_TIME, 0);
+    }
+
+    /**
+     * Encodes "2016-08-25 16:00:55.11" into the rtc registers. The digits are the bcd nibbles, the
+     * century goes in the top bits of the hours.
+     * @param dateTime a date time already checked against that form.
+     */
+    public int addSetRtcDateTime(String dateTime) {
+        int slot = addWrite(MAPI_SET_RTC_DATE_TIME, RTC_BCD_SIZE);
+        int year = parseBcd(dateTime, 0, 4);
+        int century = (year >> 8) & 0x0F;
+
+        putParam(slot, 0, parseBcd(dateTime, 20, 2));
+        putParam(slot, 1, parseBcd(dateTime, 17, 2));
+        putParam(slot, 2, parseBcd(dateTime, 14, 2));
+        putParam(slot, 3, (century << 6) | parseBcd(dateTime, 11, 2));
+        putParam(slot, 4, 0); // Day of week is not used
+        putParam(slot, 5, parseBcd(dateTime, 8, 2));
+        putParam(slot, 6, parseBcd(dateTime, 5, 2));
+        putParam(slot, 7, year);
+        return slot;
+    }
+
+    public int addGetRtcCalRegisters() {
+        return addRead(MAPI_GET_RTC_CAL_REGISTERS, 0);
+    }
+
+    public int addSetRtcCalRegisters(int digital, int analog) {
+        int slot = addWrite(MAPI_SET_RTC_CAL_REGISTERS, 2);
+        putParam(slot, 0, digital);
+        putParam(slot, 1, analog);
+        return slot;
+    }
+
+    public int addGetRtcRegister(int address) {
+        int slot = addRead(MAPI_GET_RTC_REG_DBG, 1);
+        putParam(slot, 0, address);
+        return slot;
+    }
+
+    public int addSetRtcRegister(int address, int value) {
+        int slot = addWrite(MAPI_SET_RTC_REG_DBG, 2);
+        putParam(slot, 0, address);
+        putParam(slot, 1, value);
+        return slot;
+    }
+
+    /**
+     * @param gpio MCU gpio number, sent big endian.
+     */
+    public int addGetGpioState(int gpio) {
+        int slot = addRead(MAPI_GET_MCU_GPIO_STATE_DBG, 2);
+        putParam(slot, 0, gpio >> 8);
+        putParam(slot, 1, gpio);
+        return slot;
+    }
+
+    public int addSetGpioState(int gpio, int value) {
+        int slot = addWrite(MAPI_SET_MCU_GPIO_STATE_DBG, 3);
+        putParam(slot, 0, gpio >> 8);
+        putParam(slot, 1, gpio);
+        putParam(slot, 2, value & 0x1);
+        return slot;
+    }
+
+    public int addGetWiggleCount() {
+        return addRead(MAPI_GET_WIGGLE_COUNT_REQ_DBG, 0);
+    }
+
+    /**
+     * Frames a read request, the caller puts paramCount parameter bytes with {@link #putParam}.
+     * @return the slot of the request.
+     */
+    public int addRead(int command, int paramCount) {
+        return add(MAPI_READ_RQ, command, paramCount);
+    }
+
+    /**
+     * Frames a write request, the caller puts paramCount parameter bytes with {@link #putParam}.
+     * @return the slot of the request.
+     */
+    public int addWrite(int command, int paramCount) {
+        return add(MAPI_WRITE_RQ, command, paramCount);
+    }
+
+    public void putParam(int slot, int index, int value) {
+        slots.put(paramOffset(slot) + index, (byte) value);
+    }
+
+    // Replies
+
+    /**
+     * @return The payload length of a read, {@link MapiTransport#SUCCESS} for a write, or a negative error code.
+     */
+    public int getResult(int slot) {
+        checkSlot(slot);
+        return results[slot];
+    }
+
+    public int getUnsignedByte(int slot, int offset) {
+        return has(slot, offset, 1) ? slots.get(payloadOffset(slot) + offset) & 0xFF : 0;
+    }
+
+    public int getUnsignedShort(int slot, int offset) {
+        return has(slot, offset, 2) ? slots.getShort(payloadOffset(slot) + offset) & 0xFFFF : 0;
+    }
+
+    public int getInt(int slot, int offset) {
+        return has(slot, offset, 4) ? slots.getInt(payloadOffset(slot) + offset) : 0;
+    }
+
+    /**
+     * Decodes the rtc registers of a date time reply into year, month, day, hours, minutes, seconds and
+     * hundredths.
+     */
+    public void getRtcDateTime(int slot, int[] fields) {
+        for(int i = 0; i < 7; i++){
+            fields[i] = getRtcField(slot, i);
+        }
+    }
+
+    /**
+     * Decodes the rtc registers of a date time reply into milliseconds since the epoch, taking the rtc to
+     * run in UTC. Same fields as {@link #getRtcDateTime(int, int[])}, without allocating.
+     */
+    public long getRtcEpochMillis(int slot) {
+        long days = daysFromCivil(getRtcField(slot, 0), getRtcField(slot, 1), getRtcField(slot, 2));
+        long secondOfDay = getRtcField(slot, 3) * 3600 + getRtcField(slot, 4) * 60 + getRtcField(slot, 5);
+        return (days * 86400 + secondOfDay) * 1000 + getRtcField(slot, 6) * 10;
+    }
+
+    /**
+     * Decodes one field of a date time reply from its bcd register, in the order of
+     * {@link #getRtcDateTime(int, int[])}.
+     */
+    private int getRtcField(int slot, int field) {
+        switch(field){
+            case 0:
+                // The century is kept in the top bits of the hours
+                return 2000 + (getUnsignedByte(slot, 3) >> 6) * 100 + fromBcd(getUnsignedByte(slot, 7));
+            case 1:
+                return fromBcd(getUnsignedByte(slot, 6) & 0x1F);
+            case 2:
+                return fromBcd(getUnsignedByte(slot, 5) & 0x3F);
+            case 3:
+                return fromBcd(getUnsignedByte(slot, 3) & 0x3F);
+            case 4:
+                return fromBcd(getUnsignedByte(slot, 2) & 0x7F);
+            case 5:
+                return fromBcd(getUnsignedByte(slot, 1) & 0x7F);
+            default:
+                return fromBcd(getUnsignedByte(slot, 0));
+        }
+    }
+
+    private static int fromBcd(int bcd) {
+        return (bcd >> 4) * 10 + (bcd & 0x0F);
+    }
+
+    /**
+     * Days since 1970-01-01 of a date in the proleptic Gregorian calendar, without a Calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        year -= month <= 2 ? 1 : 0;
+        int era = (year >= 0 ? year : year - 399) / 400;
+        int yearOfEra = year - era * 400;
+        int dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    // Slot access for transports
+
+    /**
+     * Copies the request of a slot.
+     * @param request receives the datagram, at least {@link MapiTransport#MAX_PACKET_SIZE} bytes.
+     * @return the datagram length, as framed. It can be out of range in a buffer not framed by a codec.
+     */
+    public static int getRequest(ByteBuffer slots, int slot, byte[] request) {
+        int base = slot * SLOT_SIZE;
+        int length = slots.get(base) & 0xFF;
+        for(int i = 0; i < Math.min(length, MAX_PACKET_SIZE); i++){
+            request[i] = slots.get(base + 1 + i);
+        }
+        return length;
+    }
+
+    /**
+     * Writes a reply payload over the request of a slot.
+     */
+    public static void putResponse(ByteBuffer slots, int slot, byte[] payload, int length) {
+        int base = slot * SLOT_SIZE + 1;
+        for(int i = 0; i < Math.min(length, MAX_PACKET_SIZE); i++){
+            slots.put(base + i, payload[i]);
+        }
+    }
+
+    private int add(byte type, int command, int paramCount) {
+        if(count == MAX_REQUESTS){
+            throw new IllegalStateException("At most " + MAX_REQUESTS + " requests per batch");
+        }
+        int slot = count++;
+        int base = slot * SLOT_SIZE;
+        slots.put(base, (byte) (3 + paramCount));
+        slots.put(base + 1, MCTRL_MAPI);
+        slots.put(base + 2, type);
+        slots.put(base + 3, (byte) command);
+        results[slot] = CONNECTION_FAILURE;
+        return slot;
+    }
+
+    private void checkSlot(int slot) {
+        if(slot < 0 || slot >= count){
+            throw new IndexOutOfBoundsException("No slot " + slot + " in a batch of " + count);
+        }
+    }
+
+    private boolean has(int slot, int offset, int size) {
+        return getResult(slot) >= offset + size && offset >= 0;
+    }
+
+    private static int paramOffset(int slot) {
+        return slot * SLOT_SIZE + 4;
+    }
+
+    private static int payloadOffset(int slot) {
+        return slot * SLOT_SIZE + 1;
+    }
+
+    /** Parses decimal digits as hex, which gives their bcd encoding. */
+    private static int parseBcd(String s, int start, int length) {
+        int value = 0;
+        for(int i = start; i < start + length; i++){
+            int digit = Character.digit(s.charAt(i), 16);
+            if(digit < 0){
+                throw new IllegalArgumentException("Not a digit at " + i + " in " + s);
+            }
+            value = (value << 4) | digit;
+        }
+        return value;
+    }
+}
@@ -0,0 +1,114 @@
+package micronet.hardware.transport;
+
+import java.util.Arrays;
+
+/**
+ * One request and its outcome, as kept by {@link RecordingTransport} and played back by
+ * {@link ReplayTransport}.
+ *
+ * The text form is one line: "read", the request in hex, the result code and the reply payload in hex,
+ * ex: "read 020104 4 e9030000". Writes have no payload: "write 0200060164ff0000 0".
+ */
+public final class MapiExchange {
+
+    private final boolean read;
+    private final byte[] request;
+    private final int result;
+    private final byte[] response;
+
+    /**
+     * @param response the reply payload, only the first result bytes are kept.
+     */
+    public MapiExchange(boolean read, byte[] request, int requestLength, int result, byte[] response) {
+        this.read = read;
+        this.request = Arrays.copyOf(request, requestLength);
+        this.result = result;
+        this.response = (read && result > 0) ? Arrays.copyOf(response, Math.min(result, response.length)) : new byte[0];
+    }
+
+    public boolean isRead() {
+        return read;
+    }
+
+    public byte[] getRequest() {
+        return request.clone();
+    }
+
+    public int getResult() {
+        return result;
+    }
+
+    public byte[] getResponse() {
+        return response.clone();
+    }
+
+    /**
+     * @return true if this exchange was for the given request.
+     */
+    boolean matches(boolean read, byte[] request, int requestLength) {
+        if(this.read != read || this.request.length != requestLength){
+            return false;
+        }
+        for(int i = 0; i < requestLength; i++){
+            if(this.request[i] != request[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder line = new StringBuilder(read ? "read " : "write ");
+        appendHex(line, request).append(' ').append(result);
+        if(read){
+            appendHex(line.append(' '), response);
+        }
+        return line.toString();
+    }
+
+    /**
+     * Parses the text form given by {@link #toString()}.
+     * @throws IllegalArgumentException if the line is not an exchange.
+     */
+    public static MapiExchange parse(String line) {
+        String[] fields = line.trim().split(" ");
+        boolean read = "read".equals(fields[0]);
+        if(!(read || "write".equals(fields[0])) || fields.length < 3){
+            throw new IllegalArgumentException("Not a MAPI exchange: " + line);
+        }
+
+        byte[] request = parseHex(fields[1], line);
+        int result;
+        try {
+            result = Integer.parseInt(fields[2]);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad result code in: " + line);
+        }
+        byte[] response = (read && fields.length > 3) ? parseHex(fields[3], line) : new byte[0];
+        return new MapiExchange(read, request, request.length, result, response);
+    }
+
+    private static StringBuilder appendHex(StringBuilder sb, byte[] bytes) {
+        for(byte b : bytes){
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb;
+    }
+
+    private static byte[] parseHex(String hex, String line) {
+        if(hex.length() % 2 != 0){
+            throw new IllegalArgumentException("Odd hex length in: " + line);
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i = 0; i < bytes.length; i++){
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if(high < 0 || low < 0){
+                throw new IllegalArgumentException("Bad hex in: " + line);
+            }
+            bytes[i] = (byte) ((high << 4) | low);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,51 @@
+package micronet.hardware.transport;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves MAPI datagrams between the library and the MCU.
+ *
+ * Requests are framed by {@link MapiCodec} into slots of a ByteBuffer: slot i starts at
+ * i * {@link #SLOT_SIZE} with the datagram length, followed by the datagram (MCTRL_MAPI, MAPI_READ_RQ or
+ * MAPI_WRITE_RQ, the command and its parameters). A transport sends the requests in order, reads may be
+ * kept in flight together. The reply payload of a read, without its command byte, replaces the request
+ * after the length byte. Writes are not acknowledged by the MCU.
+ *
+ * Implementations must be thread safe, MicronetHardware calls them from any thread.
+ */
+public interface MapiTransport {
+
+    int SUCCESS = 0;
+    int CONNECTION_FAILURE = -1;
+    int TX_MSG_FAILURE = -2;
+    int RX_MSG_FAILURE = -3;
+    int INVALID_RESP_MSG_TYPE = -4;
+
+    /** Largest request or reply datagram. */
+    int MAX_PACKET_SIZE = 32;
+
+    /** Length byte and datagram, MAPI_SLOT_SIZE in api.h. */
+    int SLOT_SIZE = 1 + MAX_PACKET_SIZE;
+
+    /** Largest number of requests per transfer, MAPI_TRANSFER_MAX in api.h. */
+    int MAX_REQUESTS = 32;
+
+    /**
+     * Sends count requests and waits for the replies to the reads. The timeout covers all of them.
+     * @param slots the requests, a direct buffer for {@link JniTransport}. Positions are absolute, the
+     *              buffer's position and limit are ignored.
+     * @param count number of requests, at most {@link #MAX_REQUESTS}.
+     * @param results receives each read's payload length, {@link #SUCCESS} for each write, or a negative
+     *                error code. Requests after a failed one fail with the same error.
+     * @param timeoutMillis time to wait for all the replies.
+     * @return {@link #SUCCESS} if every request succeeded, otherwise the first error.
+     */
+    int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis);
+
+    /**
+     * @return A number that changes when the connection to the MCU was lost and had to be replaced, ex: after
+     * the iodriver daemon or the MCU restarted. Facts read from the MCU once, like its version, are read
+     * again when it changes.
+     */
+    int getGeneration();
+}
@@ -0,0 +1,80 @@
+package micronet.hardware.transport;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Passes requests on to another transport and records every exchange, so a session with a real MCU can
+ * be replayed later with {@link ReplayTransport}. The requests of a transfer are recorded one by one, in
+ * order.
+ */
+public class RecordingTransport implements MapiTransport {
+
+    private final MapiTransport delegate;
+    private final List<MapiExchange> exchanges = new ArrayList<MapiExchange>();
+
+    public RecordingTransport(MapiTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int getGeneration() {
+        return delegate.getGeneration();
+    }
+
+    @Override
+    public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+        // Replies replace the requests, keep them first
+        byte[][] requests = new byte[count][];
+        byte[] request = new byte[MAX_PACKET_SIZE];
+        for(int i = 0; i < count; i++){
+            int length = Math.min(MapiCodec.getRequest(slots, i, request), MAX_PACKET_SIZE);
+            requests[i] = Arrays.copyOf(request, length);
+        }
+
+        int result = delegate.transfer(slots, count, results, timeoutMillis);
+
+        byte[] response = new byte[MAX_PACKET_SIZE];
+        for(int i = 0; i < count; i++){
+            boolean read = requests[i].length > 1 && requests[i][1] == MapiCodec.MAPI_READ_RQ;
+            for(int j = 0; j < Math.max(results[i], 0) && j < MAX_PACKET_SIZE; j++){
+                response[j] = slots.get(i * SLOT_SIZE + 1 + j);
+            }
+            record(new MapiExchange(read, requests[i], requests[i].length, results[i], response));
+        }
+        return result;
+    }
+
+    /**
+     * @return A copy of the exchanges recorded so far, oldest first.
+     */
+    public synchronized List<MapiExchange> getExchanges() {
+        return new ArrayList<MapiExchange>(exchanges);
+    }
+
+    public synchronized void clear() {
+        exchanges.clear();
+    }
+
+    /**
+     * Writes the recorded exchanges as text, one per line. The stream is flushed, not closed.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "US-ASCII");
+        for(MapiExchange exchange : getExchanges()){
+            writer.write(exchange.toString());
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    private synchronized void record(MapiExchange exchange) {
+        exchanges.add(exchange);
+    }
+}
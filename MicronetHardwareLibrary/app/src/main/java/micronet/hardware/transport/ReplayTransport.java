@@ -0,0 +1,86 @@
+package micronet.hardware.transport;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Answers requests from recorded exchanges, in the order they were recorded.
+ *
+ * A request that isn't the next recorded one means the code under test talks to the MCU differently than
+ * when it was recorded, it throws an IllegalStateException instead of answering with the wrong reply.
+ */
+public class ReplayTransport implements MapiTransport {
+
+    private final List<MapiExchange> exchanges;
+    private int next;
+
+    public ReplayTransport(List<MapiExchange> exchanges) {
+        this.exchanges = new ArrayList<MapiExchange>(exchanges);
+    }
+
+    /**
+     * {@inheritDoc} A replay never reconnects.
+     */
+    @Override
+    public int getGeneration() {
+        return 0;
+    }
+
+    /**
+     * Reads exchanges written by {@link RecordingTransport#writeTo}. Blank lines and lines starting with
+     * '#' are skipped. The stream is not closed.
+     */
+    public static ReplayTransport from(InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        List<MapiExchange> exchanges = new ArrayList<MapiExchange>();
+        String line;
+        while((line = reader.readLine()) != null){
+            line = line.trim();
+            if(line.length() > 0 && line.charAt(0) != '#'){
+                exchanges.add(MapiExchange.parse(line));
+            }
+        }
+        return new ReplayTransport(exchanges);
+    }
+
+    @Override
+    public synchronized int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+        byte[] request = new byte[MAX_PACKET_SIZE];
+        int first = SUCCESS;
+        for(int i = 0; i < count; i++){
+            int length = Math.min(MapiCodec.getRequest(slots, i, request), MAX_PACKET_SIZE);
+            boolean read = length > 1 && request[1] == MapiCodec.MAPI_READ_RQ;
+            MapiExchange exchange = take(read, request, length);
+
+            byte[] response = exchange.getResponse();
+            MapiCodec.putResponse(slots, i, response, response.length);
+            results[i] = exchange.getResult();
+            if(results[i] < 0 && first == SUCCESS){
+                first = results[i];
+            }
+        }
+        return first;
+    }
+
+    /**
+     * @return The number of recorded exchanges not replayed yet.
+     */
+    public synchronized int getRemaining() {
+        return exchanges.size() - next;
+    }
+
+    private MapiExchange take(boolean read, byte[] request, int requestLength) {
+        MapiExchange expected = next < exchanges.size() ? exchanges.get(next) : null;
+        if(expected == null || !expected.matches(read, request, requestLength)){
+            MapiExchange actual = new MapiExchange(read, request, requestLength, 0, null);
+            throw new IllegalStateException("Exchange " + next + ": expected " + expected + ", got " + actual);
+        }
+        next++;
+        return expected;
+    }
+}
@@ -3,16 +3,8 @@
 
 #include <unistd.h>
 
-#include <sys/uio.h>
-
-
-#include <sys/types.h>
-#include <sys/stat.h>
-#include <fcntl.h>
-
 #include <stdbool.h>
 #include <stdint.h>
-#include <inttypes.h>
 
 #include <string.h>
 #include <errno.h>
@@ -22,363 +14,244 @@
 
 #include "api.h"
 
-#define RTC_BCD_SIZE	8
-#define RTC_FLAGS_ADDR 	0x0F
+/* The MAPI requests are framed and their replies decoded in Java (MapiCodec),
+ * this file only moves datagrams between the caller and the iodriver.
+ */
 
-typedef struct led_param_s
+typedef enum mapi_request_state
 {
-	uint8_t brightness;
-	uint8_t red;
-	uint8_t green;
-	uint8_t blue;
-}led_param_t;
+	MAPI_REQ_QUEUED,
+	MAPI_REQ_IN_FLIGHT,
+	MAPI_REQ_DONE,
+}mapi_request_state_t;
 
-typedef struct pwr_on_cfg_s
+void mapi_request_init(mapi_request_t * request, const uint8_t * req, size_t req_size, uint8_t * resp, size_t resp_size)
 {
-	uint16_t wiggle_count;
-	uint16_t wig_cnt_sample_period;
-	uint16_t ignition_threshold;
-}pwr_on_cfg_t;
+	memcpy(request->req, req, req_size);
+	request->req_size = req_size;
+	request->resp = resp;
+	request->resp_size = resp_size;
+	request->result = CONNECTION_FAILURE;
+	request->state = MAPI_REQ_QUEUED;
+}
 
-static int get_command(int * fd, uint8_t * req, size_t req_size, uint8_t * resp, size_t resp_size)
+/* Fails every request that hasn't completed yet */
+static void mapi_pipeline_abort(mapi_request_t * requests, size_t count, int in_flight_err, int queued_err)
 {
-	int num_bytes = 0;
-	uint8_t sock_resp[MAX_COMMAND_PACKET_SIZE];
+	size_t i;
 
-	if (*fd < 0)
+	for (i = 0; i < count; i++)
 	{
-		return CONNECTION_FAILURE;
-	}
-	//if(0 > (fd = iosocket_connect()))
-	//	return -1;
-
-	if(iosocket_sendmsg(fd, req, req_size))
-	{
-		iosocket_disconnect(fd);
-		return TX_MSG_FAILURE;
-	}
-
-	num_bytes = iosocket_recvmsg(fd, sock_resp, resp_size + 1);
-	if(-1 == num_bytes)
-	{
-		iosocket_disconnect(fd);
-		return RX_MSG_FAILURE;
-	}
-
-	if (req[2] != sock_resp[0])
-	{
-		return INVALID_RESP_MSG_TYPE;
+		if (requests[i].state == MAPI_REQ_IN_FLIGHT)
+		{
+			requests[i].result = in_flight_err;
+		}
+		else if (requests[i].state == MAPI_REQ_QUEUED)
+		{
+			requests[i].result = queued_err;
+		}
+		requests[i].state = MAPI_REQ_DONE;
 	}
-	memcpy(resp, &sock_resp[1], resp_size);
-	return num_bytes - 1;
 }
 
-static int set_command(int * fd, uint8_t * req, size_t req_size)
+/* mapi_pipeline: keeps up to MAPI_PIPELINE_DEPTH requests in flight on one socket.
+ *
+ * Replies carry only the command, not the request parameters. The iodriver answers
+ * requests for the same command in the order they were sent, so a reply completes
+ * the oldest in-flight request with that command; replies to different commands
+ * may come back in any order. A reply that matches nothing in flight is a late
+ * reply to an earlier caller and is dropped.
+ *
+ * Each request gets its own result: the number of response bytes or an api_err_t.
+ * Returns SUCCESS if every request succeeded, otherwise the first error.
+ */
+int mapi_pipeline(int * fd, mapi_request_t * requests, size_t count)
 {
+	uint8_t sock_resp[MAX_COMMAND_PACKET_SIZE];
+	size_t next_send = 0;
+	size_t oldest = 0;
+	size_t in_flight = 0;
+	size_t completed = 0;
+	size_t i;
+	int num_bytes;
+	int ret = SUCCESS;
+
 	if (*fd < 0)
 	{
+		mapi_pipeline_abort(requests, count, CONNECTION_FAILURE, CONNECTION_FAILURE);
 		return CONNECTION_FAILURE;
 	}
-	//if(0 > (fd = iosocket_connect()))
-	//	return -1;
-	if(iosocket_sendmsg(fd, req, req_size))
-	{
-		iosocket_disconnect(fd);
-		return TX_MSG_FAILURE;
-	}
-	return SUCCESS;
-}
 
-// fw version is 4 bytes
-int get_mcu_version(int * fd, uint8_t * fw_version, size_t size)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_MCU_FW_VERSION };
-	return get_command(fd, req, sizeof(req), fw_version, size);
-}
-
-int get_fpga_version(int * fd, uint32_t * fpga_version, size_t size)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_FPGA_VERSION };
-	return get_command(fd, req, sizeof(req), (uint8_t *)fpga_version, size);
-}
-
-int get_adc_or_gpi_voltage(int * fd, uint8_t gpi_num, uint32_t * gpi_voltage, size_t size)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, gpi_num};
-	return get_command(fd, req, sizeof(req), (uint8_t *)gpi_voltage, size);
-}
-
-int get_led_status(int * fd, uint8_t led_num, uint8_t *brightness, uint8_t *red, uint8_t *green, uint8_t *blue)
-{
-	int ret = 0;
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_LED_STATUS, led_num};
-	led_param_t led_params;
-	ret = get_command(fd, req, sizeof(req), (uint8_t *)&led_params, sizeof(led_params));
-	*brightness = led_params.brightness;
-	*red = led_params.red;
-	*green = led_params.green;
-	*blue = led_params.blue;
-	return ret;
-}
-
-int set_led_status(int * fd, uint8_t led_num, uint8_t brightness, uint8_t red, uint8_t green, uint8_t blue)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_LED_STATUS, led_num, brightness, red, green, blue};
-	return set_command(fd, req, sizeof(req));
-}
-
-int get_power_on_threshold_cfg(int * fd, uint16_t *wiggle_count, uint16_t * wig_cnt_sample_period, uint16_t *ignition_threshold)
-{
-	int ret = 0;
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_POWER_ON_THRESHOLD };
-	pwr_on_cfg_t power_on_params;
-	ret = get_command(fd, req, sizeof(req), (uint8_t *)&power_on_params, sizeof(power_on_params));
-	*wiggle_count = power_on_params.wiggle_count;
-	*wig_cnt_sample_period = power_on_params.wig_cnt_sample_period;
-	*ignition_threshold = power_on_params.ignition_threshold;
-	return ret;
-}
-
-int set_power_on_threshold_cfg(int * fd, uint16_t wiggle_count, uint16_t wig_cnt_sample_period, uint16_t ignition_threshold)
-{
-	pwr_on_cfg_t power_on_params;
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_POWER_ON_THRESHOLD, 0x0, 0x0, 0x0, 0x0, 0x0, 0x0};
-	power_on_params.wiggle_count = wiggle_count;
-	power_on_params.wig_cnt_sample_period = wig_cnt_sample_period;
-	power_on_params.ignition_threshold = ignition_threshold;
-	memcpy(&req[3], &power_on_params, sizeof(power_on_params));
-	return set_command(fd, req, sizeof(req));
-}
+	while (completed < count)
+	{
+		while (next_send < count && in_flight < MAPI_PIPELINE_DEPTH)
+		{
+			if(iosocket_sendmsg(fd, requests[next_send].req, requests[next_send].req_size))
+			{
+				iosocket_invalidate(fd);
+				mapi_pipeline_abort(requests, count, RX_MSG_FAILURE, TX_MSG_FAILURE);
+				return TX_MSG_FAILURE;
+			}
+			requests[next_send].state = MAPI_REQ_IN_FLIGHT;
+			next_send++;
+			in_flight++;
+		}
 
-int get_power_on_reason(int * fd, uint8_t *power_on_reason)
-{
-	int ret = 0;
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_POWER_ON_REASON };
-	ret = get_command(fd, req, sizeof(req), power_on_reason, sizeof(uint8_t));
-	return ret;
-}
+		num_bytes = iosocket_recvmsg(fd, sock_resp, sizeof(sock_resp));
+		if(-1 == num_bytes)
+		{
+			// Replies still owed would arrive out of order for the next user
+			iosocket_invalidate(fd);
+			mapi_pipeline_abort(requests, count, RX_MSG_FAILURE, RX_MSG_FAILURE);
+			return RX_MSG_FAILURE;
+		}
 
-int set_device_power_off(int * fd, uint8_t wait_time)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_DEVICE_POWER_OFF, wait_time};
-	return set_command(fd, req, sizeof(req));
-}
+		if (num_bytes < 1)
+		{
+			continue;
+		}
 
-/* converts RTC bcd array format to string */
-void rtc_convert_bcd_to_string(uint8_t * dt_bcd, char * dt_str, bool print_time)
-{
-	uint8_t hundreth_sec_int = (dt_bcd[0]>>4) + (dt_bcd[0]&0x0F);
-	uint8_t seconds = (((dt_bcd[1]>>4)&0x7) * 10) + (dt_bcd[1]&0x0F);
-	uint8_t minutes = (((dt_bcd[2]>>4)&0x7) * 10) + (dt_bcd[2]&0x0F);
-	uint8_t hours = (((dt_bcd[3]>>4)&0x3) * 10) + (dt_bcd[3]&0x0F);
-	uint8_t century = (dt_bcd[3]>>6);
-	//uint8_t day_of_week = dt[4]&0x7;
-	uint8_t day_of_month = (((dt_bcd[5]>>4)&0x3) * 10) + (dt_bcd[5]&0x0F);
-	uint8_t month = (((dt_bcd[6]>>4)&0x1) * 10) + (dt_bcd[6]&0x0F);
-	uint16_t year = ((dt_bcd[7]>>4) * 10) + (dt_bcd[7]&0x0F);
+		for (i = oldest; i < next_send; i++)
+		{
+			if (requests[i].state == MAPI_REQ_IN_FLIGHT && requests[i].req[2] == sock_resp[0])
+			{
+				break;
+			}
+		}
+		if (i == next_send)
+		{
+			continue;
+		}
 
-	year = 2000 + (century * 100) + year;
+		num_bytes--;
+		memcpy(requests[i].resp, &sock_resp[1],
+				((size_t)num_bytes < requests[i].resp_size) ? (size_t)num_bytes : requests[i].resp_size);
+		requests[i].result = num_bytes;
+		requests[i].state = MAPI_REQ_DONE;
+		in_flight--;
+		completed++;
 
-	snprintf(dt_str, RTC_STRING_SIZE , "%04d-%02d-%02d %02d:%02d:%02d.%02d ",
-			year, month, day_of_month, hours, minutes, seconds, hundreth_sec_int);
-	if (print_time)
-	{
-		printf("rtc date_time: %04d-%02d-%02d %02d:%02d:%02d.%02d\n",
-				year, month, day_of_month, hours, minutes, seconds, hundreth_sec_int);
+		while (oldest < next_send && requests[oldest].state == MAPI_REQ_DONE)
+		{
+			oldest++;
+		}
 	}
-}
-
-/* converts rtc string to bcd format array that RTC expects */
-void rtc_convert_string_to_bcd(uint8_t * dt_bcd, char * dt_str, bool print_bcd)
-{
-	unsigned int i;
-	unsigned int hundreth_sec_int = 0, seconds = 0, minutes = 0, hours = 0, \
-			century_bits = 0, day_of_month = 0, month = 0;
-	unsigned int year = 0;
 
-	sscanf(dt_str, "%04x-%02x-%02x %02x:%02x:%02x.%02x",
-			&year, &month, &day_of_month, &hours, &minutes, &seconds, &hundreth_sec_int);
-
-	century_bits = (year>>8)&0x0f;
-
-	dt_bcd[0] = (uint8_t)hundreth_sec_int;
-	dt_bcd[1] = (uint8_t)seconds;
-	dt_bcd[2] = (uint8_t)minutes;
-	dt_bcd[3] = (uint8_t)((century_bits<<6) | hours);
-	dt_bcd[4] = 0x0; /* Day of week is not used (might cause problems) */
-	dt_bcd[5] = (uint8_t)day_of_month;
-	dt_bcd[6] = (uint8_t)month;
-	dt_bcd[7] = (uint8_t)(year&0xff);
-
-	if (print_bcd)
+	for (i = 0; i < count; i++)
 	{
-		printf("rtc bcd date_time: ");
-		for (i = 0; i < 8; i++)
+		if (requests[i].result < 0)
 		{
-			printf("%x, ", dt_bcd[i]);
+			ret = requests[i].result;
+			break;
 		}
-		printf("\n");
 	}
-}
-
-/* returned dt_str format : year-month-day hour:min:sec.deciseconds
- * 					   Ex :	2016-03-29 19:09:06.58
-*/
-int get_rtc_date_time(int * fd, char * dt_str)
-{
-	int ret = 0;
-	uint8_t dt_bcd[RTC_BCD_SIZE] = {0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_RTC_DATE_TIME };
-
-	ret = get_command(fd, req, sizeof(req), dt_bcd, sizeof(dt_bcd));
-	rtc_convert_bcd_to_string(dt_bcd, dt_str, false);
 	return ret;
 }
 
-/* Expected dt_str format: year-month-day hour:min:sec.deciseconds
- * 					  Ex : 2016-03-29 19:09:06.58
-*/
-int set_rtc_date_time(int * fd, char * dt_str)
-{
-	uint8_t dt_bcd[RTC_BCD_SIZE] = {0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_RTC_DATE_TIME,
-					0, 0, 0, 0, 0, 0, 0, 0};
-	rtc_convert_string_to_bcd(dt_bcd, dt_str, false);
-	memcpy(&req[3],dt_bcd, sizeof(dt_bcd));
-	return set_command(fd, req, sizeof(req));
-}
-
-/* get_rtc_cal_reg: get rtc analog and digital calibration registers */
-int get_rtc_cal_reg(int * fd, uint8_t * dig_cal, uint8_t * anal_cal)
-{
-	int ret = 0;
-	uint8_t rtc_cal_reg[] = {0, 0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_RTC_CAL_REGISTERS };
-
-	ret = get_command(fd, req, sizeof(req), rtc_cal_reg, sizeof(rtc_cal_reg));
-	*dig_cal = rtc_cal_reg[0];
-	*anal_cal = rtc_cal_reg[1];
-	return ret;
-}
-
-/* set_rtc_cal_reg: set rtc analog and digital calibration registers */
-int set_rtc_cal_reg(int * fd, uint8_t dig_cal, uint8_t analog_cal)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_RTC_CAL_REGISTERS,
-					dig_cal, analog_cal};
-	return set_command(fd, req, sizeof(req));
-}
-
-/* get_rtc_reg_dbg: get any RTC register */
-int get_rtc_reg_dbg(int * fd, uint8_t address, uint8_t * data)
-{
-	int ret = 0;
-	uint8_t rtc_reg[] = {0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_RTC_REG_DBG, address };
-
-	ret = get_command(fd, req, sizeof(req), rtc_reg, sizeof(rtc_reg));
-	data[0] = rtc_reg[0];
-	return ret;
-}
-
-/* set_rtc_reg_reg: set any RTC register */
-int set_rtc_reg_dbg(int * fd, uint8_t address, uint8_t data)
+/* mapi_read: sends one raw read request and copies up to resp_size bytes of its
+ * reply payload to resp. Returns the payload size or an api_err_t.
+ */
+int mapi_read(int * fd, const uint8_t * req, size_t req_size, uint8_t * resp, size_t resp_size)
 {
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_RTC_REG_DBG,
-					address, data};
-	return set_command(fd, req, sizeof(req));
-}
+	mapi_request_t request;
 
-int check_rtc_battery(int * fd, uint8_t * battery_state)
-{
-	uint8_t address = RTC_FLAGS_ADDR;
-	uint8_t flags = 0;
-    int result = get_rtc_reg_dbg(fd, address, &flags);
-    // If this statement is true, then that means the RTC Battery is bad or not present.
-	if (flags & 0x10)
+	if (req_size < 3 || req_size > MAX_COMMAND_PACKET_SIZE)
 	{
-        *battery_state = 0;
-	}else{
-        *battery_state = 1;
-    }
-
-    return result;
-}
-
-/* get_gpio_state_dbg: get MCU GPIO, be careful, gpio needs to be valid */
-int get_gpio_state_dbg(int * fd, uint16_t gpio_num, uint8_t * gpio_val)
-{
-	int ret = 0;
-	uint8_t gpio_value[] = {0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_MCU_GPIO_STATE_DBG, (uint8_t)(gpio_num>>8),(uint8_t)(gpio_num&0xFF)};
-
-	ret = get_command(fd, req, sizeof(req), gpio_value, sizeof(gpio_value));
-	gpio_val[0] = gpio_value[0];
-	return ret;
-}
+		return TX_MSG_FAILURE;
+	}
 
-/* set_gpio_state_dbg: set MCU GPIO, be careful, gpio needs to be valid */
-int set_gpio_state_dbg(int * fd, uint16_t gpio_num, uint8_t gpio_val)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_MCU_GPIO_STATE_DBG,
-					(uint8_t)(gpio_num>>8),(uint8_t)(gpio_num&0xFF), gpio_val};
-	return set_command(fd, req, sizeof(req));
+	mapi_request_init(&request, req, req_size, resp, resp_size);
+	mapi_pipeline(fd, &request, 1);
+	return request.result;
 }
 
-int set_app_watchdog_dbg(int * fd)
+/* mapi_write: sends one raw write request, the iodriver doesn't acknowledge writes */
+int mapi_write(int * fd, const uint8_t * req, size_t req_size)
 {
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_APP_WATCHDOG_REQ};
-	return set_command(fd, req, sizeof(req));
+	if (req_size < 3 || req_size > MAX_COMMAND_PACKET_SIZE)
+	{
+		return TX_MSG_FAILURE;
+	}
+	if (*fd < 0)
+	{
+		return CONNECTION_FAILURE;
+	}
+	if(iosocket_sendmsg(fd, (uint8_t *)req, req_size))
+	{
+		iosocket_invalidate(fd);
+		return TX_MSG_FAILURE;
+	}
+	return SUCCESS;
 }
 
-/* set_app_wiggle_en_dbg: dis_en = 0 disables wiggle count interrupt,
- * 						  dis_en = 1 enables wiggle count interrupt
+/* mapi_transfer: sends count requests laid out in MAPI_SLOT_SIZE slots, each a
+ * length byte followed by the datagram. Writes are sent in order; a run of reads
+ * between them is pipelined. The reply payload of a read replaces its request in
+ * the slot, after the length byte.
+ *
+ * results[i] is the payload size of a read, SUCCESS for a write or an api_err_t.
+ * Requests after a failed one are not sent and fail with the same error.
+ * Returns SUCCESS if every request succeeded, otherwise the first error.
  */
-int set_app_wiggle_en_dbg(int * fd, uint8_t dis_en)
+int mapi_transfer(int * fd, uint8_t * slots, size_t count, int * results)
 {
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_WIGGLE_EN_REQ_DBG, dis_en};
-	return set_command(fd, req, sizeof(req));
-}
+	mapi_request_t reads[MAPI_TRANSFER_MAX];
+	size_t first_read = 0;
+	size_t num_reads = 0;
+	size_t i, j;
+	int ret = SUCCESS;
 
-/* get_app_wiggle_count_dbg: Gets the app wiggle count */
-int get_app_wiggle_count_dbg(int * fd, uint32_t * wiggle_count)
-{
-	int ret = 0;
-	uint8_t wig_cnt_b[4] = {0, 0, 0, 0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_WIGGLE_COUNT_REQ_DBG};
+	if (count > MAPI_TRANSFER_MAX)
+	{
+		return TX_MSG_FAILURE;
+	}
 
-	ret = get_command(fd, req, sizeof(req), wig_cnt_b, sizeof(wig_cnt_b));
-	*wiggle_count = (wig_cnt_b[3]<<24) | (wig_cnt_b[2]<<16) | (wig_cnt_b[1]<<8) | wig_cnt_b[0];
-	return ret;
-}
+	for (i = 0; i <= count; i++)
+	{
+		uint8_t * slot = &slots[i * MAPI_SLOT_SIZE];
+		size_t len = (i < count) ? slot[0] : 0;
 
-/* set_accel_standby_active_dbg: set accel chip in standbye mode (0)
- * or set accel chip in active mode(1). fifo is disabled in standbye mode
- */
-int set_accel_standby_active_dbg(int * fd, uint8_t standbye_active)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_ACCEL_STANDBY_ACTIVE_DBG, standbye_active};
-	return set_command(fd, req, sizeof(req));
-}
+		if (i < count && ret == SUCCESS && (len < 3 || len > MAX_COMMAND_PACKET_SIZE))
+		{
+			ret = TX_MSG_FAILURE;
+		}
 
-/* get_accel_reg_dbg: get any accelerometer chip register
- * Returns 1 byte of data
- *  */
-int get_accel_reg_dbg(int * fd, uint8_t address, uint8_t * data)
-{
-	int ret = 0;
-	uint8_t accel_req[] = {0};
-	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ACCEL_REGISTER_DBG, address };
+		if (i < count && ret == SUCCESS && slot[2] == MAPI_READ_RQ)
+		{
+			if (num_reads == 0)
+			{
+				first_read = i;
+			}
+			mapi_request_init(&reads[num_reads++], &slot[1], len, &slot[1], MAPI_SLOT_SIZE - 1);
+			continue;
+		}
 
-	ret = get_command(fd, req, sizeof(req), accel_req, sizeof(accel_req));
-	data[0] = accel_req[0];
-	return ret;
-}
+		// A write, a failure or the end: flush the reads queued before it
+		if (num_reads > 0)
+		{
+			int err = mapi_pipeline(fd, reads, num_reads);
+			for (j = 0; j < num_reads; j++)
+			{
+				results[first_read + j] = reads[j].result;
+			}
+			if (ret == SUCCESS)
+			{
+				ret = err;
+			}
+			num_reads = 0;
+		}
 
-/* set_accel_reg_dbg: set any accelerometer chip register */
-int set_accel_reg_dbg(int * fd, uint8_t address, uint8_t data)
-{
-	uint8_t req[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_ACCEL_REGISTER_DBG,
-					address, data};
-	return set_command(fd, req, sizeof(req));
+		if (i == count)
+		{
+			break;
+		}
+		if (ret != SUCCESS)
+		{
+			results[i] = ret;
+			continue;
+		}
+		results[i] = mapi_write(fd, &slot[1], len);
+		ret = results[i];
+	}
+	return ret;
 }
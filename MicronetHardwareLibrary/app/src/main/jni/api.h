@@ -1,7 +1,14 @@
 
 #include "api_constants.h"
 
-#define RTC_STRING_SIZE 23
+// Requests kept in flight by mapi_pipeline, stays under the kernel's default
+// datagram queue length (net.unix.max_dgram_qlen) on the iodriver socket
+#define MAPI_PIPELINE_DEPTH 8
+
+// Requests per mapi_transfer call, each in a slot of a length byte and the datagram.
+// Must match MapiCodec in Java.
+#define MAPI_TRANSFER_MAX 32
+#define MAPI_SLOT_SIZE (1 + MAX_COMMAND_PACKET_SIZE)
 
 typedef enum api_err
 {
@@ -12,27 +19,20 @@ typedef enum api_err
 	SUCCESS = 0,
 }api_err_t;
 
-int get_mcu_version(int * fd, uint8_t * fw_version, size_t size);
-int get_fpga_version(int * fd, uint32_t * fpga_version, size_t size);
-int get_adc_or_gpi_voltage(int * fd, uint8_t gpi_num, uint32_t * gpi_voltage, size_t size);
-int get_led_status(int * fd, uint8_t led_num, uint8_t *brightness, uint8_t *red, uint8_t *green, uint8_t *blue);
-int set_led_status(int * fd, uint8_t led_num, uint8_t brightness, uint8_t red, uint8_t green, uint8_t blue);
-int get_power_on_threshold_cfg(int * fd, uint16_t *wiggle_count, uint16_t *wig_cnt_sample_period, uint16_t *ignition_threshold);
-int set_power_on_threshold_cfg(int * fd, uint16_t wiggle_count, uint16_t wig_cnt_sample_period, uint16_t ignition_threshold);
-int get_power_on_reason(int * fd, uint8_t *power_on_reason);
-int set_device_power_off(int * fd, uint8_t wait_time);
-int get_rtc_date_time(int * fd, char * dt_str);
-int set_rtc_date_time(int * fd, char * dt_str);
-int get_rtc_cal_reg(int * fd, uint8_t * dig_cal, uint8_t * anal_cal);
-int set_rtc_cal_reg(int * fd, uint8_t dig_cal, uint8_t analog_cal);
-int get_rtc_reg_dbg(int * fd, uint8_t address, uint8_t * data);
-int set_rtc_reg_dbg(int * fd, uint8_t address, uint8_t data);
-int check_rtc_battery(int * fd, uint8_t * battery_state);
-int get_gpio_state_dbg(int * fd, uint16_t gpio_num, uint8_t * gpio_val);
-int set_gpio_state_dbg(int * fd, uint16_t gpio_num, uint8_t gpio_val);
-int set_app_watchdog_dbg(int * fd);
-int set_app_wiggle_en_dbg(int * fd, uint8_t dis_en);
-int get_app_wiggle_count_dbg(int * fd, uint32_t * wiggle_count);
-int set_accel_standby_active_dbg(int * fd, uint8_t standbye_active);
-int get_accel_reg_dbg(int * fd, uint8_t address, uint8_t * data);
-int set_accel_reg_dbg(int * fd, uint8_t address, uint8_t data);
+typedef struct mapi_request_s
+{
+	uint8_t req[MAX_COMMAND_PACKET_SIZE];
+	size_t req_size;
+	uint8_t * resp;
+	size_t resp_size;
+	int result;
+	uint8_t state;
+}mapi_request_t;
+
+void mapi_request_init(mapi_request_t * request, const uint8_t * req, size_t req_size, uint8_t * resp, size_t resp_size);
+int mapi_pipeline(int * fd, mapi_request_t * requests, size_t count);
+
+// Raw requests, framed by the caller (ex: MapiCodec on the Java side)
+int mapi_read(int * fd, const uint8_t * req, size_t req_size, uint8_t * resp, size_t resp_size);
+int mapi_write(int * fd, const uint8_t * req, size_t req_size);
+int mapi_transfer(int * fd, uint8_t * slots, size_t count, int * results);
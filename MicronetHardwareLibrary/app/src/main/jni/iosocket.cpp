@@ -27,59 +27,298 @@
 #include <errno.h>
 
 #include <sys/select.h>
+#include <poll.h>
+#include <time.h>
 
 #include <termios.h>
 #include <fcntl.h>
 #include <sys/ioctl.h>
+#include <sys/syscall.h>
 
 #include "util.h"
 #include "iosocket.h"
 
 
 
-int iosocket_connect()
+/*
+ * Connection manager
+ *
+ * Creating, configuring and binding a socket for every request costs five
+ * syscalls before any data moves, so each calling thread keeps one bound
+ * socket for as long as it lives, handed out by iosocket_acquire(). Replies
+ * are matched to requests only by order on a socket, so the socket is never
+ * shared: each thread binds its own client address and threads don't need to
+ * serialize their traffic. The socket is closed when the thread exits.
+ *
+ * On acquire the socket is health checked by draining any datagrams that are
+ * still queued (late replies to requests that timed out). A socket error while
+ * draining, or a call to iosocket_invalidate() after a tx/rx failure, closes
+ * the socket and the next acquire transparently creates a new one.
+ *
+ * Creating a socket can fail transiently (fd limit, an address still bound).
+ * Acquire then retries with a short backoff, 1, 2, 4... ms for at most
+ * IOSOCKET_CONNECT_ATTEMPTS attempts and never past the caller's timeout,
+ * before returning -1 so the request fails with CONNECTION_FAILURE.
+ *
+ * Every acquire also starts a deadline, timeout_ms from now, that covers all
+ * the receives up to the matching release. A multi-request transaction (ex:
+ * reading all adc channels) therefore has one overall budget instead of a
+ * timeout per reply. SO_RCVTIMEO is kept equal to the caller's timeout so a
+ * receive with the whole budget left is a single blocking recv, only later
+ * receives of a transaction poll() for the remaining time first.
+ */
+typedef struct
+{
+	int fd;
+	int timeout_ms;             // current SO_RCVTIMEO/SO_SNDTIMEO of fd
+	bool has_deadline;
+	struct timespec deadline;   // CLOCK_MONOTONIC
+} conn_t;
+
+static pthread_key_t conn_key;
+static pthread_once_t conn_key_once = PTHREAD_ONCE_INIT;
+static volatile unsigned int conn_generation = 0;
+
+/* Binds fd to the client address of the calling thread */
+static int iosocket_bind(int fd)
 {
 	struct sockaddr_un c_addr = {0};
+
+	// One client address per thread, the iodriver replies to the sender's address
+	c_addr.sun_family = AF_UNIX;
+	snprintf(c_addr.sun_path,
+			sizeof(c_addr.sun_path),
+			UD_FILENAME "_c.%ld.%ld",
+			(long)getpid(), (long)syscall(SYS_gettid));
+	c_addr.sun_path[0] = '\0'; // abstract socket namespace
+
+	if(0 == bind(fd, (struct sockaddr *)&c_addr, sizeof(struct sockaddr_un)))
+	{
+		return 0;
+	}
+
+	if(errno != EADDRINUSE)
+	{
+		return -1;
+	}
+
+	// A socket left over from an earlier thread with the same tid still holds the
+	// address. Let the kernel pick a unique abstract address instead (autobind),
+	// replies go to whatever address the request came from.
+	printf("%s: client address in use, autobinding\n", __func__);
+	return bind(fd, (struct sockaddr *)&c_addr, sizeof(sa_family_t));
+}
+
+/* Returns a new bound socket, -1 on failure */
+int iosocket_connect()
+{
 	int fd;
 	struct timeval timeout;
-	timeout.tv_sec = 0;
-	timeout.tv_usec = 500000;
+	timeout.tv_sec = IOSOCKET_DEFAULT_TIMEOUT_MS / 1000;
+	timeout.tv_usec = (IOSOCKET_DEFAULT_TIMEOUT_MS % 1000) * 1000;
 
 	fd = socket(AF_UNIX, SOCK_DGRAM, 0);
 
+	if(-1 == fd)
+	{
+        printf("%s: socket failure[%s]\n", __func__, strerror(errno));
+		return -1;
+	}
+
 	if (setsockopt (fd, SOL_SOCKET, SO_RCVTIMEO, (char *)&timeout, sizeof(timeout)) < 0)
 		perror("setsockopt failed\n");
 
 	if (setsockopt (fd, SOL_SOCKET, SO_SNDTIMEO, (char *)&timeout, sizeof(timeout)) < 0)
 		perror("setsockopt failed\n");
 
-	if(-1 == fd)
+	if(-1 == iosocket_bind(fd))
 	{
-        printf("%s: socket failure[%s]\n", __func__, strerror(errno));
-		exit(-1);
+        printf("%s: failure to bind[%s]\n", __func__, strerror(errno));
+		close(fd);
+		return -1;
 	}
 
+	return fd;
+}
 
-	c_addr.sun_family = AF_UNIX;
-	snprintf(c_addr.sun_path,
-			sizeof(c_addr.sun_path),
-			UD_FILENAME "_c.%ld",
-			(long)getpid()); // TODO: thread id instead of pid if multi threaded!!
-	c_addr.sun_path[0] = '\0'; // abstract socket namespace
+void iosocket_disconnect(int * fd)
+{
+	if(*fd >= 0)
+	{
+		close(*fd);
+	}
+	*fd = -1;
+}
 
+static void iosocket_thread_exit(void * slot)
+{
+	conn_t * conn = (conn_t *)slot;
 
-	if(-1 == bind(fd, (struct sockaddr *)&c_addr, sizeof(struct sockaddr_un)))
+	iosocket_disconnect(&conn->fd);
+	free(conn);
+}
+
+static void iosocket_make_key()
+{
+	pthread_key_create(&conn_key, iosocket_thread_exit);
+}
+
+/* Returns the calling thread's connection, fd is -1 when it has no socket */
+static conn_t * iosocket_conn()
+{
+	conn_t * conn;
+
+	pthread_once(&conn_key_once, iosocket_make_key);
+	conn = (conn_t *)pthread_getspecific(conn_key);
+	if(conn == NULL)
 	{
-        printf("%s: failure to bind[%s]\n", __func__, strerror(errno));
-		exit(-1);
+		conn = (conn_t *)calloc(1, sizeof(conn_t));
+		conn->fd = -1;
+		pthread_setspecific(conn_key, conn);
 	}
+	return conn;
+}
+
+/* Discards queued datagrams, returns false if the socket is no longer usable */
+static bool iosocket_drain(int fd)
+{
+	uint8_t stale[SOCK_MAX_MSG];
+
+	for(;;)
+	{
+		if(-1 == recv(fd, stale, sizeof(stale), MSG_DONTWAIT))
+		{
+			return (errno == EAGAIN || errno == EWOULDBLOCK);
+		}
+	}
+}
 
+static int iosocket_set_timeout(int fd, int timeout_ms)
+{
+	struct timeval timeout;
+	timeout.tv_sec = timeout_ms / 1000;
+	timeout.tv_usec = (timeout_ms % 1000) * 1000;
+
+	if(setsockopt(fd, SOL_SOCKET, SO_RCVTIMEO, (char *)&timeout, sizeof(timeout)) < 0 ||
+		setsockopt(fd, SOL_SOCKET, SO_SNDTIMEO, (char *)&timeout, sizeof(timeout)) < 0)
+	{
+        printf("%s: setsockopt failure[%s]\n", __func__, strerror(errno));
+		return -1;
+	}
+	return 0;
+}
+
+/* Milliseconds left until the deadline, rounded up */
+static int iosocket_remaining_ms(const conn_t * conn)
+{
+	struct timespec now;
+	int64_t remaining_ns;
+
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	remaining_ns = (int64_t)(conn->deadline.tv_sec - now.tv_sec) * 1000000000LL +
+			(conn->deadline.tv_nsec - now.tv_nsec);
+	if(remaining_ns <= 0)
+	{
+		return 0;
+	}
+	return (int)((remaining_ns + 999999) / 1000000);
+}
+
+/* iosocket_connect() with a bounded backoff, -1 if every attempt failed */
+static int iosocket_reconnect(int timeout_ms)
+{
+	int delay_ms = 1;
+	int fd;
+
+	for(int attempt = 1; ; attempt++)
+	{
+		fd = iosocket_connect();
+		if(fd >= 0 || attempt == IOSOCKET_CONNECT_ATTEMPTS)
+		{
+			break;
+		}
+
+		// Leave most of the caller's budget for the request itself
+		if(delay_ms * 2 > timeout_ms)
+		{
+			break;
+		}
+		timeout_ms -= delay_ms;
+		usleep(delay_ms * 1000);
+		delay_ms *= 2;
+	}
 	return fd;
 }
-void iosocket_disconnect(int * fd)
+
+int iosocket_acquire(int timeout_ms)
+{
+	conn_t * conn = iosocket_conn();
+
+	if(timeout_ms <= 0)
+	{
+		timeout_ms = IOSOCKET_DEFAULT_TIMEOUT_MS;
+	}
+
+	if(conn->fd >= 0 && !iosocket_drain(conn->fd))
+	{
+        printf("%s: dropping unhealthy socket[%s]\n", __func__, strerror(errno));
+		iosocket_disconnect(&conn->fd);
+		__sync_fetch_and_add(&conn_generation, 1);
+	}
+
+	if(conn->fd < 0)
+	{
+		conn->fd = iosocket_reconnect(timeout_ms);
+		if(conn->fd < 0)
+		{
+			return -1;
+		}
+		conn->timeout_ms = IOSOCKET_DEFAULT_TIMEOUT_MS;
+	}
+
+	// Only touch the socket options when the caller's timeout changes
+	if(conn->timeout_ms != timeout_ms && 0 == iosocket_set_timeout(conn->fd, timeout_ms))
+	{
+		conn->timeout_ms = timeout_ms;
+	}
+
+	clock_gettime(CLOCK_MONOTONIC, &conn->deadline);
+	conn->deadline.tv_sec += timeout_ms / 1000;
+	conn->deadline.tv_nsec += (long)(timeout_ms % 1000) * 1000000L;
+	if(conn->deadline.tv_nsec >= 1000000000L)
+	{
+		conn->deadline.tv_sec++;
+		conn->deadline.tv_nsec -= 1000000000L;
+	}
+	conn->has_deadline = true;
+
+	return conn->fd;
+}
+
+void iosocket_release(int * fd)
 {
-	close(*fd);
+	iosocket_conn()->has_deadline = false;
+	*fd = -1;
+}
 
+void iosocket_invalidate(int * fd)
+{
+	conn_t * conn = iosocket_conn();
+
+	if(*fd >= 0 && *fd == conn->fd)
+	{
+		conn->fd = -1;
+	}
+	if(*fd >= 0)
+	{
+		__sync_fetch_and_add(&conn_generation, 1);
+	}
+	iosocket_disconnect(fd);
+}
+
+unsigned int iosocket_generation()
+{
+	return __sync_fetch_and_add(&conn_generation, 0);
 }
 
 int iosocket_sendmsg(int * fd, uint8_t * data, size_t len)
@@ -102,8 +341,39 @@ int iosocket_sendmsg(int * fd, uint8_t * data, size_t len)
 
 int iosocket_recvmsg(int * fd, uint8_t * data, size_t len)
 {
+	conn_t * conn = iosocket_conn();
 	int num_bytes;
 
+	// Sockets from iosocket_acquire() honor the deadline of the current transaction
+	if(conn->has_deadline && *fd == conn->fd)
+	{
+		int remaining_ms;
+
+		while((remaining_ms = iosocket_remaining_ms(conn)) < conn->timeout_ms)
+		{
+			struct pollfd pfd = {*fd, POLLIN, 0};
+			int ready;
+
+			if(remaining_ms == 0)
+			{
+				errno = ETIMEDOUT;
+				printf("%s: failure to retrieve[%s]\n", __func__, strerror(errno));
+				return -1;
+			}
+
+			ready = poll(&pfd, 1, remaining_ms);
+			if(ready > 0)
+			{
+				break;
+			}
+			if(ready < 0 && errno != EINTR)
+			{
+				printf("%s: failure to retrieve[%s]\n", __func__, strerror(errno));
+				return -1;
+			}
+		}
+	}
+
 	num_bytes = recvfrom(*fd, data, len, 0, NULL, NULL);
 	if(-1 == num_bytes)
 	{
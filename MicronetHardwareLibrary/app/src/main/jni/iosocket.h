@@ -1,4 +1,7 @@
 
+#include <stddef.h>
+#include <stdint.h>
+
 // See TLPI 57.6 The Linux Abstract Socket Namespace
 // Use abstract socket namespace, set # to '\0' before bind
 #define UD_FILENAME "#micronet_control"
@@ -6,8 +9,23 @@
 
 #define SOCK_MAX_MSG 4096
 
+// Timeout of a transaction when the caller doesn't give one
+#define IOSOCKET_DEFAULT_TIMEOUT_MS 500
+
+// Attempts to create a socket before a request fails with CONNECTION_FAILURE
+#define IOSOCKET_CONNECT_ATTEMPTS 4
+
 int iosocket_connect();
 void iosocket_disconnect(int * fd);
+
+// Persistent per-thread connection, see iosocket.cpp
+int iosocket_acquire(int timeout_ms);
+void iosocket_release(int * fd);
+void iosocket_invalidate(int * fd);
+// Number of sockets dropped after a failure, by any thread. A change means the
+// iodriver or the MCU may have restarted since it was last read.
+unsigned int iosocket_generation();
+
 int iosocket_sendmsg(int * fd, uint8_t * data, size_t len);
 int iosocket_recvmsg(int * fd, uint8_t * data, size_t len);
 
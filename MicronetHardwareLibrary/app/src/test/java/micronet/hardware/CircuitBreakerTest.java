@@ -0,0 +1,137 @@
+package micronet.hardware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreakerTest {
+
+    private static class FakeProbe implements CircuitBreaker.Probe {
+        volatile boolean answers;
+        volatile int probes;
+        volatile int timeoutMillis;
+        volatile long takesMillis;
+
+        @Override
+        public boolean probe(int timeoutMillis) {
+            probes++;
+            this.timeoutMillis = timeoutMillis;
+            if(takesMillis > 0){
+                try {
+                    Thread.sleep(takesMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return answers;
+        }
+    }
+
+    private static void fail(CircuitBreaker breaker, int times, int resultCode) {
+        for(int i = 0; i < times; i++){
+            assertEquals(500, breaker.allowRequest(500));
+            breaker.record(resultCode);
+        }
+    }
+
+    @Test
+    public void opensAfterConsecutiveTransportFailures() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000, new FakeProbe());
+
+        fail(breaker, 2, -3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        fail(breaker, 1, -1);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertEquals(0, breaker.allowRequest(500));
+    }
+
+    @Test
+    public void answerResetsFailureCount() {
+        CircuitBreaker breaker = new CircuitBreaker(3, 60000, new FakeProbe());
+
+        fail(breaker, 2, -3);
+        breaker.record(4);
+        assertEquals(0, breaker.getConsecutiveFailures());
+
+        // An invalid response still means the MCU answered
+        fail(breaker, 2, -3);
+        breaker.record(-4);
+        fail(breaker, 2, -3);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void probeClosesBreakerAfterOpenPeriod() throws InterruptedException {
+        FakeProbe probe = new FakeProbe();
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, probe);
+
+        fail(breaker, 1, -3);
+        assertEquals(0, breaker.allowRequest(500));
+        assertEquals(0, probe.probes);
+
+        Thread.sleep(30);
+        probe.answers = true;
+        assertTrue(breaker.allowRequest(500) > 0);
+        assertEquals(1, probe.probes);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertEquals(0, breaker.getConsecutiveFailures());
+    }
+
+    @Test
+    public void failedProbeKeepsBreakerOpen() throws InterruptedException {
+        FakeProbe probe = new FakeProbe();
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, probe);
+
+        fail(breaker, 1, -2);
+        Thread.sleep(30);
+        assertEquals(0, breaker.allowRequest(500));
+        assertEquals(1, probe.probes);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+
+        // A new open period started, no probe until it is over
+        assertEquals(0, breaker.allowRequest(500));
+        assertEquals(1, probe.probes);
+    }
+
+    @Test
+    public void otherRequestsFailFastWhileProbing() throws InterruptedException {
+        final CircuitBreaker[] holder = new CircuitBreaker[1];
+        final int[] allowedDuringProbe = new int[1];
+        CircuitBreaker breaker = new CircuitBreaker(1, 0, new CircuitBreaker.Probe() {
+            @Override
+            public boolean probe(int timeoutMillis) {
+                assertEquals(CircuitBreaker.State.HALF_OPEN, holder[0].getState());
+                allowedDuringProbe[0] = holder[0].allowRequest(500);
+                return true;
+            }
+        });
+        holder[0] = breaker;
+
+        fail(breaker, 1, -1);
+        assertTrue(breaker.allowRequest(500) > 0);
+        assertEquals(0, allowedDuringProbe[0]);
+    }
+
+    @Test
+    public void probeRunsWithinTheRequestTimeout() throws InterruptedException {
+        FakeProbe probe = new FakeProbe();
+        probe.answers = true;
+        probe.takesMillis = 15;
+        CircuitBreaker breaker = new CircuitBreaker(1, 20, probe);
+
+        fail(breaker, 1, -3);
+        Thread.sleep(30);
+
+        // A 20ms request arriving in half open gets what the probe left of its 20ms
+        int remainingMillis = breaker.allowRequest(20);
+        assertEquals(20, probe.timeoutMillis);
+        assertTrue(String.valueOf(remainingMillis), remainingMillis >= 1 && remainingMillis <= 5);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // Even if the probe took all of it
+        fail(breaker, 1, -3);
+        Thread.sleep(30);
+        assertEquals(1, breaker.allowRequest(10));
+    }
+}
@@ -0,0 +1,78 @@
+package micronet.hardware;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * Identical MCU reads from many threads at once, with and without {@link SingleFlight} coalescing. Every
+ * thread polls the same values, like several components of an app each polling the supply voltage.
+ *
+ * The simulated MCU handles one request at a time, serviceMicros each, like the serial link to a real MCU.
+ * Without coalescing every call sends its own request and queues behind the other readers', with it the
+ * calls arriving during a request share it. Change the number of readers with -t.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 1)
+@Measurement(iterations = 3, time = 2)
+@Threads(8)
+@Fork(1)
+public class CoalescingBenchmark {
+
+    /**
+     * Reply latency of the simulated MCU.
+     */
+    @Param({"200"})
+    public int latencyMicros;
+
+    /**
+     * Time the simulated MCU spends on each request.
+     */
+    @Param({"300"})
+    public int serviceMicros;
+
+    @Param({"true", "false"})
+    public boolean coalesce;
+
+    private HostEnvironment environment;
+    private MControl mControl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = HostEnvironment.start(latencyMicros, HostEnvironment.DEFAULT_SCRIPT_MILLIS, serviceMicros);
+        mControl = new MControl();
+        mControl.getSingleFlight().setEnabled(coalesce);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.stop();
+    }
+
+    @Benchmark
+    public int getAnalogInput() {
+        return mControl.get_adc_or_gpi_voltage(MicronetHardware.kADC_POWER_IN);
+    }
+
+    @Benchmark
+    public String getRtcDateTime() throws MicronetHardwareException {
+        return mControl.get_rtc_date_time();
+    }
+}
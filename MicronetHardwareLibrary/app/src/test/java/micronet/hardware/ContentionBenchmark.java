@@ -0,0 +1,104 @@
+package micronet.hardware;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * Latency of MicronetHardware calls while another thread keeps writing validated outputs, the mixed
+ * workload of an app toggling outputs and polling inputs, the MCU and the LEDs at the same time.
+ *
+ * Every benchmark of the "mixed" group runs on its own thread at once. The output writes take
+ * scriptMillis each (see {@link HostPropertyService}). With one lock for everything, the gpio reads wait
+ * behind every write: their throughput drops to what fits between writes and their tail latency to
+ * the length of a write. With locks per resource only other output writes wait.
+ */
+@State(Scope.Group)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(1)
+public class ContentionBenchmark {
+
+    /**
+     * Reply latency of the simulated MCU.
+     */
+    @Param({"0"})
+    public int latencyMicros;
+
+    /**
+     * Time a simulated output script takes.
+     */
+    @Param({"20"})
+    public int scriptMillis;
+
+    private HostEnvironment environment;
+    private MicronetHardware micronetHardware;
+    private boolean outputState;
+    private int rgb;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = HostEnvironment.start(latencyMicros, scriptMillis);
+        micronetHardware = MicronetHardware.getInstance();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        environment.stop();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void setOutputState() throws MicronetHardwareException {
+        outputState = !outputState;
+        micronetHardware.setOutputState(MicronetHardware.OUTPUT_0, outputState, true);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int getInputState() {
+        return micronetHardware.getInputState(MicronetHardware.kADC_GPIO_IN3);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int[] getAllPinInState() {
+        return micronetHardware.getAllPinInState();
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public int getAnalogInput() {
+        return micronetHardware.getAnalogInput(MicronetHardware.kADC_POWER_IN);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void setLedStatus() throws MicronetHardwareException {
+        rgb = (rgb + 1) & 0xFFFFFF;
+        micronetHardware.setLedStatus(1, 100, rgb);
+    }
+}
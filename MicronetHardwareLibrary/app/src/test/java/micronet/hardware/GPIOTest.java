@@ -0,0 +1,52 @@
+package micronet.hardware;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GPIOTest {
+
+    @Test
+    public void scriptSetsSelectedOutputs() {
+        String script = GPIO.outputScript(700, 0xD, 0x5, false);
+
+        assertEquals("#!system/bin/sh\n"
+                + "echo 1 > sys/class/gpio/gpio700/value\n"
+                + "echo 1 > sys/class/gpio/gpio702/value\n"
+                + "echo 0 > sys/class/gpio/gpio703/value\n", script);
+    }
+
+    @Test
+    public void validatingScriptWritesOneResultLine() {
+        String script = GPIO.outputScript(700, 0x6, 0x2, true);
+
+        assertEquals("#!system/bin/sh\n"
+                + "echo 1 > sys/class/gpio/gpio701/value\n"
+                + "r701=$?\n"
+                + "echo 0 > sys/class/gpio/gpio702/value\n"
+                + "r702=$?\n"
+                + "echo $r701 $r702 > /mnt/shell/emulated/0/result.txt\n", script);
+    }
+
+    @Test
+    public void singleOutputResultIsUnchanged() {
+        // setOutputState() results look the same as before batching
+        assertTrue(GPIO.outputScript(701, 1, 1, true).endsWith("echo $r701 > /mnt/shell/emulated/0/result.txt\n"));
+        assertEquals(0, GPIO.parseResultCodes("0\n", 1));
+        assertEquals(1, GPIO.parseResultCodes("1\n", 1));
+    }
+
+    @Test
+    public void resultCodesMapToFailedOutputs() {
+        assertEquals(0, GPIO.parseResultCodes("0 0 0 0\n", 0xF));
+        assertEquals(0x8 | 0x2, GPIO.parseResultCodes("0 1 0 127\n", 0xF));
+        assertEquals(0x4, GPIO.parseResultCodes("0 1\n", 0x6));
+    }
+
+    @Test
+    public void incompleteResultIsRetried() {
+        assertEquals(-1, GPIO.parseResultCodes("", 0x3));
+        assertEquals(-1, GPIO.parseResultCodes("0 0", 0x3));
+        assertEquals(-1, GPIO.parseResultCodes("0\n", 0x3));
+    }
+}
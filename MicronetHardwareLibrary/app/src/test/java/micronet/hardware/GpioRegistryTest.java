@@ -0,0 +1,137 @@
+package micronet.hardware;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class GpioRegistryTest {
+
+    private File root;
+    private String previousRoot;
+
+    @Before
+    public void setUp() throws IOException {
+        root = createTree();
+        previousRoot = GPIO.getSysfsRoot();
+        GPIO.setSysfsRoot(root.getPath());
+    }
+
+    @After
+    public void tearDown() {
+        GPIO.setSysfsRoot(previousRoot);
+        delete(root);
+    }
+
+    @Test
+    public void readsValueFile() throws IOException {
+        createGpio(root, 692, "1\n");
+        createGpio(root, 693, "0\n");
+
+        assertEquals(1, GPIO.getValue(692));
+        assertEquals(0, GPIO.getValue(693));
+    }
+
+    @Test
+    public void rereadsOpenFile() throws IOException {
+        File value = createGpio(root, 692, "0\n");
+        assertEquals(0, GPIO.getValue(692));
+        GpioRegistry.Handle handle = GpioRegistry.get(692);
+
+        writeFile(value, "1\n");
+        assertEquals(1, GPIO.getValue(692));
+        assertSame(handle, GpioRegistry.get(692));
+    }
+
+    @Test
+    public void unexpectedContentIsAnError() throws IOException {
+        File value = createGpio(root, 692, "x\n");
+        assertEquals(-1, GPIO.getValue(692));
+
+        writeFile(value, "");
+        assertEquals(-1, GPIO.getValue(692));
+    }
+
+    @Test
+    public void exportsMissingGpio() throws IOException {
+        assertEquals(-1, GPIO.getValue(695));
+        assertEquals("695", readFile(new File(root, "export")));
+        assertNull(GpioRegistry.get(695));
+
+        // Once the kernel has created it, the next read opens it
+        createGpio(root, 695, "1\n");
+        assertEquals(1, GPIO.getValue(695));
+    }
+
+    @Test
+    public void changingRootClosesHandles() throws IOException {
+        createGpio(root, 692, "1\n");
+        assertEquals(1, GPIO.getValue(692));
+
+        File other = createTree();
+        try {
+            createGpio(other, 692, "0\n");
+            GPIO.setSysfsRoot(other.getPath());
+            assertEquals(0, GPIO.getValue(692));
+        } finally {
+            GPIO.setSysfsRoot(root.getPath());
+            delete(other);
+        }
+        assertEquals(1, GPIO.getValue(692));
+    }
+
+    private static File createTree() throws IOException {
+        File root = File.createTempFile("sysfs-gpio", "");
+        if(!root.delete() || !root.mkdir()){
+            throw new IOException("Could not create " + root);
+        }
+        writeFile(new File(root, "export"), "");
+        return root;
+    }
+
+    private static File createGpio(File root, int gpio, String content) throws IOException {
+        File dir = new File(root, "gpio" + gpio);
+        if(!dir.mkdir()){
+            throw new IOException("Could not create " + dir);
+        }
+        File value = new File(dir, "value");
+        writeFile(value, content);
+        return value;
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] buffer = new byte[16];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = in.read(buffer);
+            return read < 0 ? "" : new String(buffer, 0, read, "US-ASCII");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
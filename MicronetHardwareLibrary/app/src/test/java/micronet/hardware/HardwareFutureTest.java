@@ -0,0 +1,125 @@
+package micronet.hardware;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicReference;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+import static org.junit.Assert.*;
+
+public class HardwareFutureTest {
+
+    private static class Recorder<V> implements HardwareFuture.Callback<V> {
+        final List<Object> events = new ArrayList<Object>();
+
+        @Override
+        public void onSuccess(V result) {
+            events.add(result);
+        }
+
+        @Override
+        public void onFailure(Throwable error) {
+            events.add(error);
+        }
+    }
+
+    private static <V> HardwareFuture<V> futureOf(final V value) {
+        return new HardwareFuture<V>(new Callable<V>() {
+            @Override
+            public V call() {
+                return value;
+            }
+        });
+    }
+
+    @Test
+    public void callbackAddedBeforeCompletionGetsResult() throws Exception {
+        HardwareFuture<Integer> future = futureOf(12000);
+        Recorder<Integer> recorder = new Recorder<Integer>();
+
+        future.addCallback(recorder);
+        assertTrue(recorder.events.isEmpty());
+
+        future.run();
+        assertEquals(1, recorder.events.size());
+        assertEquals(12000, recorder.events.get(0));
+        assertEquals(Integer.valueOf(12000), future.get());
+    }
+
+    @Test
+    public void callbackAddedAfterCompletionRunsRightAway() {
+        HardwareFuture<String> future = futureOf("A.1.2.0");
+        future.run();
+
+        Recorder<String> recorder = new Recorder<String>();
+        future.addCallback(recorder);
+        assertEquals(1, recorder.events.size());
+        assertEquals("A.1.2.0", recorder.events.get(0));
+    }
+
+    @Test
+    public void failureDeliversTheOriginalException() {
+        final MicronetHardwareException error = new MicronetHardwareException("Error getting MCU Version", -3);
+        HardwareFuture<String> future = new HardwareFuture<String>(new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw error;
+            }
+        });
+        Recorder<String> recorder = new Recorder<String>();
+        future.addCallback(recorder);
+
+        future.run();
+        assertEquals(1, recorder.events.size());
+        assertSame(error, recorder.events.get(0));
+    }
+
+    @Test
+    public void cancellationIsReportedAsFailure() {
+        HardwareFuture<Integer> future = futureOf(1);
+        Recorder<Integer> recorder = new Recorder<Integer>();
+        future.addCallback(recorder);
+
+        future.cancel(false);
+        assertEquals(1, recorder.events.size());
+        assertTrue(recorder.events.get(0) instanceof CancellationException);
+    }
+
+    @Test
+    public void callbackRunsOnGivenExecutor() {
+        final List<Runnable> queued = new ArrayList<Runnable>();
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+
+        HardwareFuture<Integer> future = futureOf(5);
+        final AtomicReference<Integer> result = new AtomicReference<Integer>();
+        future.addCallback(new HardwareFuture.Callback<Integer>() {
+            @Override
+            public void onSuccess(Integer value) {
+                result.set(value);
+            }
+
+            @Override
+            public void onFailure(Throwable error) {
+                fail();
+            }
+        }, executor);
+
+        future.run();
+        assertNull(result.get());
+        assertEquals(1, queued.size());
+
+        queued.get(0).run();
+        assertEquals(Integer.valueOf(5), result.get());
+    }
+}
@@ -0,0 +1,158 @@
+package micronet.hardware;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Runs the library on a Linux host: starts the iodriver simulator in place of the MCU socket, points
+ * GPIO at a temporary fake sysfs tree and runs output scripts with a {@link HostPropertyService}.
+ *
+ * The simulator binary and a host build of libmctl come from the host CMake build in src/test/jni. Their
+ * locations are passed in with the micronet.simulator and java.library.path system properties, the jmh
+ * gradle task sets both.
+ */
+class HostEnvironment {
+
+    static final String SIMULATOR_PROPERTY = "micronet.simulator";
+
+    /** Input gpios, see MicronetHardware.getInputState(). */
+    static final int FIRST_INPUT_GPIO = 692;
+    static final int INPUT_COUNT = 8;
+
+    /** Output gpios, see MicronetHardware.setOutputState(). */
+    static final int FIRST_OUTPUT_GPIO = 700;
+    static final int OUTPUT_COUNT = 4;
+
+    /** Time an output script takes by default, about what a validated write takes on a device. */
+    static final int DEFAULT_SCRIPT_MILLIS = 100;
+
+    private final Process simulator;
+    private final File sysfsRoot;
+    private final String previousSysfsRoot;
+    private final HostPropertyService propertyService;
+
+    private HostEnvironment(Process simulator, File sysfsRoot, int scriptMillis) {
+        this.simulator = simulator;
+        this.sysfsRoot = sysfsRoot;
+        this.previousSysfsRoot = GPIO.getSysfsRoot();
+        this.propertyService = new HostPropertyService(sysfsRoot, scriptMillis);
+        GPIO.setSysfsRoot(sysfsRoot.getPath());
+        GPIO.setScriptDir(sysfsRoot);
+        SystemProperty.setAccessor(propertyService);
+    }
+
+    /**
+     * Starts the simulator with the given reply latency and creates the fake sysfs tree, inputs alternate
+     * between high and low.
+     */
+    static HostEnvironment start(int latencyMicros) throws IOException, InterruptedException {
+        return start(latencyMicros, DEFAULT_SCRIPT_MILLIS);
+    }
+
+    /**
+     * Like {@link #start(int)}, output scripts take scriptMillis to run.
+     */
+    static HostEnvironment start(int latencyMicros, int scriptMillis) throws IOException, InterruptedException {
+        return start(latencyMicros, scriptMillis, 0);
+    }
+
+    /**
+     * Like {@link #start(int, int)}, the simulated MCU handles one request at a time and each takes
+     * serviceMicros, so concurrent requests queue like on the serial link to a real MCU.
+     */
+    static HostEnvironment start(int latencyMicros, int scriptMillis, int serviceMicros) throws IOException, InterruptedException {
+        File sysfsRoot = createSysfsTree();
+        Process simulator = startSimulator(latencyMicros, serviceMicros);
+        return new HostEnvironment(simulator, sysfsRoot, scriptMillis);
+    }
+
+    File getSysfsRoot() {
+        return sysfsRoot;
+    }
+
+    /** Writes a gpio value file, like the kernel would on an input change. */
+    void setInput(int input, int value) throws IOException {
+        writeFile(new File(sysfsRoot, "gpio" + (FIRST_INPUT_GPIO + input) + "/value"), value + "\n");
+    }
+
+    void stop() {
+        simulator.destroy();
+        try {
+            simulator.waitFor();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        propertyService.stop();
+        SystemProperty.setAccessor(null);
+        GPIO.setScriptDir(null);
+        GPIO.setSysfsRoot(previousSysfsRoot);
+        delete(sysfsRoot);
+    }
+
+    private static File createSysfsTree() throws IOException {
+        File root = File.createTempFile("sysfs-gpio", "");
+        if(!root.delete() || !root.mkdir()){
+            throw new IOException("Could not create " + root);
+        }
+
+        writeFile(new File(root, "export"), "");
+        for(int i = 0; i < INPUT_COUNT; i++){
+            File gpio = new File(root, "gpio" + (FIRST_INPUT_GPIO + i));
+            if(!gpio.mkdir()){
+                throw new IOException("Could not create " + gpio);
+            }
+            writeFile(new File(gpio, "value"), (i % 2) + "\n");
+        }
+        for(int i = 0; i < OUTPUT_COUNT; i++){
+            File gpio = new File(root, "gpio" + (FIRST_OUTPUT_GPIO + i));
+            if(!gpio.mkdir()){
+                throw new IOException("Could not create " + gpio);
+            }
+            writeFile(new File(gpio, "value"), "0\n");
+        }
+        return root;
+    }
+
+    private static Process startSimulator(int latencyMicros, int serviceMicros) throws IOException, InterruptedException {
+        String path = System.getProperty(SIMULATOR_PROPERTY);
+        if(path == null || !new File(path).canExecute()){
+            throw new IllegalStateException("Set " + SIMULATOR_PROPERTY + " to the iodriver_simulator binary, not " + path);
+        }
+
+        Process process = new ProcessBuilder(path, "-l", String.valueOf(latencyMicros), "-s", String.valueOf(serviceMicros))
+                .redirectErrorStream(true)
+                .start();
+
+        // The simulator prints a line once its socket is bound, and exits if the address is taken
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        String line = output.readLine();
+        if(line == null || !line.contains("running")){
+            process.destroy();
+            process.waitFor();
+            throw new IllegalStateException("iodriver_simulator did not start: " + line);
+        }
+        return process;
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,132 @@
+package micronet.hardware;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * In-memory property service that runs output scripts like the device's op.se_dom_ex service, for
+ * {@link HostEnvironment}.
+ *
+ * Setting op.se_dom_ex to a script path "runs" the script after scriptMillis: its gpio writes go to the
+ * fake sysfs tree, a validating script gets a result line of 0s and the property goes back to 0.
+ */
+class HostPropertyService implements SystemProperty.Accessor {
+
+    private static final String SCRIPT_PROPERTY = "op.se_dom_ex";
+
+    private static final Pattern GPIO_WRITE = Pattern.compile("echo (\\d) > sys/class/gpio/gpio(\\d+)/value");
+    private static final Pattern RESULT = Pattern.compile("r\\d+=\\$\\?");
+    private static final Pattern RESULT_FILE = Pattern.compile("echo .* > (\\S+)");
+
+    private final File sysfsRoot;
+    private final int scriptMillis;
+    private final Map<String, String> properties = new HashMap<String, String>();
+    private final ScheduledExecutorService runner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "HostPropertyService");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    HostPropertyService(File sysfsRoot, int scriptMillis) {
+        this.sysfsRoot = sysfsRoot;
+        this.scriptMillis = scriptMillis;
+    }
+
+    @Override
+    public synchronized String get(String key) {
+        String value = properties.get(key);
+        return value == null ? "" : value;
+    }
+
+    @Override
+    public boolean set(String key, final String value) {
+        put(key, value);
+        if(SCRIPT_PROPERTY.equals(key)){
+            runner.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runScript(new File(value));
+                    put(SCRIPT_PROPERTY, "0");
+                }
+            }, scriptMillis, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean waitFor(String key, String value, int timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        while(!get(key).equals(value)){
+            long remainingMillis = (deadline - System.nanoTime()) / 1000000L;
+            if(remainingMillis <= 0){
+                return false;
+            }
+            wait(remainingMillis);
+        }
+        return true;
+    }
+
+    void stop() {
+        runner.shutdownNow();
+    }
+
+    private synchronized void put(String key, String value) {
+        properties.put(key, value);
+        notifyAll();
+    }
+
+    private void runScript(File script) {
+        StringBuilder results = new StringBuilder();
+        String resultFile = null;
+        try {
+            BufferedReader reader = new BufferedReader(new FileReader(script));
+            try {
+                for(String line = reader.readLine(); line != null; line = reader.readLine()){
+                    Matcher write = GPIO_WRITE.matcher(line);
+                    Matcher resultFileLine = RESULT_FILE.matcher(line);
+                    if(write.matches()){
+                        File value = new File(sysfsRoot, "gpio" + write.group(2) + "/value");
+                        if(value.exists()){
+                            writeFile(value, write.group(1) + "\n");
+                        }
+                    }else if(RESULT.matcher(line).matches()){
+                        results.append(results.length() == 0 ? "0" : " 0");
+                    }else if(resultFileLine.matches()){
+                        resultFile = resultFileLine.group(1);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+
+            if(resultFile != null){
+                writeFile(new File(resultFile), results + "\n");
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not run " + script, e);
+        }
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package micronet.hardware;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class InputWatcherTest {
+
+    /**
+     * Stands in for poll(), which never signals an edge on plain files: the test signals one after
+     * writing a value file, like the kernel would.
+     */
+    private static class FakeEdgeWaiter implements InputWatcher.EdgeWaiter {
+        final Semaphore edges = new Semaphore(0);
+        volatile int watched;
+
+        @Override
+        public void await(FileDescriptor[] valueFiles) throws IOException {
+            watched = valueFiles.length;
+            edges.acquireUninterruptibly();
+        }
+
+        @Override
+        public void wake() {
+            edges.release();
+        }
+    }
+
+    private static class Transition {
+        final int inputType;
+        final int state;
+        final long timestamp;
+
+        Transition(int inputType, int state, long timestamp) {
+            this.inputType = inputType;
+            this.state = state;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class QueueListener implements InputListener {
+        final BlockingQueue<Transition> transitions = new LinkedBlockingQueue<Transition>();
+
+        @Override
+        public void onInputChanged(int inputType, int state, long timestampNanos) {
+            transitions.add(new Transition(inputType, state, timestampNanos));
+        }
+
+        Transition next() throws InterruptedException {
+            return transitions.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    private File root;
+    private String previousRoot;
+    private FakeEdgeWaiter waiter;
+    private InputWatcher watcher;
+
+    @Before
+    public void setUp() throws IOException {
+        root = File.createTempFile("sysfs-gpio", "");
+        if(!root.delete() || !root.mkdir()){
+            throw new IOException("Could not create " + root);
+        }
+        writeFile(new File(root, "export"), "");
+        for(int i = 0; i < InputWatcher.INPUT_COUNT; i++){
+            File gpio = new File(root, "gpio" + (InputWatcher.FIRST_INPUT_GPIO + i));
+            if(!gpio.mkdir()){
+                throw new IOException("Could not create " + gpio);
+            }
+            writeFile(new File(gpio, "value"), "0\n");
+            writeFile(new File(gpio, "edge"), "none\n");
+        }
+
+        previousRoot = GPIO.getSysfsRoot();
+        GPIO.setSysfsRoot(root.getPath());
+        waiter = new FakeEdgeWaiter();
+        watcher = new InputWatcher(waiter);
+    }
+
+    @After
+    public void tearDown() {
+        GPIO.setSysfsRoot(previousRoot);
+        delete(root);
+    }
+
+    @Test
+    public void listenerGetsTimestampedTransitions() throws Exception {
+        QueueListener listener = new QueueListener();
+        watcher.addListener(MicronetHardware.kADC_GPIO_IN2, listener);
+        assertEquals("both", readFile(new File(root, "gpio694/edge")));
+
+        long before = System.nanoTime();
+        setInput(MicronetHardware.kADC_GPIO_IN2, 1);
+        Transition rising = listener.next();
+        assertNotNull(rising);
+        assertEquals(MicronetHardware.kADC_GPIO_IN2, rising.inputType);
+        assertEquals(1, rising.state);
+        assertTrue(rising.timestamp >= before);
+
+        setInput(MicronetHardware.kADC_GPIO_IN2, 0);
+        Transition falling = listener.next();
+        assertNotNull(falling);
+        assertEquals(0, falling.state);
+        assertTrue(falling.timestamp >= rising.timestamp);
+    }
+
+    @Test
+    public void onlyChangedInputsAreReported() throws Exception {
+        QueueListener first = new QueueListener();
+        QueueListener third = new QueueListener();
+        watcher.addListener(1, first);
+        watcher.addListener(3, third);
+
+        // An edge without a change, ex: a glitch shorter than the read, isn't a transition
+        waiter.wake();
+        setInput(3, 1);
+        Transition transition = third.next();
+        assertNotNull(transition);
+        assertEquals(3, transition.inputType);
+        assertTrue(first.transitions.isEmpty());
+        assertTrue(third.transitions.isEmpty());
+        assertEquals(2, waiter.watched);
+    }
+
+    @Test
+    public void threadStopsWithLastListener() throws Exception {
+        QueueListener a = new QueueListener();
+        QueueListener b = new QueueListener();
+        watcher.addListener(0, a);
+        watcher.addListener(0, b);
+        assertTrue(watcher.isRunning());
+
+        watcher.removeListener(0, a);
+        setInput(0, 1);
+        assertNotNull(b.next());
+        assertTrue(a.transitions.isEmpty());
+
+        watcher.removeListener(0, b);
+        for(int i = 0; i < 500 && watcher.isRunning(); i++){
+            Thread.sleep(10);
+        }
+        assertFalse(watcher.isRunning());
+
+        // Listening again starts from the current state
+        watcher.addListener(0, a);
+        setInput(0, 0);
+        Transition transition = a.next();
+        assertNotNull(transition);
+        assertEquals(0, transition.state);
+        watcher.removeListener(0, a);
+    }
+
+    @Test(expected = IOException.class)
+    public void missingInputFails() throws Exception {
+        delete(new File(root, "gpio699"));
+        watcher.addListener(7, new QueueListener());
+    }
+
+    private void setInput(int inputType, int value) throws IOException {
+        writeFile(new File(root, "gpio" + (InputWatcher.FIRST_INPUT_GPIO + inputType) + "/value"), value + "\n");
+        waiter.wake();
+    }
+
+    private static void writeFile(File file, String content) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content.getBytes("US-ASCII"));
+        } finally {
+            out.close();
+        }
+    }
+
+    private static String readFile(File file) throws IOException {
+        byte[] buffer = new byte[16];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int read = in.read(buffer);
+            return read < 0 ? "" : new String(buffer, 0, read, "US-ASCII");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if(children != null){
+            for(File child : children){
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,130 @@
+package micronet.hardware;
+
+import org.junit.Test;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+import static org.junit.Assert.*;
+
+public class LedCacheTest {
+
+    /**
+     * LEDs as the MCU shows them, counting requests. Can fail the next write.
+     */
+    private static class FakeMcu implements LedCache.Mcu {
+        final int[][] leds = new int[3][4];
+        int writes;
+        int reads;
+        boolean failNextWrite;
+
+        @Override
+        public void write(int led, int brightness, int rgb) throws MicronetHardwareException {
+            writes++;
+            if(failNextWrite){
+                failNextWrite = false;
+                throw new MicronetHardwareException("Error setting LED state", -2);
+            }
+            leds[led] = new int[]{brightness, (rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF};
+        }
+
+        @Override
+        public int[] read(int led, int timeoutMillis) {
+            reads++;
+            return leds[led].clone();
+        }
+    }
+
+    private final FakeMcu mcu = new FakeMcu();
+    private final LedCache cache = new LedCache(mcu);
+    private final LED led = new LED(LED.CENTER);
+
+    @Test
+    public void unchangedWritesAreSuppressed() throws MicronetHardwareException {
+        cache.set(LED.CENTER, 100, 0x00FF00, 0);
+        cache.set(LED.CENTER, 100, 0x00FF00, 0);
+        // Only the low 24 bits are sent
+        cache.set(LED.CENTER, 100, 0xFF00FF00, 0);
+        assertEquals(1, mcu.writes);
+        assertEquals(1, cache.getWrites());
+        assertEquals(2, cache.getSuppressedWrites());
+
+        cache.set(LED.CENTER, 50, 0x00FF00, 0);
+        cache.set(LED.LEFT, 100, 0x00FF00, 0);
+        assertEquals(3, mcu.writes);
+    }
+
+    @Test
+    public void readsAreServedFromTheCopy() throws MicronetHardwareException {
+        // Unknown until read once
+        mcu.leds[LED.CENTER] = new int[]{10, 1, 2, 3};
+        cache.get(LED.CENTER, 500, 0, led);
+        assertEquals(1, mcu.reads);
+        assertLed(10, 1, 2, 3);
+
+        cache.set(LED.CENTER, 200, 0x123456, 0);
+        cache.get(LED.CENTER, 500, 0, led);
+        assertEquals(1, mcu.reads);
+        assertEquals(1, cache.getCachedReads());
+        assertLed(200, 0x12, 0x34, 0x56);
+    }
+
+    @Test
+    public void newGenerationReadsAndWritesAgain() throws MicronetHardwareException {
+        cache.set(LED.CENTER, 100, 0x0000FF, 0);
+        cache.set(LED.CENTER, 100, 0x0000FF, 1);
+        assertEquals(2, mcu.writes);
+
+        cache.get(LED.CENTER, 500, 2, led);
+        assertEquals(1, mcu.reads);
+        cache.get(LED.CENTER, 500, 2, led);
+        assertEquals(1, mcu.reads);
+    }
+
+    @Test
+    public void failedWriteDropsTheCopy() throws MicronetHardwareException {
+        cache.set(LED.CENTER, 100, 0x0000FF, 0);
+        mcu.failNextWrite = true;
+        try {
+            cache.set(LED.CENTER, 100, 0xFF0000, 0);
+            fail("Expected MicronetHardwareException");
+        } catch (MicronetHardwareException e) {
+            assertEquals(-2, e.getErrorCode());
+        }
+
+        // The same state is sent again rather than trusted
+        cache.set(LED.CENTER, 100, 0x0000FF, 0);
+        assertEquals(3, mcu.writes);
+    }
+
+    @Test
+    public void verifyCatchesOtherWriters() throws MicronetHardwareException {
+        cache.set(LED.CENTER, 100, 0x0000FF, 0);
+        assertTrue(cache.verify(LED.CENTER, 500, 0, led));
+        assertEquals(0, cache.getMismatches());
+
+        // Another process changes the LED
+        mcu.leds[LED.CENTER] = new int[]{0, 0, 0, 0};
+        assertFalse(cache.verify(LED.CENTER, 500, 0, led));
+        assertEquals(1, cache.getMismatches());
+        assertLed(0, 0, 0, 0);
+
+        // The copy follows the MCU, setting the old state is sent again
+        cache.set(LED.CENTER, 100, 0x0000FF, 0);
+        assertEquals(2, mcu.writes);
+    }
+
+    @Test
+    public void invalidateReadsAgain() throws MicronetHardwareException {
+        cache.set(LED.CENTER, 100, 0x0000FF, 0);
+        cache.invalidate();
+        cache.get(LED.CENTER, 500, 0, led);
+        assertEquals(1, mcu.reads);
+    }
+
+    private void assertLed(int brightness, int red, int green, int blue) {
+        assertEquals(brightness, led.BRIGHTNESS);
+        assertEquals(red, led.RED);
+        assertEquals(green, led.GREEN);
+        assertEquals(blue, led.BLUE);
+    }
+}
@@ -0,0 +1,337 @@
+package micronet.hardware;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import micronet.hardware.exception.MicronetHardwareException;
+import micronet.hardware.transport.LoopbackTransport;
+import micronet.hardware.transport.MapiExchange;
+import micronet.hardware.transport.MapiTransport;
+import micronet.hardware.transport.RecordingTransport;
+import micronet.hardware.transport.ReplayTransport;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+public class MControlLoopbackTest {
+
+    private LoopbackTransport loopback;
+    private MControl mControl;
+
+    @Before
+    public void setUp() {
+        loopback = new LoopbackTransport();
+        mControl = new MControl(loopback);
+    }
+
+    @Test
+    public void versions() throws MicronetHardwareException {
+        assertEquals("A.1.2.0", mControl.get_mcu_version());
+        assertEquals("41000002", mControl.get_fpga_version());
+    }
+
+    @Test
+    public void analogInputs() {
+        loopback.setAdc(MicronetHardware.kADC_POWER_IN, 12345);
+        assertEquals(12345, mControl.get_adc_or_gpi_voltage(MicronetHardware.kADC_POWER_IN));
+
+        int[] voltages = new int[12];
+        mControl.get_all_adc_or_gpi_voltage(voltages);
+        for(int i = 0; i < voltages.length; i++){
+            assertEquals(i == MicronetHardware.kADC_POWER_IN ? 12345 : 1000 * (i + 1) + i, voltages[i]);
+        }
+    }
+
+    @Test
+    public void deviceInfoIsReadOnce() throws MicronetHardwareException {
+        DeviceInfo info = mControl.get_device_info();
+        assertEquals("A.1.2.0", info.getMcuVersion());
+        assertEquals(0xA, info.getMcuVersionMajor());
+        assertEquals(1, info.getMcuVersionMinor());
+        assertEquals(2, info.getMcuVersionBuild());
+        assertEquals(0, info.getMcuVersionRevision());
+        assertEquals(0x41000002, info.getFpgaVersion());
+        assertEquals("41000002", info.getFpgaVersionString());
+        // Both versions in one transaction
+        assertEquals(2, loopback.getRequestCount());
+
+        assertSame(info, mControl.get_device_info());
+        assertEquals("A.1.2.0", mControl.get_mcu_version());
+        assertEquals("41000002", mControl.get_fpga_version());
+        assertEquals(2, loopback.getRequestCount());
+    }
+
+    @Test
+    public void deviceInfoIsReadAgainAfterReconnect() throws MicronetHardwareException {
+        DeviceInfo info = mControl.get_device_info();
+        loopback.reconnect();
+        DeviceInfo reread = mControl.get_device_info();
+        assertNotSame(info, reread);
+        assertEquals(4, loopback.getRequestCount());
+
+        mControl.invalidate_device_info();
+        assertNotSame(reread, mControl.get_device_info());
+        assertEquals(6, loopback.getRequestCount());
+    }
+
+    @Test
+    public void deviceInfoReadBeforeReconnectOrInvalidateIsNotShared() throws Exception {
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final LoopbackTransport gatedLoopback = new LoopbackTransport() {
+            @Override
+            public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+                // Hold the first read only
+                if(inFlight.getCount() > 0){
+                    inFlight.countDown();
+                    try {
+                        release.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.transfer(slots, count, results, timeoutMillis);
+            }
+        };
+        final MControl gated = new MControl(gatedLoopback);
+        final DeviceInfo[] early = new DeviceInfo[1];
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    early[0] = gated.get_device_info();
+                } catch (MicronetHardwareException e) {
+                    throw new AssertionError(e);
+                }
+            }
+        });
+        reader.start();
+        assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+
+        // A caller that saw the reconnect reads on its own
+        gatedLoopback.reconnect();
+        DeviceInfo late = gated.get_device_info();
+        assertEquals(1, late.getGeneration());
+        assertEquals(0, gated.getSingleFlight().getJoinedCount());
+
+        // The read from before the invalidation isn't kept
+        gated.invalidate_device_info();
+        release.countDown();
+        reader.join(5000);
+        assertEquals(0, early[0].getGeneration());
+        int requests = gatedLoopback.getRequestCount();
+        DeviceInfo reread = gated.get_device_info();
+        assertNotSame(late, reread);
+        assertEquals(requests + 2, gatedLoopback.getRequestCount());
+    }
+
+    @Test
+    public void deviceInfoErrorIsNotKept() throws MicronetHardwareException {
+        final boolean[] failing = {true};
+        MControl flaky = new MControl(new LoopbackTransport() {
+            @Override
+            public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+                if(failing[0]){
+                    Arrays.fill(results, 0, count, MapiTransport.RX_MSG_FAILURE);
+                    return MapiTransport.RX_MSG_FAILURE;
+                }
+                return super.transfer(slots, count, results, timeoutMillis);
+            }
+        });
+
+        try {
+            flaky.get_mcu_version();
+            fail("Expected MicronetHardwareException");
+        } catch (MicronetHardwareException e) {
+            assertEquals("Error getting MCU Version", e.getMessage());
+            assertEquals(MapiTransport.RX_MSG_FAILURE, e.getErrorCode());
+        }
+
+        failing[0] = false;
+        assertEquals("A.1.2.0", flaky.get_mcu_version());
+    }
+
+    @Test
+    public void ledRoundTrip() throws MicronetHardwareException {
+        mControl.set_led_status(2, 200, 0x123456);
+        assertArrayEquals(new int[]{200, 0x12, 0x34, 0x56}, loopback.getLed(2));
+
+        LED led = mControl.get_led_status(2);
+        assertEquals(200, led.BRIGHTNESS);
+        assertEquals(0x12, led.RED);
+        assertEquals(0x34, led.GREEN);
+        assertEquals(0x56, led.BLUE);
+    }
+
+    @Test
+    public void rtcRoundTrip() throws MicronetHardwareException {
+        mControl.set_rtc_date_time("2016-08-25 16:00:55.00");
+        String dateTime = mControl.get_rtc_date_time();
+        assertTrue(dateTime, dateTime.startsWith("2016-08-25 16:00:5"));
+    }
+
+    @Test
+    public void rtcClockFollowsSetTime() throws MicronetHardwareException {
+        RtcClock clock = mControl.getRtcClock();
+        clock.currentTimeMillis();
+        mControl.set_rtc_date_time("2016-08-25 16:00:55.00");
+        long millis = clock.currentTimeMillis();
+        assertTrue(String.valueOf(millis), millis >= 1472140855000L && millis < 1472140860000L);
+        assertEquals(2, clock.getSyncs());
+    }
+
+    @Test
+    public void rtcBattery() throws MicronetHardwareException {
+        assertEquals("Good", mControl.check_rtc_battery());
+        loopback.setRtcBatteryGood(false);
+        assertEquals("Bad", mControl.check_rtc_battery());
+    }
+
+    @Test
+    public void powerAndGpio() throws MicronetHardwareException {
+        loopback.setPowerOnReason(0x2);
+        assertEquals(0x2, mControl.get_power_on_reason());
+
+        mControl.set_device_power_off(30);
+        assertEquals(30, loopback.getPowerOffWait());
+
+        mControl.set_can1_j1708_pwr_enable_gpio(1);
+        assertEquals(1, mControl.get_can1_j1708_pwr_enable_gpio());
+        assertArrayEquals(new int[]{0, 0, 0}, mControl.get_power_on_threshold());
+    }
+
+    @Test
+    public void breakerOpensOnTransportFailures() {
+        MControl failing = new MControl(new LoopbackTransport() {
+            @Override
+            public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+                Arrays.fill(results, 0, count, MapiTransport.RX_MSG_FAILURE);
+                return MapiTransport.RX_MSG_FAILURE;
+            }
+        });
+
+        for(int i = 0; i < 3; i++){
+            assertEquals(-1, failing.get_power_on_reason());
+        }
+        assertEquals(CircuitBreaker.State.OPEN, failing.getCircuitBreaker().getState());
+        assertEquals(CircuitBreaker.State.CLOSED, mControl.getCircuitBreaker().getState());
+    }
+
+    @Test
+    public void concurrentIdenticalReadsShareOneRequest() throws Exception {
+        final CountDownLatch inFlight = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final MControl gated = new MControl(new LoopbackTransport() {
+            @Override
+            public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+                inFlight.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.transfer(slots, count, results, timeoutMillis);
+            }
+        });
+
+        final int[] voltages = new int[4];
+        Thread[] threads = new Thread[voltages.length];
+        for(int i = 0; i < threads.length; i++){
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    voltages[index] = gated.get_adc_or_gpi_voltage(MicronetHardware.kADC_POWER_IN);
+                }
+            });
+            threads[i].start();
+        }
+
+        assertTrue(inFlight.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < 500 && gated.getSingleFlight().getJoinedCount() < threads.length - 1; i++){
+            Thread.sleep(10);
+        }
+        release.countDown();
+        for(Thread thread : threads){
+            thread.join(5000);
+        }
+
+        assertEquals(threads.length - 1, gated.getSingleFlight().getJoinedCount());
+        for(int voltage : voltages){
+            assertEquals(9008, voltage);
+        }
+        // A read after the flight goes to the MCU again
+        assertEquals(9008, gated.get_adc_or_gpi_voltage(MicronetHardware.kADC_POWER_IN));
+        assertEquals(threads.length - 1, gated.getSingleFlight().getJoinedCount());
+    }
+
+    @Test
+    public void pollingReadsDontAllocate() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled());
+        long thread = Thread.currentThread().getId();
+
+        int[] voltages = new int[12];
+        int sum = 0;
+        for(int round = 0; round < 2; round++){
+            // The first round warms up the thread's scratch codec
+            long before = threads.getThreadAllocatedBytes(thread);
+            for(int i = 0; i < 10000; i++){
+                sum += mControl.get_adc_or_gpi_voltage(MicronetHardware.kADC_POWER_IN);
+                mControl.get_all_adc_or_gpi_voltage(voltages);
+                sum += mControl.get_power_on_reason();
+            }
+            long allocated = threads.getThreadAllocatedBytes(thread) - before;
+            if(round == 1){
+                // Allows for the allocation counter itself, not for a byte per call
+                assertTrue(allocated + " bytes for 30000 calls", allocated < 3000);
+            }
+        }
+        assertTrue(sum != 0);
+        assertEquals(9008, voltages[MicronetHardware.kADC_POWER_IN]);
+    }
+
+    @Test
+    public void recordAndReplay() throws Exception {
+        RecordingTransport recording = new RecordingTransport(loopback);
+        MControl recorded = new MControl(recording);
+        recorded.set_led_status(0, 10, 0xFF0000);
+        int[] voltages = new int[4];
+        recorded.get_all_adc_or_gpi_voltage(voltages);
+        String version = recorded.get_mcu_version();
+
+        List<MapiExchange> exchanges = recording.getExchanges();
+        assertEquals(7, exchanges.size());
+        assertEquals("write 020006000aff0000 0", exchanges.get(0).toString());
+        assertEquals("read 02010400 4 e8030000", exchanges.get(1).toString());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        recording.writeTo(out);
+        ReplayTransport replay = ReplayTransport.from(new ByteArrayInputStream(out.toByteArray()));
+        MControl replayed = new MControl(replay);
+
+        replayed.set_led_status(0, 10, 0xFF0000);
+        int[] replayedVoltages = new int[4];
+        replayed.get_all_adc_or_gpi_voltage(replayedVoltages);
+        assertArrayEquals(voltages, replayedVoltages);
+        assertEquals(version, replayed.get_mcu_version());
+        assertEquals(0, replay.getRemaining());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void replayRejectsUnexpectedRequest() throws Exception {
+        ReplayTransport replay = ReplayTransport.from(new ByteArrayInputStream("read 020101 4 02000041\n".getBytes("US-ASCII")));
+        new MControl(replay).get_mcu_version();
+    }
+}
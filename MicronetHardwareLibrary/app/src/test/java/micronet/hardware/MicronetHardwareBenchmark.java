@@ -0,0 +1,151 @@
+package micronet.hardware;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+/**
+ * Host benchmarks of the MicronetHardware calls apps poll, through MControl, libmctl and GPIO, against the
+ * iodriver simulator and a fake sysfs tree (see {@link HostEnvironment}).
+ *
+ * Sample time mode gives the latency percentiles (p0.99), the gc profiler the allocation rate
+ * (gc.alloc.rate.norm is bytes per call). Run with "gradlew jmh", extra JMH options can be passed with
+ * -Pjmh="...", ex: -Pjmh="getAllAnalogInput -p latencyMicros=500".
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MicronetHardwareBenchmark {
+
+    /**
+     * Reply latency of the simulated MCU, 0 measures the library and the socket alone.
+     */
+    @Param({"0"})
+    public int latencyMicros;
+
+    private HostEnvironment environment;
+    private MicronetHardware micronetHardware;
+    private int rgb;
+    private final LED led = new LED(LED.CENTER);
+
+    private static final int SNAPSHOT_MAX_AGE_MILLIS = 100;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        environment = HostEnvironment.start(latencyMicros);
+        micronetHardware = MicronetHardware.getInstance();
+        micronetHardware.startSnapshotRefresh(SNAPSHOT_MAX_AGE_MILLIS / 2);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        micronetHardware.stopSnapshotRefresh();
+        environment.stop();
+    }
+
+    @Benchmark
+    public int getAnalogInput() {
+        return micronetHardware.getAnalogInput(MicronetHardware.kADC_POWER_IN);
+    }
+
+    @Benchmark
+    public int[] getAllAnalogInput() {
+        return micronetHardware.getAllAnalogInput();
+    }
+
+    @Benchmark
+    public int getInputState() {
+        return micronetHardware.getInputState(MicronetHardware.kADC_GPIO_IN3);
+    }
+
+    @Benchmark
+    public int[] getAllPinInState() {
+        return micronetHardware.getAllPinInState();
+    }
+
+    /**
+     * Reads from a snapshot kept fresh in the background. Run with -t to see reader throughput scale with
+     * threads, ex: -Pjmh="getSnapshot -t 4".
+     */
+    @Benchmark
+    public int getSnapshot() {
+        return micronetHardware.getSnapshot(SNAPSHOT_MAX_AGE_MILLIS).getAnalogInput(MicronetHardware.kADC_POWER_IN);
+    }
+
+    @Benchmark
+    public void setLedStatus() throws MicronetHardwareException {
+        // Change the color every call so nothing can skip the write
+        rgb = (rgb + 1) & 0xFFFFFF;
+        micronetHardware.setLedStatus(1, 100, rgb);
+    }
+
+    /**
+     * Re-asserts the same state, like a status indicator updated every cycle. The LED cache skips the writes.
+     */
+    @Benchmark
+    public void setLedStatusUnchanged() throws MicronetHardwareException {
+        micronetHardware.setLedStatus(1, 100, 0x00FF00);
+    }
+
+    @Benchmark
+    public LED getLedStatus() throws MicronetHardwareException {
+        led.BRIGHTNESS = 0;
+        micronetHardware.getLedStatus(led);
+        return led;
+    }
+
+    @Benchmark
+    public String getMcuVersion() throws MicronetHardwareException {
+        return micronetHardware.getMcuVersion();
+    }
+
+    @Benchmark
+    public String getRtcDateTime() throws MicronetHardwareException {
+        return micronetHardware.getRtcDateTime();
+    }
+
+    @Benchmark
+    public long getRtcTimeMillis() throws MicronetHardwareException {
+        return micronetHardware.getRtcClock().currentTimeMillis();
+    }
+
+    /**
+     * Runs the benchmarks given on the command line (all by default) with the gc profiler.
+     */
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLine);
+        if(commandLine.getIncludes().isEmpty()){
+            options.include("micronet\\.hardware\\..*Benchmark");
+        }
+        options.addProfiler(GCProfiler.class);
+        options.jvmArgsAppend(
+                "-Djava.library.path=" + System.getProperty("java.library.path"),
+                "-D" + HostEnvironment.SIMULATOR_PROPERTY + "=" + System.getProperty(HostEnvironment.SIMULATOR_PROPERTY));
+        new Runner(options.build()).run();
+    }
+}
@@ -0,0 +1,161 @@
+package micronet.hardware;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+import static org.junit.Assert.*;
+
+public class OutputWriterTest {
+
+    /**
+     * Records writes and blocks each one until the test lets it finish, like a validated script.
+     */
+    private static class FakeOutputs implements OutputWriter.Outputs {
+        final List<int[]> writes = new CopyOnWriteArrayList<int[]>();
+        final Semaphore started = new Semaphore(0);
+        final Semaphore finish = new Semaphore(0);
+        volatile boolean failing;
+        volatile RuntimeException unchecked;
+
+        @Override
+        public void setOutputStates(int mask, int values) throws MicronetHardwareException {
+            writes.add(new int[]{mask, values});
+            started.release();
+            finish.acquireUninterruptibly();
+            if(failing){
+                throw new MicronetHardwareException("Error setting gpio state of 700", -5);
+            }
+            if(unchecked != null){
+                throw unchecked;
+            }
+        }
+
+        void awaitStarted() throws InterruptedException {
+            assertTrue(started.tryAcquire(5, TimeUnit.SECONDS));
+        }
+    }
+
+    private ExecutorService executor;
+    private FakeOutputs outputs;
+    private OutputWriter writer;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newSingleThreadExecutor();
+        outputs = new FakeOutputs();
+        writer = new OutputWriter(outputs, executor);
+    }
+
+    @After
+    public void tearDown() {
+        outputs.finish.release(100);
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void togglesDuringWriteCollapseToLatestState() throws Exception {
+        HardwareFuture<Void> first = writer.write(0x1, 0x1);
+        outputs.awaitStarted();
+
+        HardwareFuture<Void> off = writer.write(0x1, 0x0);
+        HardwareFuture<Void> on = writer.write(0x1, 0x1);
+        HardwareFuture<Void> last = writer.write(0x1, 0x0);
+        assertTrue(off.isCancelled());
+        assertTrue(on.isCancelled());
+
+        outputs.finish.release(2);
+        assertNull(first.get(5, TimeUnit.SECONDS));
+        assertNull(last.get(5, TimeUnit.SECONDS));
+
+        assertEquals(2, outputs.writes.size());
+        assertArrayEquals(new int[]{0x1, 0x1}, outputs.writes.get(0));
+        assertArrayEquals(new int[]{0x1, 0x0}, outputs.writes.get(1));
+    }
+
+    @Test
+    public void changesOfDifferentOutputsShareOneWrite() throws Exception {
+        HardwareFuture<Void> first = writer.write(0x1, 0x1);
+        outputs.awaitStarted();
+
+        HardwareFuture<Void> both = writer.write(0x6, 0x6);
+        HardwareFuture<Void> third = writer.write(0x8, 0x8);
+        // Only output 2 of the earlier change is replaced, output 1 is still written for it
+        HardwareFuture<Void> second = writer.write(0x4, 0x0);
+
+        outputs.finish.release(2);
+        first.get(5, TimeUnit.SECONDS);
+        both.get(5, TimeUnit.SECONDS);
+        third.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        assertEquals(2, outputs.writes.size());
+        assertArrayEquals(new int[]{0xE, 0xA}, outputs.writes.get(1));
+    }
+
+    @Test
+    public void failedWriteFailsItsChanges() throws Exception {
+        outputs.failing = true;
+        HardwareFuture<Void> first = writer.write(0x1, 0x1);
+        outputs.awaitStarted();
+        HardwareFuture<Void> second = writer.write(0x2, 0x2);
+        outputs.finish.release();
+        outputs.awaitStarted();
+
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MicronetHardwareException);
+        }
+
+        // The next write still runs
+        outputs.failing = false;
+        outputs.finish.release();
+        assertNull(second.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void uncheckedExceptionFailsItsChanges() throws Exception {
+        outputs.unchecked = new SecurityException("Permission denied: /sdcard/outputs.sh");
+        HardwareFuture<Void> first = writer.write(0x1, 0x1);
+        outputs.awaitStarted();
+        HardwareFuture<Void> second = writer.write(0x2, 0x2);
+        outputs.finish.release();
+        outputs.awaitStarted();
+
+        try {
+            first.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(outputs.unchecked, e.getCause());
+        }
+
+        // The writer isn't stuck, queued and later changes are still written
+        outputs.unchecked = null;
+        outputs.finish.release(2);
+        assertNull(second.get(5, TimeUnit.SECONDS));
+        assertNull(writer.write(0x4, 0x4).get(5, TimeUnit.SECONDS));
+        assertEquals(3, outputs.writes.size());
+    }
+
+    @Test
+    public void writerIsIdleAfterLastWrite() throws Exception {
+        outputs.finish.release(2);
+        writer.write(0x1, 0x1).get(5, TimeUnit.SECONDS);
+
+        // A new change after the writer went idle starts a new write
+        writer.write(0x1, 0x0).get(5, TimeUnit.SECONDS);
+        assertEquals(2, outputs.writes.size());
+    }
+}
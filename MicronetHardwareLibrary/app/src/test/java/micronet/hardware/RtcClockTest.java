@@ -0,0 +1,228 @@
+package micronet.hardware;
+
+import org.junit.Test;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+import static org.junit.Assert.*;
+
+public class RtcClockTest {
+
+    private static final long SECOND = 1000000000L;
+    private static final long DEFAULT_INTERVAL_NANOS = RtcClock.DEFAULT_RESYNC_INTERVAL_MILLIS * 1000000L;
+
+    /**
+     * Device clocks moved by the test. nanoTime stops while "asleep", like on a device.
+     */
+    private static class FakeClocks implements RtcClock.Clocks {
+        long realtime = 1000 * SECOND;
+        long nanoTime = 5 * SECOND;
+
+        void advance(long nanos) {
+            realtime += nanos;
+            nanoTime += nanos;
+        }
+
+        void sleep(long nanos) {
+            realtime += nanos;
+        }
+
+        @Override
+        public long elapsedRealtimeNanos() {
+            return realtime;
+        }
+
+        @Override
+        public long nanoTime() {
+            return nanoTime;
+        }
+    }
+
+    /**
+     * An rtc counting reads. Can fail them.
+     */
+    private static class FakeRtc implements RtcClock.Source {
+        long epochMillis = 1472140855000L;
+        int generation;
+        int reads;
+        boolean fail;
+        /** Run after the rtc was read, before the reply comes back. */
+        Runnable duringRead;
+
+        @Override
+        public long readEpochMillis() throws MicronetHardwareException {
+            reads++;
+            if(fail){
+                throw new MicronetHardwareException("Error getting RTC Date Time", -2);
+            }
+            long read = epochMillis;
+            if(duringRead != null){
+                Runnable run = duringRead;
+                duringRead = null;
+                run.run();
+            }
+            return read;
+        }
+
+        @Override
+        public int getGeneration() {
+            return generation;
+        }
+    }
+
+    private final FakeClocks clocks = new FakeClocks();
+    private final FakeRtc rtc = new FakeRtc();
+    private final RtcClock clock = new RtcClock(rtc, clocks);
+
+    @Test
+    public void readsAreServedFromTheAnchor() throws MicronetHardwareException {
+        assertEquals(1472140855000L, clock.currentTimeMillis());
+        assertEquals(1, rtc.reads);
+
+        clocks.advance(1500000000L);
+        assertEquals(1472140856500L, clock.currentTimeMillis());
+        assertEquals(1472140856500000000L, clock.currentTimeNanos());
+        clocks.advance(1);
+        assertEquals(1472140856500000001L, clock.currentTimeNanos());
+        assertEquals(1, rtc.reads);
+        assertEquals(1, clock.getSyncs());
+    }
+
+    @Test
+    public void resyncsAfterTheInterval() throws MicronetHardwareException {
+        clock.setResyncInterval(10000);
+        assertEquals(10000, clock.getResyncInterval());
+        clock.currentTimeMillis();
+
+        clocks.advance(9 * SECOND);
+        rtc.epochMillis += 9000 + 20;
+        assertEquals(1472140864000L, clock.currentTimeMillis());
+        assertEquals(1, rtc.reads);
+
+        // The rtc ran 20ms ahead, the next read takes its time
+        clocks.advance(SECOND);
+        rtc.epochMillis += 1000;
+        assertEquals(1472140865020L, clock.currentTimeMillis());
+        assertEquals(2, rtc.reads);
+    }
+
+    @Test
+    public void resyncsAfterSleep() throws MicronetHardwareException {
+        clock.currentTimeMillis();
+
+        // Sleep is counted until the rtc is read again
+        clocks.sleep(SECOND / 2);
+        assertEquals(1472140855500L, clock.currentTimeMillis());
+        assertEquals(1, rtc.reads);
+
+        clocks.sleep(SECOND);
+        rtc.epochMillis += 1500;
+        assertEquals(1472140856500L, clock.currentTimeMillis());
+        assertEquals(2, rtc.reads);
+
+        // Measured from the new anchor
+        clocks.advance(SECOND);
+        clock.currentTimeMillis();
+        assertEquals(2, rtc.reads);
+    }
+
+    @Test
+    public void resyncsAfterReconnect() throws MicronetHardwareException {
+        clock.currentTimeMillis();
+        rtc.generation++;
+        rtc.epochMillis += 60000;
+        assertEquals(1472140915000L, clock.currentTimeMillis());
+        assertEquals(2, rtc.reads);
+    }
+
+    @Test
+    public void failedResyncKeepsTheAnchor() throws MicronetHardwareException {
+        clock.setResyncInterval(1000);
+        clock.currentTimeMillis();
+
+        rtc.fail = true;
+        clocks.advance(2 * SECOND);
+        assertEquals(1472140857000L, clock.currentTimeMillis());
+        assertEquals(2, rtc.reads);
+        assertEquals(1, clock.getFailedSyncs());
+
+        // Not read again for a second
+        clocks.advance(SECOND / 2);
+        assertEquals(1472140857500L, clock.currentTimeMillis());
+        assertEquals(2, rtc.reads);
+
+        rtc.fail = false;
+        rtc.epochMillis += 3000;
+        clocks.advance(SECOND / 2);
+        assertEquals(1472140858000L, clock.currentTimeMillis());
+        assertEquals(3, rtc.reads);
+        assertEquals(2, clock.getSyncs());
+    }
+
+    @Test
+    public void failsWithoutAnAnchor() {
+        rtc.fail = true;
+        try {
+            clock.currentTimeMillis();
+            fail();
+        } catch (MicronetHardwareException e) {
+            assertEquals(-2, e.getErrorCode());
+        }
+
+        // Read again, not after a second, since there is no time to give
+        try {
+            clock.currentTimeMillis();
+            fail();
+        } catch (MicronetHardwareException e) {
+            assertEquals(2, rtc.reads);
+        }
+    }
+
+    @Test
+    public void invalidateReadsAgain() throws MicronetHardwareException {
+        clock.currentTimeMillis();
+        clock.invalidate();
+        rtc.epochMillis = 946684800000L;
+        assertEquals(946684800000L, clock.currentTimeMillis());
+        assertEquals(2, rtc.reads);
+    }
+
+    @Test
+    public void setDuringResyncIsNotLost() throws MicronetHardwareException {
+        clock.currentTimeMillis();
+
+        // The rtc is set after the resync read it, as when the set reaches the MCU second
+        rtc.duringRead = new Runnable() {
+            @Override
+            public void run() {
+                rtc.epochMillis = 946684800000L;
+                clock.invalidate();
+            }
+        };
+        clocks.advance(DEFAULT_INTERVAL_NANOS);
+        assertEquals(946684800000L, clock.currentTimeMillis());
+        assertEquals(3, rtc.reads);
+
+        clocks.advance(SECOND);
+        assertEquals(946684801000L, clock.currentTimeMillis());
+        assertEquals(3, rtc.reads);
+    }
+
+    @Test
+    public void explicitResyncThrows() throws MicronetHardwareException {
+        clock.currentTimeMillis();
+        rtc.fail = true;
+        try {
+            clock.resync();
+            fail();
+        } catch (MicronetHardwareException e) {
+            assertEquals(1, clock.getFailedSyncs());
+        }
+        assertEquals(1472140855000L, clock.currentTimeMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void intervalMustBePositive() {
+        clock.setResyncInterval(0);
+    }
+}
@@ -0,0 +1,297 @@
+package micronet.hardware;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import micronet.hardware.exception.MicronetHardwareException;
+
+import static org.junit.Assert.*;
+
+public class SingleFlightTest {
+
+    /**
+     * Counts calls and holds them until released, so other callers can join.
+     */
+    private static class GatedCall implements SingleFlight.Call<String> {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        volatile MicronetHardwareException error;
+        volatile Error fatal;
+
+        @Override
+        public String call() throws MicronetHardwareException {
+            int call = calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(error != null){
+                throw error;
+            }
+            if(fatal != null){
+                throw fatal;
+            }
+            return "result " + call;
+        }
+    }
+
+    private final SingleFlight singleFlight = new SingleFlight();
+
+    @Test
+    public void concurrentCallsShareOneFlight() throws Exception {
+        final GatedCall call = new GatedCall();
+        final Object[] results = run(call, 8);
+
+        assertEquals(1, call.calls.get());
+        assertEquals(7, singleFlight.getJoinedCount());
+        for(Object result : results){
+            assertEquals("result 1", result);
+        }
+    }
+
+    @Test
+    public void errorGoesToEveryCaller() throws Exception {
+        GatedCall call = new GatedCall();
+        call.error = new MicronetHardwareException("Error getting MCU Version", -3);
+        Object[] results = run(call, 4);
+
+        assertEquals(1, call.calls.get());
+        for(Object result : results){
+            assertTrue(result instanceof MicronetHardwareException);
+            assertEquals(-3, ((MicronetHardwareException) result).getErrorCode());
+            assertEquals("Error getting MCU Version", ((MicronetHardwareException) result).getMessage());
+        }
+    }
+
+    @Test
+    public void errorsGoToEveryCaller() throws Exception {
+        GatedCall call = new GatedCall();
+        call.fatal = new UnsatisfiedLinkError("no mctl in java.library.path");
+        Object[] results = run(call, 4);
+
+        assertEquals(1, call.calls.get());
+        assertEquals(3, singleFlight.getJoinedCount());
+        for(Object result : results){
+            assertSame(call.fatal, result);
+        }
+    }
+
+    @Test
+    public void slotCallersShareOneFlight() throws Exception {
+        final SingleFlight.Slot slot = new SingleFlight.Slot(4);
+        final GatedCall gate = new GatedCall();
+        final SingleFlight.ArrayCall call = new SingleFlight.ArrayCall() {
+            @Override
+            public void call(int[] values, int timeoutMillis) {
+                int call;
+                try {
+                    call = Integer.parseInt(gate.call().substring("result ".length()));
+                } catch (MicronetHardwareException e) {
+                    throw new AssertionError(e);
+                }
+                for(int i = 0; i < values.length; i++){
+                    values[i] = call * 10 + i;
+                }
+            }
+        };
+
+        final int[][] results = new int[4][4];
+        Thread[] threads = new Thread[results.length];
+        for(int i = 0; i < threads.length; i++){
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    singleFlight.execute(slot, results[index], 500, call);
+                }
+            });
+            threads[i].start();
+            if(i == 0){
+                assertTrue(gate.started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        for(int i = 0; i < 500 && singleFlight.getJoinedCount() < threads.length - 1; i++){
+            Thread.sleep(10);
+        }
+        gate.release.countDown();
+        for(Thread thread : threads){
+            thread.join(5000);
+        }
+
+        assertEquals(1, gate.calls.get());
+        for(int[] result : results){
+            assertArrayEquals(new int[]{10, 11, 12, 13}, result);
+        }
+
+        // Done flights aren't joined
+        assertArrayEquals(new int[]{20, 21, 22, 23}, run(slot, call));
+    }
+
+    @Test
+    public void slotCallerWithOtherTimeoutSendsItsOwn() throws Exception {
+        final SingleFlight.Slot slot = new SingleFlight.Slot(1);
+        final GatedCall gate = new GatedCall();
+        final AtomicInteger calls = new AtomicInteger();
+        final SingleFlight.IntCall call = new SingleFlight.IntCall() {
+            @Override
+            public int call(int argument, int timeoutMillis) {
+                if(calls.incrementAndGet() == 1){
+                    try {
+                        gate.call();
+                    } catch (MicronetHardwareException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+                return timeoutMillis;
+            }
+        };
+
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                singleFlight.execute(slot, 0, 500, call);
+            }
+        });
+        first.start();
+        assertTrue(gate.started.await(5, TimeUnit.SECONDS));
+        assertEquals(100, singleFlight.execute(slot, 0, 100, call));
+        gate.release.countDown();
+        first.join(5000);
+        assertEquals(2, calls.get());
+        assertEquals(0, singleFlight.getJoinedCount());
+    }
+
+    @Test
+    public void slotFailureGoesToEveryCaller() throws Exception {
+        final SingleFlight.Slot slot = new SingleFlight.Slot(1);
+        final GatedCall gate = new GatedCall();
+        gate.fatal = new UnsatisfiedLinkError("no mctl in java.library.path");
+        final SingleFlight.IntCall call = new SingleFlight.IntCall() {
+            @Override
+            public int call(int argument, int timeoutMillis) {
+                try {
+                    gate.call();
+                } catch (MicronetHardwareException e) {
+                    throw new AssertionError(e);
+                }
+                return 0;
+            }
+        };
+
+        final Object[] results = new Object[3];
+        Thread[] threads = new Thread[results.length];
+        for(int i = 0; i < threads.length; i++){
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = singleFlight.execute(slot, 0, 500, call);
+                    } catch (Error e) {
+                        results[index] = e;
+                    }
+                }
+            });
+            threads[i].start();
+            if(i == 0){
+                assertTrue(gate.started.await(5, TimeUnit.SECONDS));
+            }
+        }
+        for(int i = 0; i < 500 && singleFlight.getJoinedCount() < threads.length - 1; i++){
+            Thread.sleep(10);
+        }
+        gate.release.countDown();
+        for(Thread thread : threads){
+            thread.join(5000);
+        }
+
+        assertEquals(1, gate.calls.get());
+        for(Object result : results){
+            assertSame(gate.fatal, result);
+        }
+    }
+
+    @Test
+    public void laterCallsSendAgain() throws Exception {
+        SingleFlight.Call<Integer> call = new SingleFlight.Call<Integer>() {
+            int calls;
+
+            @Override
+            public Integer call() {
+                return ++calls;
+            }
+        };
+        long key = SingleFlight.key(0x09, 0, 500);
+        assertEquals(1, (int) singleFlight.execute(key, call));
+        assertEquals(2, (int) singleFlight.execute(key, call));
+        assertEquals(0, singleFlight.getJoinedCount());
+    }
+
+    @Test
+    public void keysSeparateRequestsArgumentsAndTimeouts() {
+        long key = SingleFlight.key(0x04, 8, 500);
+        assertNotEquals(key, SingleFlight.key(0x05, 8, 500));
+        assertNotEquals(key, SingleFlight.key(0x04, 9, 500));
+        assertNotEquals(key, SingleFlight.key(0x04, 8, 100));
+        assertNotEquals(SingleFlight.key(0x12, 512, 500), SingleFlight.key(0x12, 0, 500));
+    }
+
+    @Test
+    public void disabledCallsAlwaysRun() throws Exception {
+        singleFlight.setEnabled(false);
+        GatedCall call = new GatedCall();
+        // Released up front, the calls must not wait for each other
+        call.release.countDown();
+        run(call, 4);
+        assertEquals(4, call.calls.get());
+        assertEquals(0, singleFlight.getJoinedCount());
+    }
+
+    private int[] run(SingleFlight.Slot slot, SingleFlight.ArrayCall call) {
+        int[] values = new int[4];
+        singleFlight.execute(slot, values, 500, call);
+        return values;
+    }
+
+    /**
+     * Calls from threads threads with the same key, releases the call once all but the first are waiting.
+     * @return What each thread got, a result or an exception.
+     */
+    private Object[] run(final GatedCall call, int threads) throws InterruptedException {
+        final long key = SingleFlight.key(0x00, 0, 500);
+        final Object[] results = new Object[threads];
+        Thread[] started = new Thread[threads];
+        for(int i = 0; i < threads; i++){
+            final int index = i;
+            started[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = singleFlight.execute(key, call);
+                    } catch (MicronetHardwareException | Error e) {
+                        results[index] = e;
+                    }
+                }
+            });
+            started[i].start();
+            if(i == 0){
+                assertTrue(call.started.await(5, TimeUnit.SECONDS));
+            }
+        }
+
+        for(int i = 0; i < 500 && singleFlight.getJoinedCount() < threads - 1 && call.release.getCount() > 0; i++){
+            Thread.sleep(10);
+        }
+        call.release.countDown();
+        for(Thread thread : started){
+            thread.join(5000);
+        }
+        return results;
+    }
+}
@@ -0,0 +1,141 @@
+package micronet.hardware;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SnapshotPublisherTest {
+
+    /**
+     * Counts reads, every snapshot has the read count as power up reason. Reads can be held until released.
+     */
+    private static class CountingReader implements SnapshotPublisher.Reader {
+        final AtomicInteger reads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile CountDownLatch release;
+
+        @Override
+        public HardwareSnapshot read() {
+            long timestamp = System.nanoTime();
+            int read = reads.incrementAndGet();
+            started.countDown();
+            CountDownLatch latch = release;
+            if(latch != null){
+                try {
+                    latch.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return new HardwareSnapshot(timestamp, new int[12], new int[8], read);
+        }
+    }
+
+    private final CountingReader reader = new CountingReader();
+    private final SnapshotPublisher publisher = new SnapshotPublisher(reader);
+
+    @After
+    public void tearDown() {
+        publisher.stop();
+    }
+
+    @Test
+    public void freshSnapshotIsShared() {
+        assertNull(publisher.getLatest());
+        HardwareSnapshot first = publisher.get(10000);
+        assertSame(first, publisher.get(10000));
+        assertSame(first, publisher.getLatest());
+        assertEquals(1, reader.reads.get());
+    }
+
+    @Test
+    public void staleSnapshotIsRefreshed() throws Exception {
+        HardwareSnapshot first = publisher.get(10000);
+        Thread.sleep(5);
+        HardwareSnapshot second = publisher.get(1);
+        assertNotSame(first, second);
+        assertEquals(2, second.getPowerUpIgnitionState());
+        assertTrue(second.getTimestampNanos() > first.getTimestampNanos());
+
+        // Age 0 always reads
+        publisher.get(0);
+        assertEquals(3, reader.reads.get());
+    }
+
+    @Test
+    public void concurrentReadersWaitForOneRefresh() throws Exception {
+        reader.release = new CountDownLatch(1);
+        final HardwareSnapshot[] results = new HardwareSnapshot[8];
+        Thread[] threads = new Thread[results.length];
+        for(int i = 0; i < threads.length; i++){
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    results[index] = publisher.get(10000);
+                }
+            });
+            threads[i].start();
+        }
+
+        assertTrue(reader.started.await(5, TimeUnit.SECONDS));
+        // Let the other readers queue up behind the refresh
+        Thread.sleep(50);
+        reader.release.countDown();
+        for(Thread thread : threads){
+            thread.join(5000);
+        }
+
+        assertEquals(1, reader.reads.get());
+        for(HardwareSnapshot result : results){
+            assertSame(results[0], result);
+        }
+    }
+
+    @Test
+    public void backgroundRefreshKeepsSnapshotFresh() throws Exception {
+        publisher.start(5);
+        for(int i = 0; i < 500 && reader.reads.get() < 3; i++){
+            Thread.sleep(10);
+        }
+        assertTrue(reader.reads.get() >= 3);
+
+        publisher.stop();
+        int reads = reader.reads.get();
+        HardwareSnapshot latest = publisher.getLatest();
+        assertNotNull(latest);
+        Thread.sleep(50);
+        // No refresh after stop, the snapshot stays
+        assertTrue(reader.reads.get() <= reads + 1);
+        assertNotNull(publisher.getLatest());
+    }
+
+    @Test
+    public void snapshotValuesAreCopies() {
+        int[] analog = new int[12];
+        analog[MicronetHardware.kADC_POWER_IN] = 12000;
+        int[] inputs = new int[8];
+        inputs[3] = 1;
+        HardwareSnapshot snapshot = new HardwareSnapshot(System.nanoTime(), analog, inputs, 2);
+
+        assertEquals(12000, snapshot.getAnalogInput(MicronetHardware.kADC_POWER_IN));
+        assertEquals(-1, snapshot.getAnalogInput(12));
+        assertEquals(1, snapshot.getInputState(3));
+        assertEquals(-1, snapshot.getInputState(-1));
+
+        snapshot.getAllAnalogInput()[MicronetHardware.kADC_POWER_IN] = 0;
+        snapshot.getAllPinInState()[3] = 0;
+        assertEquals(12000, snapshot.getAnalogInput(MicronetHardware.kADC_POWER_IN));
+        assertEquals(1, snapshot.getInputState(3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void periodMustBePositive() {
+        publisher.start(0);
+    }
+}
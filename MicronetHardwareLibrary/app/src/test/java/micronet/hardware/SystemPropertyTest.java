@@ -0,0 +1,91 @@
+package micronet.hardware;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.junit.Assert.*;
+
+public class SystemPropertyTest {
+
+    /**
+     * In-memory property service, like a host stub.
+     */
+    private static class MapAccessor implements SystemProperty.Accessor {
+        final ConcurrentMap<String, String> properties = new ConcurrentHashMap<String, String>();
+        volatile int reads;
+
+        @Override
+        public String get(String key) {
+            reads++;
+            String value = properties.get(key);
+            return value == null ? "" : value;
+        }
+
+        @Override
+        public boolean set(String key, String value) {
+            properties.put(key, value);
+            return true;
+        }
+
+        @Override
+        public boolean waitFor(String key, String value, int timeoutMillis) throws InterruptedException {
+            return SystemProperty.poll(this, key, value, timeoutMillis, 1);
+        }
+    }
+
+    @After
+    public void tearDown() {
+        SystemProperty.setAccessor(null);
+    }
+
+    @Test
+    public void hostFallsBackWithoutPropertyService() {
+        // No property area and no getprop on a host, nothing is set
+        assertEquals("", SystemProperty.get("op.se_dom_ex"));
+    }
+
+    @Test
+    public void accessorReplacesPropertyService() throws InterruptedException {
+        MapAccessor accessor = new MapAccessor();
+        SystemProperty.setAccessor(accessor);
+
+        assertTrue(SystemProperty.set("op.se_dom_ex", "/mnt/shell/emulated/0/outputs.sh"));
+        assertEquals("/mnt/shell/emulated/0/outputs.sh", SystemProperty.get("op.se_dom_ex"));
+        assertFalse(SystemProperty.waitFor("op.se_dom_ex", "0", 20));
+    }
+
+    @Test
+    public void pollReturnsOnceValueIsSet() throws InterruptedException {
+        final MapAccessor accessor = new MapAccessor();
+        accessor.set("op.se_dom_ex", "/mnt/shell/emulated/0/outputs.sh");
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(30);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                accessor.set("op.se_dom_ex", "0");
+            }
+        }).start();
+
+        long start = System.nanoTime();
+        assertTrue(SystemProperty.poll(accessor, "op.se_dom_ex", "0", 2000, 1));
+        assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    @Test
+    public void pollTimesOut() throws InterruptedException {
+        MapAccessor accessor = new MapAccessor();
+
+        long start = System.nanoTime();
+        assertFalse(SystemProperty.poll(accessor, "op.se_dom_ex", "0", 30, 5));
+        assertTrue(System.nanoTime() - start >= 25000000L);
+        assertTrue(accessor.reads > 1);
+    }
+}
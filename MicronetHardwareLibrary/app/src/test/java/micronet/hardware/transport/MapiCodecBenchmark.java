@@ -0,0 +1,78 @@
+package micronet.hardware.transport;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of framing requests and decoding replies on the JVM, without any transport. Run with the other
+ * benchmarks through "gradlew jmh", or alone with -Pjmh="MapiCodecBenchmark".
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapiCodecBenchmark {
+
+    /** Marks every request answered with a full reply, leaving the slots as they are. */
+    private static final MapiTransport ANSWERED = new MapiTransport() {
+        @Override
+        public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+            for(int i = 0; i < count; i++){
+                results[i] = 8;
+            }
+            return SUCCESS;
+        }
+
+        @Override
+        public int getGeneration() {
+            return 0;
+        }
+    };
+
+    private final MapiCodec codec = new MapiCodec();
+    private final int[] voltages = new int[12];
+    private final int[] fields = new int[7];
+    private int rgb;
+
+    @Benchmark
+    public int[] allAdcChannels() {
+        codec.clear();
+        for(int i = 0; i < voltages.length; i++){
+            codec.addGetAdcVoltage(i);
+        }
+        codec.transfer(ANSWERED, 500);
+        for(int i = 0; i < voltages.length; i++){
+            voltages[i] = codec.getInt(i, 0);
+        }
+        return voltages;
+    }
+
+    @Benchmark
+    public int setLedStatus() {
+        rgb = (rgb + 1) & 0xFFFFFF;
+        codec.clear();
+        codec.addSetLedStatus(1, 100, rgb);
+        return codec.transfer(ANSWERED, 500);
+    }
+
+    @Benchmark
+    public int[] rtcDateTime() {
+        codec.clear();
+        int slot = codec.addGetRtcDateTime();
+        codec.transfer(ANSWERED, 500);
+        codec.getRtcDateTime(slot, fields);
+        return fields;
+    }
+}
@@ -0,0 +1,200 @@
+package micronet.hardware.transport;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips and seeded fuzzing of the codec, the loopback MCU and the exchange text form.
+ */
+public class MapiCodecTest {
+
+    private static final long SEED = 0x4d415049L;
+    private static final int ROUNDS = 2000;
+
+    /** Answers every read with its own parameters, so encoders can be checked with the decoders. */
+    private static class EchoTransport implements MapiTransport {
+        @Override
+        public int transfer(ByteBuffer slots, int count, int[] results, int timeoutMillis) {
+            byte[] request = new byte[MAX_PACKET_SIZE];
+            for(int i = 0; i < count; i++){
+                int length = MapiCodec.getRequest(slots, i, request);
+                results[i] = length - 3;
+                MapiCodec.putResponse(slots, i, Arrays.copyOfRange(request, 3, length), length - 3);
+            }
+            return SUCCESS;
+        }
+
+        @Override
+        public int getGeneration() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void framesRequestsLikeApiConstants() {
+        MapiCodec codec = new MapiCodec();
+        RecordingTransport recording = new RecordingTransport(new LoopbackTransport());
+        codec.addSetLedStatus(2, 100, 0xFF8000);
+        codec.addGetGpioState(512);
+        codec.addSetPowerOnThreshold(10, 500, 7000);
+        codec.addSetRtcDateTime("2016-08-25 16:00:55.11");
+        codec.transfer(recording, 500);
+
+        assertEquals("write 0200060264ff8000 0", recording.getExchanges().get(0).toString());
+        assertEquals("read 0201120200 1 00", recording.getExchanges().get(1).toString());
+        assertEquals("write 020008" + "0a00" + "f401" + "581b" + " 0", recording.getExchanges().get(2).toString());
+        assertEquals("write 02000c" + "1155001600250816" + " 0", recording.getExchanges().get(3).toString());
+    }
+
+    @Test
+    public void rtcDateTimeRoundTrips() {
+        Random random = new Random(SEED);
+        MapiCodec codec = new MapiCodec();
+        EchoTransport echo = new EchoTransport();
+        int[] fields = new int[7];
+
+        for(int i = 0; i < ROUNDS; i++){
+            int[] expected = {2000 + random.nextInt(100), 1 + random.nextInt(12), 1 + random.nextInt(31),
+                    random.nextInt(24), random.nextInt(60), random.nextInt(60), random.nextInt(100)};
+            String dateTime = String.format("%04d-%02d-%02d %02d:%02d:%02d.%02d", expected[0], expected[1],
+                    expected[2], expected[3], expected[4], expected[5], expected[6]);
+
+            // Echo the set request's registers back as a date time reply
+            codec.clear();
+            int slot = codec.addSetRtcDateTime(dateTime);
+            assertEquals(MapiTransport.SUCCESS, codec.transfer(echo, 500));
+            codec.getRtcDateTime(slot, fields);
+            assertArrayEquals(dateTime, expected, fields);
+
+            // Both decodings agree
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+            calendar.clear();
+            calendar.set(expected[0], expected[1] - 1, expected[2], expected[3], expected[4], expected[5]);
+            assertEquals(dateTime, calendar.getTimeInMillis() + expected[6] * 10, codec.getRtcEpochMillis(slot));
+        }
+    }
+
+    @Test
+    public void loopbackReadsBackRandomWrites() {
+        Random random = new Random(SEED);
+        LoopbackTransport loopback = new LoopbackTransport();
+        MapiCodec codec = new MapiCodec();
+
+        for(int i = 0; i < ROUNDS; i++){
+            int led = random.nextInt(LoopbackTransport.LED_COUNT);
+            int brightness = random.nextInt(256);
+            int rgb = random.nextInt(0x1000000);
+            int gpio = random.nextInt(0x10000);
+            int gpioValue = random.nextInt(2);
+            int channel = random.nextInt(LoopbackTransport.ADC_CHANNEL_COUNT);
+            int millivolts = random.nextInt(Integer.MAX_VALUE);
+            loopback.setAdc(channel, millivolts);
+
+            codec.clear();
+            codec.addSetLedStatus(led, brightness, rgb);
+            codec.addSetGpioState(gpio, gpioValue);
+            int ledSlot = codec.addGetLedStatus(led);
+            int gpioSlot = codec.addGetGpioState(gpio);
+            int adcSlot = codec.addGetAdcVoltage(channel);
+            assertEquals(MapiTransport.SUCCESS, codec.transfer(loopback, 500));
+
+            assertEquals(brightness, codec.getUnsignedByte(ledSlot, 0));
+            assertEquals(rgb, codec.getUnsignedByte(ledSlot, 1) << 16 | codec.getUnsignedByte(ledSlot, 2) << 8
+                    | codec.getUnsignedByte(ledSlot, 3));
+            assertEquals(gpioValue, codec.getUnsignedByte(gpioSlot, 0));
+            assertEquals(millivolts, codec.getInt(adcSlot, 0));
+        }
+    }
+
+    @Test
+    public void decodersStayWithinTheReply() {
+        MapiCodec codec = new MapiCodec();
+        int slot = codec.addGetPowerOnReason();
+        codec.transfer(new LoopbackTransport(), 500);
+
+        assertEquals(1, codec.getResult(slot));
+        assertEquals(0, codec.getUnsignedByte(slot, 1));
+        assertEquals(0, codec.getUnsignedShort(slot, 0));
+        assertEquals(0, codec.getInt(slot, 0));
+        assertEquals(0, codec.getInt(slot, -1));
+
+        codec.clear();
+        slot = codec.addGetFpgaVersion();
+        codec.fail(MapiTransport.CONNECTION_FAILURE);
+        assertEquals(MapiTransport.CONNECTION_FAILURE, codec.getResult(slot));
+        assertEquals(0, codec.getInt(slot, 0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void batchIsBounded() {
+        MapiCodec codec = new MapiCodec();
+        for(int i = 0; i <= MapiTransport.MAX_REQUESTS; i++){
+            codec.addGetMcuVersion();
+        }
+    }
+
+    @Test
+    public void loopbackSurvivesGarbageSlots() {
+        Random random = new Random(SEED);
+        LoopbackTransport loopback = new LoopbackTransport();
+        ByteBuffer slots = ByteBuffer.allocate(MapiTransport.MAX_REQUESTS * MapiTransport.SLOT_SIZE);
+        int[] results = new int[MapiTransport.MAX_REQUESTS];
+
+        for(int i = 0; i < ROUNDS; i++){
+            random.nextBytes(slots.array());
+            int count = 1 + random.nextInt(MapiTransport.MAX_REQUESTS);
+            int first = loopback.transfer(slots, count, results, 500);
+
+            for(int j = 0; j < count; j++){
+                assertTrue(results[j] >= MapiTransport.INVALID_RESP_MSG_TYPE);
+                assertTrue(results[j] < MapiTransport.MAX_PACKET_SIZE);
+            }
+            assertTrue(first <= MapiTransport.SUCCESS);
+        }
+    }
+
+    @Test
+    public void exchangesRoundTripAsText() {
+        Random random = new Random(SEED);
+
+        for(int i = 0; i < ROUNDS; i++){
+            boolean read = random.nextBoolean();
+            byte[] request = new byte[3 + random.nextInt(MapiTransport.MAX_PACKET_SIZE - 2)];
+            byte[] response = new byte[random.nextInt(MapiTransport.MAX_PACKET_SIZE)];
+            random.nextBytes(request);
+            random.nextBytes(response);
+            int result = read ? response.length : -random.nextInt(5);
+
+            MapiExchange exchange = new MapiExchange(read, request, request.length, result, response);
+            MapiExchange parsed = MapiExchange.parse(exchange.toString());
+            assertEquals(exchange.toString(), parsed.toString());
+            assertArrayEquals(exchange.getRequest(), parsed.getRequest());
+            assertArrayEquals(exchange.getResponse(), parsed.getResponse());
+        }
+    }
+
+    @Test
+    public void exchangeParserRejectsGarbage() {
+        Random random = new Random(SEED);
+        String alphabet = "readwit 0123456789abcdefxyz-";
+
+        for(int i = 0; i < ROUNDS; i++){
+            StringBuilder line = new StringBuilder();
+            for(int j = random.nextInt(40); j >= 0; j--){
+                line.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+            try {
+                MapiExchange.parse(line.toString());
+            } catch (IllegalArgumentException e) {
+                // Expected for most lines, anything else is a parser bug
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Host tests for the MAPI transport in api.cpp and the C commands built on it,
+ * run against fake_iodriver bound to the abstract UD_FILENAME address.
+ */
+#include <stdint.h>
+#include <stddef.h>
+#include <unistd.h>
+#include <time.h>
+#include <string.h>
+
+#include "fake_iodriver.h"
+#include "iosocket.h"
+#include "api.h"
+#include "mapi_commands.h"
+#include "test_util.h"
+
+static fake_iodriver_t * drv;
+
+static long elapsed_ms(const struct timespec * start)
+{
+	struct timespec now;
+
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (now.tv_sec - start->tv_sec) * 1000 + (now.tv_nsec - start->tv_nsec) / 1000000;
+}
+
+static void bulk_adc_read_returns_every_channel()
+{
+	uint32_t voltages[12] = {0};
+	int results[12];
+	unsigned int requests = fake_iodriver_requests(drv);
+	int result;
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	result = get_adc_or_gpi_voltages(&fd, voltages, results, 12);
+	iosocket_release(&fd);
+
+	CHECK(result == SUCCESS);
+	CHECK(fake_iodriver_requests(drv) - requests == 12);
+	for(uint8_t i = 0; i < 12; i++)
+	{
+		CHECK(results[i] == sizeof(uint32_t));
+		CHECK(voltages[i] == fake_iodriver_adc_value(i));
+	}
+}
+
+static void bulk_adc_read_matches_single_reads()
+{
+	uint32_t voltages[12] = {0};
+	int results[12];
+	uint32_t voltage = 0;
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) == SUCCESS);
+	for(uint8_t i = 0; i < 12; i++)
+	{
+		CHECK(get_adc_or_gpi_voltage(&fd, i, &voltage, sizeof(voltage)) >= 0);
+		CHECK(voltage == voltages[i]);
+	}
+	iosocket_release(&fd);
+}
+
+static void bulk_adc_read_fails_without_daemon()
+{
+	uint32_t voltages[12] = {0};
+	int results[12];
+
+	fake_iodriver_stop(drv);
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) < 0);
+	iosocket_release(&fd);
+	for(uint8_t i = 0; i < 12; i++)
+	{
+		CHECK(results[i] < 0);
+	}
+
+	drv = fake_iodriver_start();
+}
+
+static void pipeline_keeps_more_requests_than_depth()
+{
+	const size_t count = 5 * MAPI_PIPELINE_DEPTH;
+	mapi_request_t requests[count];
+	uint32_t voltages[count];
+	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, 0};
+
+	for(size_t i = 0; i < count; i++)
+	{
+		req[3] = i % ADC_CHANNEL_COUNT;
+		mapi_request_init(&requests[i], req, sizeof(req), (uint8_t *)&voltages[i], sizeof(uint32_t));
+	}
+
+	fake_iodriver_set_latency_us(drv, 2000);
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(mapi_pipeline(&fd, requests, count) == SUCCESS);
+	iosocket_release(&fd);
+	fake_iodriver_set_latency_us(drv, 0);
+
+	for(size_t i = 0; i < count; i++)
+	{
+		CHECK(requests[i].result == sizeof(uint32_t));
+		CHECK(voltages[i] == fake_iodriver_adc_value(i % ADC_CHANNEL_COUNT));
+	}
+}
+
+static void pipeline_completes_mixed_commands()
+{
+	uint8_t mcu_req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_MCU_FW_VERSION };
+	uint8_t fpga_req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_FPGA_VERSION };
+	uint8_t adc_req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, 8};
+	uint8_t mcu_version[4] = {0};
+	uint32_t fpga_version = 0;
+	uint32_t voltage = 0;
+	mapi_request_t requests[3];
+
+	mapi_request_init(&requests[0], mcu_req, sizeof(mcu_req), mcu_version, sizeof(mcu_version));
+	mapi_request_init(&requests[1], adc_req, sizeof(adc_req), (uint8_t *)&voltage, sizeof(voltage));
+	mapi_request_init(&requests[2], fpga_req, sizeof(fpga_req), (uint8_t *)&fpga_version, sizeof(fpga_version));
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(mapi_pipeline(&fd, requests, 3) == SUCCESS);
+	iosocket_release(&fd);
+
+	CHECK(mcu_version[0] == 0xA);
+	CHECK(voltage == fake_iodriver_adc_value(8));
+	CHECK(fpga_version == 0x41000002);
+}
+
+static void read_gives_up_at_timeout()
+{
+	uint32_t voltage = 0;
+	struct timespec start;
+
+	fake_iodriver_set_latency_us(drv, 300000);
+
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	int fd = iosocket_acquire(50);
+	CHECK(get_adc_or_gpi_voltage(&fd, 1, &voltage, sizeof(voltage)) < 0);
+	iosocket_release(&fd);
+	CHECK(elapsed_ms(&start) < 250);
+
+	// A longer timeout than the socket default is honored as well
+	fd = iosocket_acquire(1000);
+	CHECK(get_adc_or_gpi_voltage(&fd, 1, &voltage, sizeof(voltage)) >= 0);
+	iosocket_release(&fd);
+	CHECK(voltage == fake_iodriver_adc_value(1));
+
+	fake_iodriver_set_latency_us(drv, 0);
+}
+
+static void bulk_read_has_one_overall_deadline()
+{
+	uint32_t voltages[12] = {0};
+	int results[12];
+	struct timespec start;
+
+	// Each reply arrives in time on its own, but the second pipeline window
+	// is only answered after 2 * 200ms
+	fake_iodriver_set_latency_us(drv, 200000);
+
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	int fd = iosocket_acquire(300);
+	CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) < 0);
+	iosocket_release(&fd);
+	CHECK(elapsed_ms(&start) < 380);
+	for(uint8_t i = 0; i < MAPI_PIPELINE_DEPTH; i++)
+	{
+		CHECK(results[i] == sizeof(uint32_t));
+	}
+	CHECK(results[11] < 0);
+
+	// Let the late replies land, the next acquire drains them
+	usleep(300000);
+
+	fd = iosocket_acquire(600);
+	CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) == SUCCESS);
+	iosocket_release(&fd);
+
+	fake_iodriver_set_latency_us(drv, 0);
+}
+
+static void put_slot(uint8_t * slots, int slot, const uint8_t * req, uint8_t len)
+{
+	slots[slot * MAPI_SLOT_SIZE] = len;
+	memcpy(&slots[slot * MAPI_SLOT_SIZE + 1], req, len);
+}
+
+static void transfer_keeps_writes_before_later_reads()
+{
+	uint8_t slots[4 * MAPI_SLOT_SIZE] = {0};
+	uint8_t set_led[] = { MCTRL_MAPI, MAPI_WRITE_RQ, MAPI_SET_LED_STATUS, 1, 200, 0x11, 0x22, 0x33 };
+	uint8_t get_led[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_LED_STATUS, 1 };
+	uint8_t get_adc[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, 5 };
+	uint8_t get_reason[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_POWER_ON_REASON };
+	int results[4];
+	uint32_t voltage;
+
+	put_slot(slots, 0, set_led, sizeof(set_led));
+	put_slot(slots, 1, get_led, sizeof(get_led));
+	put_slot(slots, 2, get_adc, sizeof(get_adc));
+	put_slot(slots, 3, get_reason, sizeof(get_reason));
+	fake_iodriver_set_power_on_reason(drv, 0x4);
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(mapi_transfer(&fd, slots, 4, results) == SUCCESS);
+	iosocket_release(&fd);
+
+	CHECK(results[0] == SUCCESS);
+	CHECK(results[1] == 4);
+	CHECK(memcmp(&slots[MAPI_SLOT_SIZE + 1], &set_led[4], 4) == 0);
+	CHECK(results[2] == sizeof(uint32_t));
+	memcpy(&voltage, &slots[2 * MAPI_SLOT_SIZE + 1], sizeof(voltage));
+	CHECK(voltage == fake_iodriver_adc_value(5));
+	CHECK(results[3] == 1);
+	CHECK(slots[3 * MAPI_SLOT_SIZE + 1] == 0x4);
+
+	fake_iodriver_set_power_on_reason(drv, 0);
+}
+
+static void transfer_stops_at_malformed_request()
+{
+	uint8_t slots[3 * MAPI_SLOT_SIZE] = {0};
+	uint8_t get_adc[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, 0 };
+	int results[3];
+	unsigned int requests = fake_iodriver_requests(drv);
+
+	put_slot(slots, 0, get_adc, sizeof(get_adc));
+	put_slot(slots, 1, get_adc, 2);
+	put_slot(slots, 2, get_adc, sizeof(get_adc));
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(mapi_transfer(&fd, slots, 3, results) == TX_MSG_FAILURE);
+	iosocket_release(&fd);
+
+	CHECK(results[0] == sizeof(uint32_t));
+	CHECK(results[1] == TX_MSG_FAILURE);
+	CHECK(results[2] == TX_MSG_FAILURE);
+	CHECK(fake_iodriver_requests(drv) - requests == 1);
+}
+
+int main()
+{
+	drv = fake_iodriver_start();
+	if(drv == NULL)
+	{
+		return 1;
+	}
+
+	RUN_TEST(bulk_adc_read_returns_every_channel);
+	RUN_TEST(bulk_adc_read_matches_single_reads);
+	RUN_TEST(bulk_adc_read_fails_without_daemon);
+	RUN_TEST(pipeline_keeps_more_requests_than_depth);
+	RUN_TEST(pipeline_completes_mixed_commands);
+	RUN_TEST(read_gives_up_at_timeout);
+	RUN_TEST(bulk_read_has_one_overall_deadline);
+	RUN_TEST(transfer_keeps_writes_before_later_reads);
+	RUN_TEST(transfer_stops_at_malformed_request);
+
+	fake_iodriver_stop(drv);
+	return TEST_RESULT();
+}
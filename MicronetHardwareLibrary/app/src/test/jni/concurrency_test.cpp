@@ -0,0 +1,161 @@
+/*
+ * Multithreaded stress test for the per-thread connections in iosocket.cpp.
+ * Every thread reads its own ADC channel from fake_iodriver and checks that it
+ * only ever sees replies to its own requests.
+ */
+#include <stdint.h>
+#include <stddef.h>
+#include <pthread.h>
+
+#include "fake_iodriver.h"
+#include "iosocket.h"
+#include "api.h"
+#include "mapi_commands.h"
+#include "test_util.h"
+
+#define THREAD_COUNT ADC_CHANNEL_COUNT
+#define ITERATIONS 2000
+
+typedef struct worker_s
+{
+	uint8_t channel;
+	int fd;
+	unsigned int errors;
+	unsigned int crossed;
+}worker_t;
+
+static fake_iodriver_t * drv;
+
+static void * single_read_worker(void * arg)
+{
+	worker_t * worker = (worker_t *)arg;
+	uint32_t voltage;
+
+	for(int n = 0; n < ITERATIONS; n++)
+	{
+		int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+		worker->fd = fd;
+		if(get_adc_or_gpi_voltage(&fd, worker->channel, &voltage, sizeof(voltage)) < 0)
+		{
+			worker->errors++;
+		}
+		else if(voltage != fake_iodriver_adc_value(worker->channel))
+		{
+			worker->crossed++;
+		}
+		iosocket_release(&fd);
+	}
+	return NULL;
+}
+
+static void * pipelined_read_worker(void * arg)
+{
+	worker_t * worker = (worker_t *)arg;
+	mapi_request_t requests[MAPI_PIPELINE_DEPTH];
+	uint32_t voltages[MAPI_PIPELINE_DEPTH];
+	uint8_t req[] = { MCTRL_MAPI, MAPI_READ_RQ, MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE, worker->channel};
+
+	for(int n = 0; n < ITERATIONS / MAPI_PIPELINE_DEPTH; n++)
+	{
+		for(int i = 0; i < MAPI_PIPELINE_DEPTH; i++)
+		{
+			mapi_request_init(&requests[i], req, sizeof(req), (uint8_t *)&voltages[i], sizeof(uint32_t));
+		}
+
+		int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+		if(mapi_pipeline(&fd, requests, MAPI_PIPELINE_DEPTH) < 0)
+		{
+			worker->errors++;
+		}
+		iosocket_release(&fd);
+
+		for(int i = 0; i < MAPI_PIPELINE_DEPTH; i++)
+		{
+			if(requests[i].result >= 0 && voltages[i] != fake_iodriver_adc_value(worker->channel))
+			{
+				worker->crossed++;
+			}
+		}
+	}
+	return NULL;
+}
+
+static void run_workers(void * (*fn)(void *))
+{
+	pthread_t threads[THREAD_COUNT];
+	worker_t workers[THREAD_COUNT] = {};
+
+	for(int i = 0; i < THREAD_COUNT; i++)
+	{
+		workers[i].channel = i;
+		pthread_create(&threads[i], NULL, fn, &workers[i]);
+	}
+	for(int i = 0; i < THREAD_COUNT; i++)
+	{
+		pthread_join(threads[i], NULL);
+	}
+
+	for(int i = 0; i < THREAD_COUNT; i++)
+	{
+		CHECK(workers[i].errors == 0);
+		CHECK(workers[i].crossed == 0);
+	}
+}
+
+static pthread_barrier_t both_acquired;
+
+static void * acquire_worker(void * arg)
+{
+	worker_t * worker = (worker_t *)arg;
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	worker->fd = fd;
+	pthread_barrier_wait(&both_acquired); // keep both threads and sockets alive
+	iosocket_release(&fd);
+	return NULL;
+}
+
+static void threads_get_their_own_socket()
+{
+	pthread_t threads[2];
+	worker_t workers[2] = {};
+
+	pthread_barrier_init(&both_acquired, NULL, 2);
+	pthread_create(&threads[0], NULL, acquire_worker, &workers[0]);
+	pthread_create(&threads[1], NULL, acquire_worker, &workers[1]);
+	pthread_join(threads[0], NULL);
+	pthread_join(threads[1], NULL);
+	pthread_barrier_destroy(&both_acquired);
+
+	CHECK(workers[0].fd >= 0);
+	CHECK(workers[1].fd >= 0);
+	CHECK(workers[0].fd != workers[1].fd);
+}
+
+static void concurrent_single_reads_never_cross()
+{
+	run_workers(single_read_worker);
+}
+
+static void concurrent_pipelines_never_cross()
+{
+	fake_iodriver_set_latency_us(drv, 200);
+	run_workers(pipelined_read_worker);
+	fake_iodriver_set_latency_us(drv, 0);
+}
+
+int main()
+{
+	drv = fake_iodriver_start();
+	if(drv == NULL)
+	{
+		return 1;
+	}
+
+	RUN_TEST(threads_get_their_own_socket);
+	RUN_TEST(concurrent_single_reads_never_cross);
+	RUN_TEST(concurrent_pipelines_never_cross);
+
+	fake_iodriver_stop(drv);
+	return TEST_RESULT();
+}
@@ -0,0 +1,424 @@
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <errno.h>
+#include <time.h>
+#include <unistd.h>
+#include <pthread.h>
+
+#include <sys/socket.h>
+#include <sys/un.h>
+
+#include "fake_iodriver.h"
+#include "iosocket.h"
+#include "api_constants.h"
+#include "api.h"
+#include "mapi_commands.h"
+
+#define REPLY_QUEUE_SIZE 256
+
+#define LED_COUNT 3
+#define RTC_BCD_SIZE 8
+#define RTC_FLAGS_ADDR 0x0F
+
+typedef struct fake_reply
+{
+	uint64_t due_us;
+	struct sockaddr_un addr;
+	socklen_t addr_len;
+	uint8_t data[MAX_COMMAND_PACKET_SIZE];
+	size_t len;
+}fake_reply_t;
+
+struct fake_iodriver
+{
+	int fd;
+	pthread_t thread;
+	pthread_t reply_thread;
+	volatile bool running;
+	volatile bool duplicate_replies;
+	volatile unsigned int latency_us;
+	volatile unsigned int jitter_us;
+	volatile unsigned int service_us;
+	volatile unsigned int requests;
+	unsigned int jitter_seed;
+	uint64_t busy_until_us;           // end of the last request on the simulated MCU link
+
+	// MCU state, only touched by the request loop and the test setters
+	uint32_t adc[ADC_CHANNEL_COUNT];
+	uint8_t leds[LED_COUNT][4];       // brightness, red, green, blue
+	uint8_t power_on_threshold[6];    // wiggle count, sample period, ignition threshold
+	uint8_t power_on_reason;
+	uint8_t power_off_wait;
+	uint8_t rtc_cal[2];
+	uint8_t rtc_regs[256];
+	uint8_t accel_regs[256];
+	uint8_t gpio_dbg[65536];
+	uint32_t wiggle_count;
+	time_t rtc_base;                  // rtc seconds at rtc_set_us
+	uint64_t rtc_set_us;
+
+	// Replies waiting for their latency to pass, sent in order by reply_thread
+	pthread_mutex_t queue_lock;
+	pthread_cond_t queue_cond;
+	fake_reply_t queue[REPLY_QUEUE_SIZE];
+	size_t queue_head;
+	size_t queue_len;
+};
+
+static uint64_t now_us()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return (uint64_t)ts.tv_sec * 1000000 + ts.tv_nsec / 1000;
+}
+
+uint32_t fake_iodriver_adc_value(uint8_t channel)
+{
+	return 1000 * (channel + 1) + channel;
+}
+
+static uint8_t to_bcd(int value)
+{
+	return (uint8_t)(((value / 10) << 4) | (value % 10));
+}
+
+static int from_bcd(uint8_t bcd)
+{
+	return (bcd >> 4) * 10 + (bcd & 0x0F);
+}
+
+/* Rtc registers in the format get_rtc_date_time() decodes, running from the last set */
+static void fake_iodriver_rtc_bcd(fake_iodriver_t * drv, uint8_t * bcd)
+{
+	uint64_t elapsed_us = now_us() - drv->rtc_set_us;
+	time_t seconds = drv->rtc_base + elapsed_us / 1000000;
+	int hundredths = (elapsed_us / 10000) % 100;
+	struct tm tm;
+
+	gmtime_r(&seconds, &tm);
+	bcd[0] = to_bcd(hundredths);
+	bcd[1] = to_bcd(tm.tm_sec);
+	bcd[2] = to_bcd(tm.tm_min);
+	bcd[3] = (uint8_t)((((tm.tm_year + 1900 - 2000) / 100) << 6) | to_bcd(tm.tm_hour));
+	bcd[4] = 0;
+	bcd[5] = to_bcd(tm.tm_mday);
+	bcd[6] = to_bcd(tm.tm_mon + 1);
+	bcd[7] = to_bcd(tm.tm_year % 100);
+}
+
+static void fake_iodriver_set_rtc_bcd(fake_iodriver_t * drv, const uint8_t * bcd)
+{
+	struct tm tm;
+
+	memset(&tm, 0, sizeof(tm));
+	tm.tm_sec = from_bcd(bcd[1] & 0x7F);
+	tm.tm_min = from_bcd(bcd[2] & 0x7F);
+	tm.tm_hour = from_bcd(bcd[3] & 0x3F);
+	tm.tm_mday = from_bcd(bcd[5] & 0x3F);
+	tm.tm_mon = from_bcd(bcd[6] & 0x1F) - 1;
+	tm.tm_year = 2000 + (bcd[3] >> 6) * 100 + from_bcd(bcd[7]) - 1900;
+
+	drv->rtc_base = timegm(&tm);
+	drv->rtc_set_us = now_us() - from_bcd(bcd[0]) * 10000;
+}
+
+/*
+ * Applies a request to the MCU state. For reads, builds the reply payload and
+ * returns its size. Writes are not acknowledged and return 0.
+ */
+static size_t fake_iodriver_handle(fake_iodriver_t * drv, uint8_t * req, size_t req_len, uint8_t * payload)
+{
+	uint8_t param[16] = {0};
+	uint16_t gpio;
+
+	// Parameters missing from a short request read as 0
+	memcpy(param, &req[3], (req_len - 3 < sizeof(param)) ? req_len - 3 : sizeof(param));
+	gpio = (uint16_t)((param[0] << 8) | param[1]);
+
+	if(req[1] == MAPI_WRITE_RQ)
+	{
+		switch(req[2])
+		{
+			case MAPI_SET_LED_STATUS:
+				if(param[0] < LED_COUNT)
+				{
+					memcpy(drv->leds[param[0]], &param[1], 4);
+				}
+				break;
+			case MAPI_SET_POWER_ON_THRESHOLD:
+				memcpy(drv->power_on_threshold, param, sizeof(drv->power_on_threshold));
+				break;
+			case MAPI_SET_DEVICE_POWER_OFF:
+				drv->power_off_wait = param[0];
+				break;
+			case MAPI_SET_RTC_DATE_TIME:
+				fake_iodriver_set_rtc_bcd(drv, param);
+				break;
+			case MAPI_SET_RTC_CAL_REGISTERS:
+				memcpy(drv->rtc_cal, param, sizeof(drv->rtc_cal));
+				break;
+			case MAPI_SET_RTC_REG_DBG:
+				drv->rtc_regs[param[0]] = param[1];
+				break;
+			case MAPI_SET_MCU_GPIO_STATE_DBG:
+				drv->gpio_dbg[gpio] = param[2] & 0x1;
+				break;
+			case MAPI_SET_ACCEL_REGISTER_DBG:
+				drv->accel_regs[param[0]] = param[1];
+				break;
+			default:
+				break;
+		}
+		return 0;
+	}
+
+	switch(req[2])
+	{
+		case MAPI_GET_MCU_FW_VERSION:
+			payload[0] = 0xA; payload[1] = 0x1; payload[2] = 0x2; payload[3] = 0x0;
+			return 4;
+		case MAPI_GET_FPGA_VERSION:
+		{
+			uint32_t value = 0x41000002;
+			memcpy(payload, &value, sizeof(value));
+			return sizeof(value);
+		}
+		case MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE:
+			memcpy(payload, &drv->adc[param[0] % ADC_CHANNEL_COUNT], sizeof(uint32_t));
+			return sizeof(uint32_t);
+		case MAPI_GET_LED_STATUS:
+			memcpy(payload, drv->leds[param[0] % LED_COUNT], 4);
+			return 4;
+		case MAPI_GET_POWER_ON_THRESHOLD:
+			memcpy(payload, drv->power_on_threshold, sizeof(drv->power_on_threshold));
+			return sizeof(drv->power_on_threshold);
+		case MAPI_GET_POWER_ON_REASON:
+			payload[0] = drv->power_on_reason;
+			return 1;
+		case MAPI_GET_RTC_DATE_TIME:
+			fake_iodriver_rtc_bcd(drv, payload);
+			return RTC_BCD_SIZE;
+		case MAPI_GET_RTC_CAL_REGISTERS:
+			memcpy(payload, drv->rtc_cal, sizeof(drv->rtc_cal));
+			return sizeof(drv->rtc_cal);
+		case MAPI_GET_RTC_REG_DBG:
+			payload[0] = drv->rtc_regs[param[0]];
+			return 1;
+		case MAPI_GET_MCU_GPIO_STATE_DBG:
+			payload[0] = drv->gpio_dbg[gpio];
+			return 1;
+		case MAPI_GET_WIGGLE_COUNT_REQ_DBG:
+			memcpy(payload, &drv->wiggle_count, sizeof(drv->wiggle_count));
+			return sizeof(drv->wiggle_count);
+		case MAPI_GET_ACCEL_REGISTER_DBG:
+			payload[0] = drv->accel_regs[param[0]];
+			return 1;
+		default:
+			memset(payload, 0, 8);
+			return 8;
+	}
+}
+
+static void fake_iodriver_send(fake_iodriver_t * drv, fake_reply_t * reply)
+{
+	sendto(drv->fd, reply->data, reply->len, 0, (struct sockaddr *)&reply->addr, reply->addr_len);
+	if(drv->duplicate_replies)
+	{
+		sendto(drv->fd, reply->data, reply->len, 0, (struct sockaddr *)&reply->addr, reply->addr_len);
+	}
+}
+
+static void * fake_iodriver_reply_loop(void * arg)
+{
+	fake_iodriver_t * drv = (fake_iodriver_t *)arg;
+	fake_reply_t reply;
+	uint64_t now;
+
+	pthread_mutex_lock(&drv->queue_lock);
+	while(drv->running)
+	{
+		if(drv->queue_len == 0)
+		{
+			pthread_cond_wait(&drv->queue_cond, &drv->queue_lock);
+			continue;
+		}
+
+		reply = drv->queue[drv->queue_head];
+		now = now_us();
+		if(reply.due_us > now)
+		{
+			pthread_mutex_unlock(&drv->queue_lock);
+			usleep(reply.due_us - now);
+			pthread_mutex_lock(&drv->queue_lock);
+			continue;
+		}
+
+		drv->queue_head = (drv->queue_head + 1) % REPLY_QUEUE_SIZE;
+		drv->queue_len--;
+		pthread_mutex_unlock(&drv->queue_lock);
+		fake_iodriver_send(drv, &reply);
+		pthread_mutex_lock(&drv->queue_lock);
+	}
+	pthread_mutex_unlock(&drv->queue_lock);
+	return NULL;
+}
+
+static void * fake_iodriver_loop(void * arg)
+{
+	fake_iodriver_t * drv = (fake_iodriver_t *)arg;
+	uint8_t req[SOCK_MAX_MSG];
+	fake_reply_t reply;
+	ssize_t num_bytes;
+
+	while(drv->running)
+	{
+		reply.addr_len = sizeof(reply.addr);
+		num_bytes = recvfrom(drv->fd, req, sizeof(req), 0, (struct sockaddr *)&reply.addr, &reply.addr_len);
+		if(num_bytes < 3)
+		{
+			continue; // timeout, used to check running
+		}
+		drv->requests++;
+
+		if(req[0] != MCTRL_MAPI)
+		{
+			continue;
+		}
+
+		reply.data[0] = req[2];
+		reply.len = 1 + fake_iodriver_handle(drv, req, num_bytes, &reply.data[1]);
+
+		// The MCU handles one request at a time, writes take their turn too
+		uint64_t done_us = now_us();
+		if(drv->service_us > 0)
+		{
+			if(drv->busy_until_us > done_us)
+			{
+				done_us = drv->busy_until_us;
+			}
+			done_us += drv->service_us;
+			drv->busy_until_us = done_us;
+		}
+
+		if(req[1] != MAPI_READ_RQ)
+		{
+			continue; // writes are not acknowledged
+		}
+
+		if(drv->latency_us == 0 && drv->jitter_us == 0 && drv->service_us == 0)
+		{
+			fake_iodriver_send(drv, &reply);
+			continue;
+		}
+
+		// Replies keep their order, a jittered reply also holds back the ones after it
+		reply.due_us = done_us + drv->latency_us;
+		if(drv->jitter_us > 0)
+		{
+			reply.due_us += rand_r(&drv->jitter_seed) % drv->jitter_us;
+		}
+		pthread_mutex_lock(&drv->queue_lock);
+		if(drv->queue_len < REPLY_QUEUE_SIZE)
+		{
+			drv->queue[(drv->queue_head + drv->queue_len) % REPLY_QUEUE_SIZE] = reply;
+			drv->queue_len++;
+			pthread_cond_signal(&drv->queue_cond);
+		}
+		pthread_mutex_unlock(&drv->queue_lock);
+	}
+	return NULL;
+}
+
+fake_iodriver_t * fake_iodriver_start()
+{
+	struct sockaddr_un s_addr = {0};
+	struct timeval timeout = {0, 50000};
+	fake_iodriver_t * drv = (fake_iodriver_t *)calloc(1, sizeof(fake_iodriver_t));
+
+	drv->fd = socket(AF_UNIX, SOCK_DGRAM, 0);
+	setsockopt(drv->fd, SOL_SOCKET, SO_RCVTIMEO, (char *)&timeout, sizeof(timeout));
+
+	s_addr.sun_family = AF_UNIX;
+	strncpy(s_addr.sun_path, UD_FILENAME, sizeof(s_addr.sun_path) - 1);
+	s_addr.sun_path[0] = '\0';
+
+	if(-1 == bind(drv->fd, (struct sockaddr *)&s_addr, sizeof(struct sockaddr_un)))
+	{
+		printf("%s: failure to bind[%s]\n", __func__, strerror(errno));
+		close(drv->fd);
+		free(drv);
+		return NULL;
+	}
+
+	for(uint8_t i = 0; i < ADC_CHANNEL_COUNT; i++)
+	{
+		drv->adc[i] = fake_iodriver_adc_value(i);
+	}
+	drv->rtc_base = time(NULL);
+	drv->rtc_set_us = now_us();
+	drv->jitter_seed = 1;
+
+	pthread_mutex_init(&drv->queue_lock, NULL);
+	pthread_cond_init(&drv->queue_cond, NULL);
+	drv->running = true;
+	pthread_create(&drv->thread, NULL, fake_iodriver_loop, drv);
+	pthread_create(&drv->reply_thread, NULL, fake_iodriver_reply_loop, drv);
+	return drv;
+}
+
+void fake_iodriver_stop(fake_iodriver_t * drv)
+{
+	drv->running = false;
+	pthread_join(drv->thread, NULL);
+
+	pthread_mutex_lock(&drv->queue_lock);
+	pthread_cond_signal(&drv->queue_cond);
+	pthread_mutex_unlock(&drv->queue_lock);
+	pthread_join(drv->reply_thread, NULL);
+
+	pthread_cond_destroy(&drv->queue_cond);
+	pthread_mutex_destroy(&drv->queue_lock);
+	close(drv->fd);
+	free(drv);
+}
+
+unsigned int fake_iodriver_requests(fake_iodriver_t * drv)
+{
+	return drv->requests;
+}
+
+void fake_iodriver_set_duplicate_replies(fake_iodriver_t * drv, bool duplicate)
+{
+	drv->duplicate_replies = duplicate;
+}
+
+void fake_iodriver_set_latency_us(fake_iodriver_t * drv, unsigned int latency_us)
+{
+	drv->latency_us = latency_us;
+}
+
+void fake_iodriver_set_jitter_us(fake_iodriver_t * drv, unsigned int jitter_us)
+{
+	drv->jitter_us = jitter_us;
+}
+
+void fake_iodriver_set_service_us(fake_iodriver_t * drv, unsigned int service_us)
+{
+	drv->service_us = service_us;
+}
+
+void fake_iodriver_set_adc(fake_iodriver_t * drv, uint8_t channel, uint32_t millivolts)
+{
+	drv->adc[channel % ADC_CHANNEL_COUNT] = millivolts;
+}
+
+void fake_iodriver_set_power_on_reason(fake_iodriver_t * drv, uint8_t reason)
+{
+	drv->power_on_reason = reason;
+}
+
+void fake_iodriver_set_rtc_battery_good(fake_iodriver_t * drv, bool good)
+{
+	drv->rtc_regs[RTC_FLAGS_ADDR] = good ? 0x00 : 0x10;
+}
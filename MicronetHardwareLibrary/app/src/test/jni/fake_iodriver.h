@@ -0,0 +1,53 @@
+/*
+ * Stand-in for the iodriver daemon used by the host tests.
+ *
+ * Binds the same abstract UD_FILENAME datagram address as the real daemon and
+ * simulates the MCU behind it, so the socket and api layers, and libmctl as a
+ * whole, can be exercised on a plain Linux box.
+ *
+ * The simulated MCU keeps state: LEDs, power on threshold, rtc (running from
+ * the last set, or the host clock), rtc calibration and debug registers, MCU
+ * gpios and accelerometer registers read back what was last written. Versions
+ * are fixed (MCU A.1.2.0, fpga 41000002) and adc channels default to
+ * fake_iodriver_adc_value(). Like the iodriver, writes are not acknowledged.
+ *
+ * iodriver_simulator.cpp wraps it in a standalone daemon.
+ */
+#ifndef FAKE_IODRIVER_H
+#define FAKE_IODRIVER_H
+
+#include <stdint.h>
+#include <stdbool.h>
+
+typedef struct fake_iodriver fake_iodriver_t;
+
+fake_iodriver_t * fake_iodriver_start();
+void fake_iodriver_stop(fake_iodriver_t * drv);
+
+// Number of datagrams received
+unsigned int fake_iodriver_requests(fake_iodriver_t * drv);
+
+// Send every reply twice, to simulate late replies left on a client socket
+void fake_iodriver_set_duplicate_replies(fake_iodriver_t * drv, bool duplicate);
+
+// Delay every reply by latency_us without blocking later requests, like a
+// link to the MCU with requests in flight
+void fake_iodriver_set_latency_us(fake_iodriver_t * drv, unsigned int latency_us);
+
+// Add a random 0 to jitter_us to every reply's latency. Replies keep their
+// order, so a late reply holds back the ones behind it.
+void fake_iodriver_set_jitter_us(fake_iodriver_t * drv, unsigned int jitter_us);
+
+// Make the MCU handle one request at a time, each taking service_us before
+// its latency starts, like a serial link to the MCU. Requests queue behind
+// each other, 0 (the default) handles them all at once.
+void fake_iodriver_set_service_us(fake_iodriver_t * drv, unsigned int service_us);
+
+void fake_iodriver_set_adc(fake_iodriver_t * drv, uint8_t channel, uint32_t millivolts);
+void fake_iodriver_set_power_on_reason(fake_iodriver_t * drv, uint8_t reason);
+void fake_iodriver_set_rtc_battery_good(fake_iodriver_t * drv, bool good);
+
+// Default value the fake returns for MAPI_GET_ADC_OR_GPI_INPUT_VOLTAGE on a channel
+uint32_t fake_iodriver_adc_value(uint8_t channel);
+
+#endif
@@ -0,0 +1,80 @@
+/*
+ * Standalone iodriver/MCU simulator for development and benchmarking.
+ *
+ * Serves the MAPI protocol on the abstract UD_FILENAME address until it gets
+ * SIGINT or SIGTERM, so libmctl and everything on top of it (MControl,
+ * MicronetHardware) can run on a plain Linux box:
+ *
+ *   iodriver_simulator [-l latency_us] [-j jitter_us] [-s service_us] [-r power_on_reason]
+ *
+ * Only one process can bind the address, stop the simulator before running
+ * the host tests, they start their own.
+ */
+#include <stdio.h>
+#include <stdlib.h>
+#include <signal.h>
+#include <unistd.h>
+
+#include "fake_iodriver.h"
+
+static volatile sig_atomic_t stop = 0;
+
+static void on_signal(int sig)
+{
+	stop = 1;
+}
+
+int main(int argc, char ** argv)
+{
+	unsigned int latency_us = 0;
+	unsigned int jitter_us = 0;
+	unsigned int service_us = 0;
+	int power_on_reason = 0;
+	int opt;
+
+	while((opt = getopt(argc, argv, "l:j:s:r:")) != -1)
+	{
+		switch(opt)
+		{
+			case 'l':
+				latency_us = strtoul(optarg, NULL, 0);
+				break;
+			case 'j':
+				jitter_us = strtoul(optarg, NULL, 0);
+				break;
+			case 's':
+				service_us = strtoul(optarg, NULL, 0);
+				break;
+			case 'r':
+				power_on_reason = strtol(optarg, NULL, 0);
+				break;
+			default:
+				fprintf(stderr, "usage: %s [-l latency_us] [-j jitter_us] [-s service_us] [-r power_on_reason]\n", argv[0]);
+				return 2;
+		}
+	}
+
+	fake_iodriver_t * drv = fake_iodriver_start();
+	if(drv == NULL)
+	{
+		return 1;
+	}
+	fake_iodriver_set_latency_us(drv, latency_us);
+	fake_iodriver_set_jitter_us(drv, jitter_us);
+	fake_iodriver_set_service_us(drv, service_us);
+	fake_iodriver_set_power_on_reason(drv, (uint8_t)power_on_reason);
+
+	signal(SIGINT, on_signal);
+	signal(SIGTERM, on_signal);
+	printf("iodriver simulator running, latency %u us, jitter %u us, service %u us\n", latency_us, jitter_us, service_us);
+	fflush(stdout);
+
+	while(!stop)
+	{
+		sleep(1);
+	}
+
+	printf("served %u requests\n", fake_iodriver_requests(drv));
+	fake_iodriver_stop(drv);
+	return 0;
+}
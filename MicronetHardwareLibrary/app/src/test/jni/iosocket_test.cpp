@@ -0,0 +1,201 @@
+/*
+ * Host tests for the persistent connection in iosocket.cpp, run against
+ * fake_iodriver bound to the abstract UD_FILENAME address.
+ */
+#include <stdint.h>
+#include <stddef.h>
+#include <unistd.h>
+#include <string.h>
+#include <pthread.h>
+#include <sys/resource.h>
+#include <sys/socket.h>
+#include <sys/syscall.h>
+#include <sys/un.h>
+
+#include "fake_iodriver.h"
+#include "iosocket.h"
+#include "api.h"
+#include "mapi_commands.h"
+#include "test_util.h"
+
+static fake_iodriver_t * drv;
+
+static int read_adc(uint8_t channel, uint32_t * voltage)
+{
+	int result = CONNECTION_FAILURE;
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	if(fd >= 0)
+	{
+		result = get_adc_or_gpi_voltage(&fd, channel, voltage, sizeof(*voltage));
+	}
+	iosocket_release(&fd);
+	return result;
+}
+
+static void socket_is_reused_across_calls()
+{
+	uint32_t voltage = 0;
+	unsigned int generation;
+	int first_fd, fd;
+
+	fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	first_fd = fd;
+	iosocket_release(&fd);
+	generation = iosocket_generation();
+
+	for(uint8_t i = 0; i < 12; i++)
+	{
+		CHECK(read_adc(i, &voltage) >= 0);
+		CHECK(voltage == fake_iodriver_adc_value(i));
+	}
+
+	fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(fd == first_fd);
+	iosocket_release(&fd);
+	CHECK(iosocket_generation() == generation);
+}
+
+static void invalidated_socket_is_recreated()
+{
+	uint32_t voltage = 0;
+	unsigned int generation = iosocket_generation();
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	iosocket_invalidate(&fd);
+	CHECK(fd == -1);
+	iosocket_release(&fd);
+
+	CHECK(read_adc(3, &voltage) >= 0);
+	CHECK(voltage == fake_iodriver_adc_value(3));
+	CHECK(iosocket_generation() == generation + 1);
+}
+
+static void stale_replies_are_drained()
+{
+	uint32_t voltage = 0;
+
+	fake_iodriver_set_duplicate_replies(drv, true);
+	for(uint8_t i = 0; i < 4; i++)
+	{
+		CHECK(read_adc(i, &voltage) >= 0);
+		CHECK(voltage == fake_iodriver_adc_value(i));
+		usleep(10000); // let the duplicate land before the next request
+	}
+	fake_iodriver_set_duplicate_replies(drv, false);
+}
+
+static void reconnects_after_daemon_restart()
+{
+	uint32_t voltage = 0;
+	unsigned int generation = iosocket_generation();
+
+	fake_iodriver_stop(drv);
+	CHECK(read_adc(1, &voltage) < 0);
+	CHECK(iosocket_generation() != generation);
+
+	drv = fake_iodriver_start();
+	CHECK(drv != NULL);
+	CHECK(read_adc(1, &voltage) >= 0);
+	CHECK(voltage == fake_iodriver_adc_value(1));
+}
+
+/* Runs fn on a new thread, so it starts without a socket */
+static void run_on_new_thread(void * (*fn)(void *))
+{
+	pthread_t thread;
+
+	pthread_create(&thread, NULL, fn, NULL);
+	pthread_join(thread, NULL);
+}
+
+static void * first_socket_worker(void * arg)
+{
+	uint32_t voltage = 0;
+
+	CHECK(read_adc(2, &voltage) >= 0);
+	return NULL;
+}
+
+static void first_socket_of_thread_keeps_generation()
+{
+	unsigned int generation = iosocket_generation();
+
+	// A thread connecting for the first time isn't a reconnect
+	run_on_new_thread(first_socket_worker);
+	CHECK(iosocket_generation() == generation);
+}
+
+static void * bind_conflict_worker(void * arg)
+{
+	struct sockaddr_un addr = {0};
+	uint32_t voltage = 0;
+	int blocker = socket(AF_UNIX, SOCK_DGRAM, 0);
+
+	// Hold this thread's client address, like a leftover socket would
+	addr.sun_family = AF_UNIX;
+	snprintf(addr.sun_path, sizeof(addr.sun_path), UD_FILENAME "_c.%ld.%ld",
+			(long)getpid(), (long)syscall(SYS_gettid));
+	addr.sun_path[0] = '\0';
+	CHECK(0 == bind(blocker, (struct sockaddr *)&addr, sizeof(addr)));
+
+	CHECK(read_adc(5, &voltage) >= 0);
+	CHECK(voltage == fake_iodriver_adc_value(5));
+
+	close(blocker);
+	return NULL;
+}
+
+static void address_in_use_falls_back_to_autobind()
+{
+	run_on_new_thread(bind_conflict_worker);
+}
+
+static void * socket_failure_worker(void * arg)
+{
+	struct rlimit saved, limited;
+	uint32_t voltage = 0;
+	int lowest_free_fd = dup(0);
+
+	close(lowest_free_fd);
+	getrlimit(RLIMIT_NOFILE, &saved);
+	limited = saved;
+	limited.rlim_cur = lowest_free_fd;
+	setrlimit(RLIMIT_NOFILE, &limited);
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(fd == -1);
+	iosocket_release(&fd);
+	CHECK(read_adc(2, &voltage) == CONNECTION_FAILURE);
+
+	setrlimit(RLIMIT_NOFILE, &saved);
+
+	// The next acquire connects again
+	CHECK(read_adc(2, &voltage) >= 0);
+	CHECK(voltage == fake_iodriver_adc_value(2));
+	return NULL;
+}
+
+static void socket_failure_is_reported_not_fatal()
+{
+	run_on_new_thread(socket_failure_worker);
+}
+
+int main()
+{
+	drv = fake_iodriver_start();
+	if(drv == NULL)
+	{
+		return 1;
+	}
+
+	RUN_TEST(socket_is_reused_across_calls);
+	RUN_TEST(invalidated_socket_is_recreated);
+	RUN_TEST(stale_replies_are_drained);
+	RUN_TEST(reconnects_after_daemon_restart);
+	RUN_TEST(first_socket_of_thread_keeps_generation);
+	RUN_TEST(address_in_use_falls_back_to_autobind);
+	RUN_TEST(socket_failure_is_reported_not_fatal);
+
+	fake_iodriver_stop(drv);
+	return TEST_RESULT();
+}
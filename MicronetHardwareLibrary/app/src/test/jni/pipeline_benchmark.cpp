@@ -0,0 +1,85 @@
+/*
+ * Throughput of one request per round trip (get_adc_or_gpi_voltage) against
+ * mapi_pipeline, reading all ADC channels from fake_iodriver at several reply
+ * latencies. Not part of ctest, run it by hand:
+ *
+ *   ./pipeline_benchmark [iterations]
+ */
+#include <stdint.h>
+#include <stddef.h>
+#include <stdlib.h>
+#include <stdio.h>
+#include <time.h>
+
+#include "fake_iodriver.h"
+#include "iosocket.h"
+#include "api.h"
+#include "mapi_commands.h"
+
+static double now_s()
+{
+	struct timespec ts;
+	clock_gettime(CLOCK_MONOTONIC, &ts);
+	return ts.tv_sec + ts.tv_nsec / 1e9;
+}
+
+static double run_sequential(int iterations)
+{
+	uint32_t voltage;
+	double start = now_s();
+
+	for(int n = 0; n < iterations; n++)
+	{
+		int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+		for(uint8_t i = 0; i < ADC_CHANNEL_COUNT; i++)
+		{
+			get_adc_or_gpi_voltage(&fd, i, &voltage, sizeof(voltage));
+		}
+		iosocket_release(&fd);
+	}
+	return now_s() - start;
+}
+
+static double run_pipelined(int iterations)
+{
+	uint32_t voltages[ADC_CHANNEL_COUNT];
+	int results[ADC_CHANNEL_COUNT];
+	double start = now_s();
+
+	for(int n = 0; n < iterations; n++)
+	{
+		int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+		get_adc_or_gpi_voltages(&fd, voltages, results, ADC_CHANNEL_COUNT);
+		iosocket_release(&fd);
+	}
+	return now_s() - start;
+}
+
+int main(int argc, char ** argv)
+{
+	const unsigned int latencies_us[] = {0, 100, 1000};
+	int iterations = (argc > 1) ? atoi(argv[1]) : 200;
+	fake_iodriver_t * drv = fake_iodriver_start();
+
+	if(drv == NULL)
+	{
+		return 1;
+	}
+
+	printf("%-12s %-12s %14s %14s %10s\n", "latency_us", "mode", "channels/s", "us/all-read", "speedup");
+	for(size_t l = 0; l < sizeof(latencies_us) / sizeof(latencies_us[0]); l++)
+	{
+		fake_iodriver_set_latency_us(drv, latencies_us[l]);
+		run_pipelined(5); // warm up
+
+		double seq = run_sequential(iterations);
+		double pipe = run_pipelined(iterations);
+		printf("%-12u %-12s %14.0f %14.1f %10s\n", latencies_us[l], "sequential",
+				iterations * ADC_CHANNEL_COUNT / seq, seq * 1e6 / iterations, "");
+		printf("%-12u %-12s %14.0f %14.1f %9.1fx\n", latencies_us[l], "pipelined",
+				iterations * ADC_CHANNEL_COUNT / pipe, pipe * 1e6 / iterations, seq / pipe);
+	}
+
+	fake_iodriver_stop(drv);
+	return 0;
+}
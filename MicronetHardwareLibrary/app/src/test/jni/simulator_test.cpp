@@ -0,0 +1,177 @@
+/*
+ * Host tests for the MCU state simulated by fake_iodriver, written and read
+ * back through the api.cpp requests libmctl uses.
+ */
+#include <stdint.h>
+#include <stddef.h>
+#include <string.h>
+#include <unistd.h>
+#include <time.h>
+
+#include "fake_iodriver.h"
+#include "iosocket.h"
+#include "api.h"
+#include "mapi_commands.h"
+#include "test_util.h"
+
+static fake_iodriver_t * drv;
+
+static void led_reads_back_last_write()
+{
+	uint8_t brightness, red, green, blue;
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	CHECK(set_led_status(&fd, 2, 200, 0x10, 0x20, 0x30) == SUCCESS);
+	CHECK(get_led_status(&fd, 2, &brightness, &red, &green, &blue) >= 0);
+	CHECK(brightness == 200 && red == 0x10 && green == 0x20 && blue == 0x30);
+
+	// The other leds are untouched
+	CHECK(get_led_status(&fd, 0, &brightness, &red, &green, &blue) >= 0);
+	CHECK(brightness == 0);
+	iosocket_release(&fd);
+}
+
+static void rtc_runs_from_last_set()
+{
+	rtc_date_time_t dt;
+	char dt_str[] = "2016-03-29 19:09:06.00";
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	CHECK(set_rtc_date_time(&fd, dt_str) == SUCCESS);
+	CHECK(get_rtc_date_time_fields(&fd, &dt) >= 0);
+	CHECK(dt.year == 2016 && dt.month == 3 && dt.day_of_month == 29);
+	CHECK(dt.hours == 19 && dt.minutes == 9 && dt.seconds == 6);
+
+	iosocket_release(&fd);
+
+	usleep(1100000);
+	fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+	CHECK(get_rtc_date_time_fields(&fd, &dt) >= 0);
+	CHECK(dt.seconds == 7);
+	iosocket_release(&fd);
+}
+
+static void registers_read_back_last_write()
+{
+	uint16_t wiggle_count, sample_period, ignition_threshold;
+	uint8_t dig_cal, analog_cal, gpio_value;
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	CHECK(set_power_on_threshold_cfg(&fd, 3, 150, 7000) == SUCCESS);
+	CHECK(get_power_on_threshold_cfg(&fd, &wiggle_count, &sample_period, &ignition_threshold) >= 0);
+	CHECK(wiggle_count == 3 && sample_period == 150 && ignition_threshold == 7000);
+
+	CHECK(set_rtc_cal_reg(&fd, 0x12, 0x34) == SUCCESS);
+	CHECK(get_rtc_cal_reg(&fd, &dig_cal, &analog_cal) >= 0);
+	CHECK(dig_cal == 0x12 && analog_cal == 0x34);
+
+	CHECK(set_gpio_state_dbg(&fd, 512, 1) == SUCCESS);
+	CHECK(get_gpio_state_dbg(&fd, 512, &gpio_value) >= 0);
+	CHECK(gpio_value == 1);
+	CHECK(get_gpio_state_dbg(&fd, 513, &gpio_value) >= 0);
+	CHECK(gpio_value == 0);
+	iosocket_release(&fd);
+}
+
+static void test_setters_change_readings()
+{
+	uint32_t voltage = 0;
+	uint8_t reason = 0, battery = 0;
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	fake_iodriver_set_adc(drv, 8, 12345);
+	CHECK(get_adc_or_gpi_voltage(&fd, 8, &voltage, sizeof(voltage)) >= 0);
+	CHECK(voltage == 12345);
+	fake_iodriver_set_adc(drv, 8, fake_iodriver_adc_value(8));
+
+	fake_iodriver_set_power_on_reason(drv, 0x2);
+	CHECK(get_power_on_reason(&fd, &reason) >= 0);
+	CHECK(reason == 0x2);
+
+	CHECK(check_rtc_battery(&fd, &battery) >= 0);
+	CHECK(battery == 1);
+	fake_iodriver_set_rtc_battery_good(drv, false);
+	CHECK(check_rtc_battery(&fd, &battery) >= 0);
+	CHECK(battery == 0);
+	iosocket_release(&fd);
+}
+
+static void jitter_keeps_reply_order()
+{
+	uint32_t voltages[12] = {0};
+	int results[12];
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	fake_iodriver_set_latency_us(drv, 1000);
+	fake_iodriver_set_jitter_us(drv, 2000);
+	for(int i = 0; i < 20; i++)
+	{
+		CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) == SUCCESS);
+		for(uint8_t ch = 0; ch < 12; ch++)
+		{
+			CHECK(voltages[ch] == fake_iodriver_adc_value(ch));
+		}
+	}
+	fake_iodriver_set_jitter_us(drv, 0);
+	fake_iodriver_set_latency_us(drv, 0);
+	iosocket_release(&fd);
+}
+
+static uint64_t elapsed_us(const struct timespec * start)
+{
+	struct timespec now;
+	clock_gettime(CLOCK_MONOTONIC, &now);
+	return (uint64_t)(now.tv_sec - start->tv_sec) * 1000000 + now.tv_nsec / 1000 - start->tv_nsec / 1000;
+}
+
+static void service_time_serializes_requests()
+{
+	uint32_t voltages[12] = {0};
+	int results[12];
+	struct timespec start;
+
+	int fd = iosocket_acquire(IOSOCKET_DEFAULT_TIMEOUT_MS);
+
+	// Without service time the 12 reads are in flight together
+	fake_iodriver_set_latency_us(drv, 2000);
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) == SUCCESS);
+	CHECK(elapsed_us(&start) < 12 * 2000);
+
+	// With it they take their turn on the MCU
+	fake_iodriver_set_latency_us(drv, 0);
+	fake_iodriver_set_service_us(drv, 2000);
+	clock_gettime(CLOCK_MONOTONIC, &start);
+	CHECK(get_adc_or_gpi_voltages(&fd, voltages, results, 12) == SUCCESS);
+	CHECK(elapsed_us(&start) >= 12 * 2000);
+	for(uint8_t ch = 0; ch < 12; ch++)
+	{
+		CHECK(voltages[ch] == fake_iodriver_adc_value(ch));
+	}
+	fake_iodriver_set_service_us(drv, 0);
+	iosocket_release(&fd);
+}
+
+int main()
+{
+	drv = fake_iodriver_start();
+	if(drv == NULL)
+	{
+		return 1;
+	}
+
+	RUN_TEST(led_reads_back_last_write);
+	RUN_TEST(rtc_runs_from_last_set);
+	RUN_TEST(registers_read_back_last_write);
+	RUN_TEST(test_setters_change_readings);
+	RUN_TEST(jitter_keeps_reply_order);
+	RUN_TEST(service_time_serializes_requests);
+
+	fake_iodriver_stop(drv);
+	return TEST_RESULT();
+}
@@ -0,0 +1,27 @@
+/* Minimal assertion helpers for the host tests, no framework needed. */
+#ifndef TEST_UTIL_H
+#define TEST_UTIL_H
+
+#include <stdio.h>
+
+static int test_failures = 0;
+
+#define CHECK(cond) \
+	do { \
+		if(!(cond)) \
+		{ \
+			printf("%s:%d: CHECK failed: %s\n", __FILE__, __LINE__, #cond); \
+			test_failures++; \
+		} \
+	} while(0)
+
+#define RUN_TEST(fn) \
+	do { \
+		int before = test_failures; \
+		fn(); \
+		printf("%s %s\n", (before == test_failures) ? "PASS" : "FAIL", #fn); \
+	} while(0)
+
+#define TEST_RESULT() (test_failures == 0 ? 0 : 1)
+
+#endif